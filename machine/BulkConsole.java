@@ -0,0 +1,38 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * A serial console that can also move many bytes per interrupt, like a
+ * device that does DMA. The console buffers received bytes until they are
+ * read, and sends a whole block before interrupting.
+ */
+public interface BulkConsole extends SerialConsole {
+    /**
+     * Move up to <i>length</i> received bytes into <i>buf</i>, starting at
+     * <i>offset</i>. Never waits.
+     *
+     * <p>
+     * The receive interrupt handler is called when bytes arrive and none
+     * were waiting to be read. It is not called again until the received
+     * bytes have all been read.
+     *
+     * @param	buf	the buffer to store the bytes in.
+     * @param	offset	the offset in the buffer to start storing bytes.
+     * @param	length	the most bytes to read.
+     * @return	the number of bytes read, 0 if none were available.
+     */
+    public int read(byte[] buf, int offset, int length);
+
+    /**
+     * Start sending <i>length</i> bytes from <i>buf</i>, starting at
+     * <i>offset</i>. The send interrupt handler is called once, when all of
+     * them have been sent. The bytes are copied when the send starts. If a
+     * send is already in progress, the result is not defined.
+     *
+     * @param	buf	the buffer to get the bytes from.
+     * @param	offset	the offset in the buffer to start getting.
+     * @param	length	the number of bytes to send. Must be positive.
+     */
+    public void write(byte[] buf, int offset, int length);
+}
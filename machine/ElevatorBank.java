@@ -8,10 +8,18 @@ import nachos.threads.Semaphore;
 
 import java.util.Vector;
 import java.util.LinkedList;
+import java.util.LinkedHashSet;
+import java.util.ArrayList;
 import java.util.Iterator;
 
 /**
  * A bank of elevators.
+ *
+ * <p>
+ * Riders waiting on each floor are kept in a per-floor set, and riders in
+ * each elevator in that elevator's list, so an elevator event only visits the
+ * riders it concerns. All the riders an event concerns are interrupted
+ * together, by one scheduled interrupt.
  */
 public final class ElevatorBank implements Runnable {
     /** Indicates an elevator intends to move down. */
@@ -107,6 +115,12 @@ public final class ElevatorBank implements Runnable {
 	riders = new RiderState[numRiders];
 	ridersVector.toArray(riders);
 
+	floorRiders = new ArrayList<LinkedHashSet<RiderState>>(numFloors);
+	for (int floor=0; floor<numFloors; floor++)
+	    floorRiders.add(new LinkedHashSet<RiderState>());
+	for (int i=0; i<numRiders; i++)
+	    floorRiders.get(riders[i].floor).add(riders[i]);
+
 	if (enableGui) {
 	    privilege.doPrivileged(new Runnable() {
 		public void run() { initGui(); }
@@ -154,14 +168,25 @@ public final class ElevatorBank implements Runnable {
 	}
 
 	RiderEvent e = new RiderEvent(event, floor, elevator, direction);
-	for (int i=0; i<numRiders; i++) {
-	    RiderState rider = riders[i];
-	    if ((rider.inElevator && rider.elevator == e.elevator) ||
-		(!rider.inElevator && rider.floor == e.floor)) {
-		rider.events.add(e);
-		rider.schedule(1);
-	    }
-	}
+
+	final ArrayList<RiderState> group = new ArrayList<RiderState>();
+	if (elevator != -1)
+	    group.addAll(elevators[elevator].riders);
+	if (floor >= 0 && floor < numFloors)
+	    group.addAll(floorRiders.get(floor));
+
+	if (group.isEmpty())
+	    return;
+
+	for (int i=0; i<group.size(); i++)
+	    group.get(i).events.add(e);
+
+	privilege.interrupt.schedule(1, "rider", new Runnable() {
+		public void run() {
+		    for (int i=0; i<group.size(); i++)
+			group.get(i).interrupt();
+		}
+	    });
     }
 
     private class ElevatorManager implements ElevatorControls {
@@ -428,8 +453,6 @@ public final class ElevatorBank implements Runnable {
 	    this.rider = rider;
 	    this.floor = floor;
 	    this.stops = stops;
-
-	    interrupt = new Runnable() { public void run() { interrupt(); }};
 	}
 	
 	public int getNumFloors() {
@@ -519,6 +542,8 @@ public final class ElevatorBank implements Runnable {
 	    if (!elevators[elevator].enter(this, floor))
 		return false;
 
+	    floorRiders.get(floor).remove(this);
+
 	    if (gui != null)
 		gui.enterElevator(floor, elevator);
 
@@ -551,6 +576,7 @@ public final class ElevatorBank implements Runnable {
 
 	    inElevator = false;
 	    floors.add(new Integer(floor));
+	    floorRiders.get(floor).add(this);
 
 	    if (gui != null)
 		gui.exitElevator(floor, elevator);
@@ -560,6 +586,10 @@ public final class ElevatorBank implements Runnable {
 
 	public void finish() {
 	    finished = true;
+
+	    // a finished rider takes no more events
+	    if (!inElevator)
+		floorRiders.get(floor).remove(this);
 	    
 	    int[] floors = getFloors();
 	    Lib.assertTrue(floors.length == stops.length);
@@ -572,10 +602,6 @@ public final class ElevatorBank implements Runnable {
 	    KThread.finish();
 	}
 
-	void schedule(int when) {
-	    privilege.interrupt.schedule(when, "rider", interrupt);
-	}
-
 	void interrupt() {
 	    if (!finished && !events.isEmpty() && handler != null)
 		handler.run();
@@ -599,7 +625,7 @@ public final class ElevatorBank implements Runnable {
 	boolean inElevator = false, finished = false;
 	int floor, elevator;
 	int[] stops;
-	Runnable interrupt, handler = null;
+	Runnable handler = null;
 	LinkedList<RiderEvent> events = new LinkedList<RiderEvent>();
 	Vector<Integer> floors = new Vector<Integer>();
 	Semaphore done = new Semaphore(0);
@@ -613,6 +639,8 @@ public final class ElevatorBank implements Runnable {
     private int numRiders;
     private Vector<RiderControls> ridersVector;
     private RiderState[] riders;
+    /** The riders waiting on each floor, not in an elevator. */
+    private ArrayList<LinkedHashSet<RiderState>> floorRiders;
     
     private boolean simulationStarted, enableGui;
     private Privilege privilege;
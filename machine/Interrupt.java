@@ -7,6 +7,7 @@ import nachos.security.*;
 import java.util.TreeSet;
 import java.util.Iterator;
 import java.util.SortedSet;
+import java.util.ArrayList;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -102,6 +103,18 @@ public final class Interrupt {
 	return oldStatus;
     }
 
+    /**
+     * Set the handler to call on return from interrupt. Whenever the handlers
+     * of the interrupts that are due have run, the return handler is called
+     * once, still with interrupts disabled. A kernel can use this to switch
+     * threads only after every device that was due has been serviced.
+     *
+     * @param	handler	the return-from-interrupt handler, or <tt>null</tt>.
+     */
+    public void setReturnHandler(Runnable handler) {
+	returnHandler = handler;
+    }
+
     /**
      * Tests whether interrupts are enabled.
      *
@@ -133,6 +146,34 @@ public final class Interrupt {
 	pending.add(toOccur);
     }
 
+    /**
+     * Post an interrupt from a host thread outside the simulation, such as
+     * one waiting for input. It is scheduled for the next tick of simulated
+     * time. This is the only method here that may be called from a host
+     * thread.
+     */
+    private void post(String type, Runnable handler) {
+	synchronized (postedHandlers) {
+	    postedTypes.add(type);
+	    postedHandlers.add(handler);
+	    anyPosted = true;
+	}
+    }
+
+    private void schedulePosted() {
+	synchronized (postedHandlers) {
+	    for (int i=0; i<postedHandlers.size(); i++) {
+		pending.add(new PendingInterrupt(privilege.stats.totalTicks,
+						 postedTypes.get(i),
+						 postedHandlers.get(i)));
+	    }
+
+	    postedTypes.clear();
+	    postedHandlers.clear();
+	    anyPosted = false;
+	}
+    }
+
     private void tick(boolean inKernelMode) {
 	Stats stats = privilege.stats;
 
@@ -161,6 +202,9 @@ public final class Interrupt {
 	if (Lib.test(dbgInt))
 	    print();
 
+	if (anyPosted)
+	    schedulePosted();
+
 	if (pending.isEmpty())
 	    return;
 
@@ -185,6 +229,9 @@ public final class Interrupt {
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
+
+	if (returnHandler != null)
+	    returnHandler.run();
     }
 
     private void print() {
@@ -238,6 +285,12 @@ public final class Interrupt {
 
     private boolean enabled;
     private TreeSet<PendingInterrupt> pending;
+    private Runnable returnHandler = null;
+
+    /** Interrupts posted by host threads, not yet scheduled. */
+    private ArrayList<String> postedTypes = new ArrayList<String>();
+    private ArrayList<Runnable> postedHandlers = new ArrayList<Runnable>();
+    private volatile boolean anyPosted = false;
 
     private static final char dbgInt = 'i';
 
@@ -246,6 +299,10 @@ public final class Interrupt {
 	    Interrupt.this.schedule(when, type, handler);
 	}
 
+	public void post(String type, Runnable handler) {
+	    Interrupt.this.post(type, handler);
+	}
+
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
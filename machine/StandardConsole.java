@@ -5,11 +5,25 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.FileInputStream;
 
 /**
  * A text-based console that uses System.in and System.out.
+ *
+ * <p>
+ * A host thread waits for input and posts a receive interrupt only when
+ * bytes arrive, rather than the console polling. It reads into a bounded
+ * buffer and stops reading while the buffer is full. If
+ * <tt>Console.inputFile</tt> is set, input is read from that file instead,
+ * a buffer at a time, which suits scripted runs.
+ *
+ * <p>
+ * Received bytes are kept in a buffer until they are read, so input typed or
+ * piped ahead is not lost. A block of bytes is sent with one interrupt, and
+ * System.out is flushed once per send rather than once per byte.
  */
-public class StandardConsole implements SerialConsole {
+public class StandardConsole implements BulkConsole {
     /**
      * Allocate a new standard console.
      *
@@ -25,38 +39,93 @@ public class StandardConsole implements SerialConsole {
 		public void run() { receiveInterrupt(); }
 	    };
 
+	deliverInterrupt = new Runnable() {
+		public void run() { deliverInterrupt(); }
+	    };
+
 	sendInterrupt = new Runnable() {
 		public void run() { sendInterrupt(); }
 	    };		
-	
-	scheduleReceiveInterrupt();
+
+	final String inputFile = Config.getString("Console.inputFile");
+	if (inputFile == null) {
+	    source = System.in;
+	}
+	else {
+	    privilege.doPrivileged(new Runnable() {
+		    public void run() {
+			try {
+			    source = new FileInputStream(inputFile);
+			}
+			catch (IOException e) {
+			}
+		    }
+		});
+	    Lib.assertTrue(source != null, "cannot open " + inputFile);
+	}
+
+	Thread inputThread = new Thread(new Runnable() {
+		public void run() { inputLoop(); }
+	    });
+	inputThread.setDaemon(true);
+	inputThread.start();
     }
     
     public final void setInterruptHandlers(Runnable receiveInterruptHandler,
 					   Runnable sendInterruptHandler) {
 	this.receiveInterruptHandler = receiveInterruptHandler;
 	this.sendInterruptHandler = sendInterruptHandler;
-    }
 
-    private void scheduleReceiveInterrupt() {
-	privilege.interrupt.schedule(Stats.ConsoleTime, "console read",
-				     receiveInterrupt);
+	// input may have arrived before there was a handler
+	if (incomingCount > 0) {
+	    privilege.interrupt.schedule(Stats.ConsoleTime, "console read",
+					 deliverInterrupt);
+	}
     }
 
     /**
-     * Attempt to read a byte from the object backing this console.
-     *
-     * @return	the byte read, or -1 of no data is available.
+     * The host input thread. Waits for input and adds it to the host buffer,
+     * posting a receive interrupt if one is not already on its way.
      */
-    protected int in() {
-	try {
-	    if (System.in.available() <= 0)
-		return -1;
+    private void inputLoop() {
+	byte[] chunk = new byte[hostBuffer.length];
 
-	    return System.in.read();
-	}
-	catch (IOException e) {
-	    return -1;
+	while (true) {
+	    int room;
+	    synchronized (hostBuffer) {
+		while (hostCount == hostBuffer.length) {
+		    try {
+			hostBuffer.wait();
+		    }
+		    catch (InterruptedException e) {
+		    }
+		}
+		room = hostBuffer.length - hostCount;
+	    }
+
+	    int amount;
+	    try {
+		amount = source.read(chunk, 0, room);
+	    }
+	    catch (IOException e) {
+		return;
+	    }
+	    if (amount <= 0)
+		return;
+
+	    boolean post;
+	    synchronized (hostBuffer) {
+		for (int i=0; i<amount; i++)
+		    hostBuffer[(hostHead + hostCount + i) % hostBuffer.length] =
+			chunk[i];
+		hostCount += amount;
+
+		post = !receivePending;
+		receivePending = true;
+	    }
+
+	    if (post)
+		privilege.interrupt.post("console read", receiveInterrupt);
 	}
     }
 
@@ -85,36 +154,100 @@ public class StandardConsole implements SerialConsole {
 	    return -1;
     }
 
-
+    /**
+     * Move as much of the host buffer as there is room for into the receive
+     * buffer.
+     */
     private void receiveInterrupt() {
-	Lib.assertTrue(incomingKey == -1);
+	boolean wasEmpty = (incomingCount == 0);
+
+	synchronized (hostBuffer) {
+	    receivePending = false;
+
+	    while (hostCount > 0 && incomingCount < incoming.length) {
+		int c = translateCharacter(hostBuffer[hostHead] & 0xFF);
+		hostHead = (hostHead + 1) % hostBuffer.length;
+		hostCount--;
 
-	incomingKey = translateCharacter(in());
-	if (incomingKey == -1) {
-	    scheduleReceiveInterrupt();
+		if (c != -1) {
+		    incoming[(incomingHead + incomingCount) % incoming.length] =
+			(byte) c;
+		    incomingCount++;
+		    privilege.stats.numConsoleReads++;
+		}
+	    }
+
+	    hostBuffer.notify();
 	}
-	else {
-	    privilege.stats.numConsoleReads++;
 
-	    if (receiveInterruptHandler != null)
-		receiveInterruptHandler.run();
+	if (wasEmpty && incomingCount > 0 && receiveInterruptHandler != null)
+	    receiveInterruptHandler.run();
+    }
+
+    /**
+     * Interrupt again for a byte left in the buffer, for a reader that takes
+     * one byte per interrupt.
+     */
+    private void deliverInterrupt() {
+	if (incomingCount > 0 && receiveInterruptHandler != null)
+	    receiveInterruptHandler.run();
+    }
+
+    /**
+     * If input was left in the host buffer for lack of room, schedule its
+     * delivery now that there is room.
+     */
+    private void resumeReceiving() {
+	synchronized (hostBuffer) {
+	    if (hostCount == 0 || receivePending)
+		return;
+
+	    receivePending = true;
 	}
+
+	privilege.interrupt.schedule(Stats.ConsoleTime, "console read",
+				     receiveInterrupt);
     }
 
     public final int readByte() {
-	int key = incomingKey;
+	if (incomingCount == 0)
+	    return -1;
 
-	if (incomingKey != -1) {
-	    incomingKey = -1;
-	    scheduleReceiveInterrupt();
+	int key = incoming[incomingHead];
+	incomingHead = (incomingHead + 1) % incoming.length;
+	incomingCount--;
+
+	if (incomingCount > 0) {
+	    privilege.interrupt.schedule(Stats.ConsoleTime, "console read",
+					 deliverInterrupt);
 	}
+	resumeReceiving();
 
 	return key;
     }
 
-    private void scheduleSendInterrupt() {
-	privilege.interrupt.schedule(Stats.ConsoleTime, "console write",
-				     sendInterrupt);
+    public final int read(byte[] buf, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset+length <= buf.length);
+
+	int amount = Math.min(length, incomingCount);
+	int first = Math.min(amount, incoming.length - incomingHead);
+
+	System.arraycopy(incoming, incomingHead, buf, offset, first);
+	System.arraycopy(incoming, 0, buf, offset+first, amount-first);
+
+	incomingHead = (incomingHead + amount) % incoming.length;
+	incomingCount -= amount;
+
+	resumeReceiving();
+
+	return amount;
+    }
+
+    private void scheduleSendInterrupt(int length) {
+	privilege.interrupt.schedule(Stats.ConsoleTime
+				     + (length-1) * Stats.ConsoleByteTime,
+				     "console write", sendInterrupt);
     }
 
     /**
@@ -124,38 +257,77 @@ public class StandardConsole implements SerialConsole {
      */
     protected void out(int value) {
 	System.out.write(value);
-	System.out.flush();
     }	
 
+    /**
+     * Flush the bytes written to the object backing this console.
+     */
+    protected void flush() {
+	System.out.flush();
+    }
+
     private void sendInterrupt() {
-	Lib.assertTrue(outgoingKey != -1);
+	Lib.assertTrue(outgoingCount > 0);
 
-	out(outgoingKey);
-	outgoingKey = -1;
+	for (int i=0; i<outgoingCount; i++)
+	    out(outgoing[i] & 0xFF);
+	flush();
 
-	privilege.stats.numConsoleWrites++;
+	privilege.stats.numConsoleWrites += outgoingCount;
+	outgoingCount = 0;
 
 	if (sendInterruptHandler != null)
 	    sendInterruptHandler.run();
     }
 
     public final void writeByte(int value) {
-	if (outgoingKey == -1)
-	    scheduleSendInterrupt();
+	if (outgoingCount == 0)
+	    scheduleSendInterrupt(1);
 	
-	outgoingKey = value&0xFF;
+	outgoing[0] = (byte) value;
+	outgoingCount = 1;
+    }
+
+    public final void write(byte[] buf, int offset, int length) {
+	Lib.assertTrue(outgoingCount == 0 && length > 0 && offset >= 0 &&
+		       offset+length <= buf.length);
+
+	if (outgoing.length < length)
+	    outgoing = new byte[length];
+
+	System.arraycopy(buf, offset, outgoing, 0, length);
+	outgoingCount = length;
+
+	scheduleSendInterrupt(length);
     }
 
     private Privilege privilege = null;
 
     private Runnable receiveInterrupt;
+    private Runnable deliverInterrupt;
     private Runnable sendInterrupt;
 
     private Runnable receiveInterruptHandler = null;
     private Runnable sendInterruptHandler = null;
 
-    private int incomingKey = -1;
-    private int outgoingKey = -1;
+    /** Received bytes not yet read. */
+    private byte[] incoming = new byte[256];
+    private int incomingHead = 0, incomingCount = 0;
+
+    /** Where input comes from. */
+    private InputStream source = null;
+    /**
+     * Bytes read by the host input thread and not yet received. Shared with
+     * that thread, and its lock.
+     */
+    private byte[] hostBuffer = new byte[4096];
+    private int hostHead = 0, hostCount = 0;
+    /** Set while a receive interrupt is posted or scheduled. */
+    private boolean receivePending = false;
+
+    /** The bytes being sent. */
+    private byte[] outgoing = new byte[1];
+    private int outgoingCount = 0;
 
     private boolean prevCarriageReturn = false;
 }
@@ -84,6 +84,11 @@ public final class Stats {
      * character.
      */
     public static final int ConsoleTime = 100;
+    /**
+     * The amount of simulated time required for the console to send each
+     * character of a block after the first.
+     */
+    public static final int ConsoleByteTime = 1;
     /**
      * The amount of simulated time required for the network to handle a
      * packet.
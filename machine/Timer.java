@@ -13,6 +13,10 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is
  * a small degree of randomness here, so interrupts do not occur exactly every
  * 500 ticks.
+ *
+ * <p>
+ * The timer also has a one-shot alarm, which interrupts once at a time chosen
+ * by the kernel, with no jitter.
  */
 public final class Timer {
     /**
@@ -37,6 +41,10 @@ public final class Timer {
 		}
 	    };
 
+	alarmInterrupt = new Runnable() {
+		public void run() { alarmInterrupt(); }
+	    };
+
 	scheduleInterrupt();
     }
 
@@ -50,6 +58,35 @@ public final class Timer {
 	this.handler = handler;
     }
 
+    /**
+     * Set the callback to use as the one-shot alarm handler.
+     *
+     * @param	handler		the alarm interrupt handler.
+     */
+    public void setAlarmHandler(Runnable handler) {
+	this.alarmHandler = handler;
+    }
+
+    /**
+     * Arm the one-shot alarm, replacing any earlier setting. The alarm
+     * handler is called once, at the first clock tick at or after
+     * <i>time</i>; if <i>time</i> has already passed, at the next tick.
+     *
+     * @param	time	the time at which to interrupt.
+     */
+    public void setAlarm(long time) {
+	alarmTime = time;
+	privilege.interrupt.schedule(Math.max(time - getTime(), 1), "alarm",
+				     alarmInterrupt);
+    }
+
+    /**
+     * Disarm the one-shot alarm.
+     */
+    public void cancelAlarm() {
+	alarmTime = -1;
+    }
+
     /**
      * Get the current time.
      *
@@ -69,6 +106,20 @@ public final class Timer {
 	    handler.run();
     }
 
+    /**
+     * An alarm interrupt is scheduled every time the alarm is armed, so
+     * the ones for settings that have since been replaced do nothing.
+     */
+    private void alarmInterrupt() {
+	if (alarmTime < 0 || getTime() < alarmTime)
+	    return;
+
+	alarmTime = -1;
+
+	if (alarmHandler != null)
+	    alarmHandler.run();
+    }
+
     private void scheduleInterrupt() {
 	int delay = Stats.TimerTicks;
 	delay += Lib.random(delay/10) - (delay/20);
@@ -83,6 +134,11 @@ public final class Timer {
     private long lastTimerInterrupt;
     private Runnable timerInterrupt;
     private Runnable autoGraderInterrupt;
+    private Runnable alarmInterrupt;
+
+    /** The time the alarm is set for, or -1 if it is not armed. */
+    private long alarmTime = -1;
+    private Runnable alarmHandler = null;
 
     private Privilege privilege;
     private Runnable handler = null;
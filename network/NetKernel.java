@@ -110,9 +110,11 @@ public class NetKernel extends VMKernel {
     }
     
     /**
-     * Terminate this kernel. Never returns.
+     * Terminate this kernel. Prints the mailbox statistics, then terminates
+     * the VM kernel. Never returns.
      */
     public void terminate() {
+	postOffice.printStats();
 	super.terminate();
     }
 
@@ -3,6 +3,8 @@ package nachos.network;
 import nachos.machine.*;
 import nachos.threads.*;
 
+import java.util.ArrayList;
+
 /**
  * A collection of message queues, one for each local port. A
  * <tt>PostOffice</tt> interacts directly with the network hardware. Because
@@ -10,25 +12,34 @@ import nachos.threads.*;
  * corrupted, but they might get lost.
  *
  * <p>
- * The post office uses a "postal worker" thread to wait for messages to arrive
- * from the network and to place them in the appropriate queues. This cannot
- * be done in the receive interrupt handler because each queue (implemented
- * with a <tt>SynchList</tt>) is protected by a lock.
+ * The receive interrupt handler defers to a work queue, whose workers take
+ * each message from the network and place it in the appropriate queue. This
+ * cannot be done in the receive interrupt handler because each queue
+ * (implemented with a <tt>SynchList</tt>) is protected by a lock. The work
+ * queue is serial, so messages are delivered one at a time, and mail to a
+ * port is queued in the order it arrived, as the single postal delivery
+ * thread used to do.
+ *
+ * <p>
+ * Each mailbox holds at most <tt>PostOffice.mailboxCapacity</tt> messages.
+ * Mail that arrives for a full mailbox is dropped, just as the network may
+ * drop it, so a port nobody reads cannot use up memory or hold up delivery
+ * to the other ports.
  */
 public class PostOffice {
     /**
-     * Allocate a new post office, using an array of <tt>SynchList</tt>s.
-     * Register the interrupt handlers with the network hardware and start the
-     * "postal worker" thread.
+     * Allocate a new post office, using a list of <tt>SynchList</tt>s.
+     * Register the interrupt handlers with the network hardware.
      */
     public PostOffice() {
-	messageReceived = new Semaphore(0);
 	messageSent = new Semaphore(0);
 	sendLock = new Lock();
 
-	queues = new SynchList[MailMessage.portLimit];
-	for (int i=0; i<queues.length; i++)
-	    queues[i] = new SynchList();
+	int capacity = Config.getInteger("PostOffice.mailboxCapacity", 64);
+
+	queues = new ArrayList<SynchList<MailMessage>>();
+	for (int i=0; i<MailMessage.portLimit; i++)
+	    queues.add(new SynchList<MailMessage>(capacity, true));
 
 	Runnable receiveHandler = new Runnable() {
 	    public void run() { receiveInterrupt(); }
@@ -39,11 +50,10 @@ public class PostOffice {
 	Machine.networkLink().setInterruptHandlers(receiveHandler,
 						   sendHandler);
 
-	KThread t = new KThread(new Runnable() {
+	deliverWork = new Runnable() {
 		public void run() { postalDelivery(); }
-	    });
-
-	t.fork();
+	    };
+	deliveries = new WorkQueue("network", 0, true);
     }
 
     /**
@@ -54,11 +64,11 @@ public class PostOffice {
      * @return	the message received.
      */
     public MailMessage receive(int port) {
-	Lib.assertTrue(port >= 0 && port < queues.length);
+	Lib.assertTrue(port >= 0 && port < queues.size());
 
 	Lib.debug(dbgNet, "waiting for mail on port " + port);
 
-	MailMessage mail = (MailMessage) queues[port].removeFirst();
+	MailMessage mail = queues.get(port).removeFirst();
 
 	if (Lib.test(dbgNet))
 	    System.out.println("got mail on port " + port + ": " + mail);
@@ -67,29 +77,37 @@ public class PostOffice {
     }
 
     /**
-     * Wait for incoming messages, and then put them in the correct mailbox.
+     * The bottom half of the receive interrupt. Take the message that arrived
+     * and put it in the correct mailbox.
      */
     private void postalDelivery() {
-	while (true) {
-	    messageReceived.P();
+	Packet p = Machine.networkLink().receive();
 
-	    Packet p = Machine.networkLink().receive();
+	MailMessage mail;
 
-	    MailMessage mail;
+	try {
+	    mail = new MailMessage(p);
+	}
+	catch (MalformedPacketException e) {
+	    return;
+	}
 
-	    try {
-		mail = new MailMessage(p);
-	    }
-	    catch (MalformedPacketException e) {
-		continue;
-	    }
+	if (Lib.test(dbgNet))
+	    System.out.println("delivering mail to port " + mail.dstPort
+			       + ": " + mail);
 
-	    if (Lib.test(dbgNet))
-		System.out.println("delivering mail to port " + mail.dstPort
-				   + ": " + mail);
+	// atomically add message to the mailbox and wake a waiting thread
+	if (!queues.get(mail.dstPort).add(mail))
+	    Lib.debug(dbgNet, "mailbox " + mail.dstPort + " full, dropped mail");
+    }
 
-	    // atomically add message to the mailbox and wake a waiting thread
-	    queues[mail.dstPort].add(mail);
+    /**
+     * Print the statistics of every mailbox that has received mail.
+     */
+    public void printStats() {
+	for (int i=0; i<queues.size(); i++) {
+	    if (queues.get(i).getMaxSize() > 0)
+		queues.get(i).printStats("Mailbox " + i);
 	}
     }
 
@@ -98,7 +116,7 @@ public class PostOffice {
      * link.
      */
     private void receiveInterrupt() {
-	messageReceived.V();
+	deliveries.enqueue(deliverWork);
     }
 
     /**
@@ -125,8 +143,9 @@ public class PostOffice {
 	messageSent.V();
     }
 
-    private SynchList[] queues;
-    private Semaphore messageReceived;	// V'd when a message can be dequeued
+    private ArrayList<SynchList<MailMessage>> queues;
+    private Runnable deliverWork;
+    private WorkQueue deliveries;
     private Semaphore messageSent;	// V'd when a message can be queued
     private Lock sendLock;
 
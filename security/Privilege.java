@@ -149,6 +149,16 @@ public abstract class Privilege {
 	 * @param	handler	the interrupt handler to call.
 	 */
 	public void schedule(long when, String type, Runnable handler);
+
+	/**
+	 * Post an interrupt to occur at the next tick. Unlike the other
+	 * methods here, this may be called from a host thread outside the
+	 * simulation, such as one waiting for input.
+	 *
+	 * @param	type	a name for the type of interrupt being posted.
+	 * @param	handler	the interrupt handler to call.
+	 */
+	public void post(String type, Runnable handler);
 	
 	/**
 	 * Advance the simulated time.
@@ -6,6 +6,10 @@
 #define MAXARGSIZE	16
 #define MAXARGS		16
 
+/* where the shell keeps its own standard input and output during a pipeline */
+#define SAVEDINPUT	14
+#define SAVEDOUTPUT	15
+
 /**
  * tokenizeCommand
  *
@@ -108,8 +112,93 @@ static int tokenizeCommand(char* command, int maxTokens, char *tokens[], char* s
     return numTokens;
 }
 
+/**
+ * Wait for a child to finish and report how it finished.
+ */
+static void waitfor(int pid) {
+    int status;
+
+    switch (join(pid, &status)) {
+    case -1:
+	printf("join: Invalid process ID.\n");
+	break;
+    case 0:
+	printf("\n[%d] Unhandled exception\n", pid);
+	break;
+    case 1:
+	printf("\n[%d] Done (%d)\n", pid, status);
+	break;
+    }
+}
+
+/**
+ * Run argv[0] with its standard input and output connected to inputFD and
+ * outputFD, restoring the shell's own afterwards.
+ *
+ * Returns the child's process ID, or -1 if exec failed.
+ */
+static int execwith(int argc, char *argv[], int inputFD, int outputFD) {
+    char prog[BUFFERSIZE];
+    int pid;
+
+    strcpy(prog, argv[0]);
+    strcat(prog, ".coff");
+
+    dup2(inputFD, fdStandardInput);
+    dup2(outputFD, fdStandardOutput);
+
+    pid = exec(prog, argc, argv);
+
+    dup2(SAVEDINPUT, fdStandardInput);
+    dup2(SAVEDOUTPUT, fdStandardOutput);
+
+    if (pid == -1)
+	printf("%s: exec failed.\n", argv[0]);
+    return pid;
+}
+
+/**
+ * Run "left | right": argv[split] is the "|". Both programs run at once, the
+ * output of the left one streaming through a pipe to the input of the right
+ * one.
+ */
+static void runpipeline(int argc, char *argv[], int split, int background) {
+    int fds[2], left, right;
+
+    if (split == 0 || split == argc-1) {
+	printf("|: Expression Syntax.\n");
+	return;
+    }
+
+    if (pipe(fds) == -1) {
+	printf("pipe failed.\n");
+	return;
+    }
+
+    dup2(fdStandardInput, SAVEDINPUT);
+    dup2(fdStandardOutput, SAVEDOUTPUT);
+
+    left = execwith(split, argv, SAVEDINPUT, fds[1]);
+    close(fds[1]);
+    right = execwith(argc-split-1, argv+split+1, fds[0], SAVEDOUTPUT);
+    close(fds[0]);
+
+    close(SAVEDINPUT);
+    close(SAVEDOUTPUT);
+
+    if (background) {
+	printf("\n[%d] [%d]\n", left, right);
+	return;
+    }
+
+    if (left != -1)
+	waitfor(left);
+    if (right != -1)
+	waitfor(right);
+}
+
 void runline(char* line) {
-    int pid, background, status;
+    int pid, background, i;
    
     char args[BUFFERSIZE], prog[BUFFERSIZE];
     char *argv[MAXARGS];
@@ -126,6 +215,13 @@ void runline(char* line) {
 	background = 0;
     }
 
+    for (i=0; i<argc; i++) {
+	if (strcmp(argv[i], "|") == 0) {
+	    runpipeline(argc, argv, i, background);
+	    return;
+	}
+    }
+
     if (argc > 0) {
 	if (strcmp(argv[0], "exit")==0) {
 	    if (argc == 1) {
@@ -170,17 +266,7 @@ void runline(char* line) {
 	}
 
 	if (!background) {
-	    switch (join(pid, &status)) {
-	    case -1:
-		printf("join: Invalid process ID.\n");
-		break;
-	    case 0:
-		printf("\n[%d] Unhandled exception\n", pid);
-		break;
-	    case 1:
-		printf("\n[%d] Done (%d)\n", pid, status);
-		break;
-	    }
+	    waitfor(pid);
 	}
 	else {
 	    printf("\n[%d]\n", pid);
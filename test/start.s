@@ -67,3 +67,6 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(pipe, syscallPipe)
+	SYSCALLSTUB(dup2, syscallDup2)
+	SYSCALLSTUB(fork, syscallFork)
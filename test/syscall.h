@@ -25,6 +25,9 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallPipe		13
+#define syscallDup2		14
+#define syscallFork		15
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -214,6 +217,48 @@ int close(int fileDescriptor);
  */
 int unlink(char *name);
 
+/**
+ * Create a pipe: a one-way stream kept in kernel memory. Stores a file
+ * descriptor for reading the pipe in fds[0] and one for writing it in fds[1].
+ *
+ * read() on the read end waits until some bytes are in the pipe and returns
+ * them, or returns 0 once the pipe is empty and every descriptor referring to
+ * the write end has been closed. write() on the write end waits while the pipe
+ * is full; if every descriptor referring to the read end is closed, write()
+ * returns the number of bytes that went into the pipe, or -1 if none did.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int pipe(int fds[2]);
+
+/**
+ * Make newfd refer to the same file or stream as oldfd, closing newfd first
+ * if it was in use. The two descriptors share the file position, and the file
+ * is not closed until both are.
+ *
+ * The standard input and output of a process started by exec() refer to
+ * whatever its parent's descriptors 0 and 1 refer to, so a shell can connect
+ * programs with a pipe by using dup2() before calling exec().
+ *
+ * Returns newfd on success, or -1 if an error occurred.
+ */
+int dup2(int oldfd, int newfd);
+
+/**
+ * Create a new process that is a copy of the current one: the same memory,
+ * the same registers and the same open files. Both processes return from
+ * fork(), the child with 0 and the parent with the child's process ID, which
+ * it can pass to join().
+ *
+ * Memory is not copied when fork() is called. The two processes share it
+ * until one of them writes a page, when the writer gets its own copy of that
+ * page.
+ *
+ * Returns the child's process ID in the parent, 0 in the child, or -1 if an
+ * error occurred.
+ */
+int fork();
+
 /**
  * Map the file referenced by fileDescriptor into memory at address. The file
  * may be as large as 0x7FFFFFFF bytes.
@@ -0,0 +1,23 @@
+#include "syscall.h"
+
+/* Each process must run the code after fork() exactly once. */
+int main() {
+	int count = 0;
+	int pid = fork();
+	count++;
+	if (pid == 0)
+		exit(count);
+	if (pid < 0) {
+		printf("fork failed\n");
+		exit(1);
+	}
+	int status, value;
+	value = join(pid, &status);
+	printf("fork %d %d %d %d\n", pid, value, status, count);
+	if (value != 1 || status != 1 || count != 1) {
+		printf("failed\n");
+		exit(1);
+	}
+	printf("ok\n");
+	exit(0);
+}
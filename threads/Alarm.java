@@ -1,11 +1,26 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.*;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Pending timeouts are kept in a hierarchical timing wheel. Level <i>L</i>
+ * has 64 slots, each <tt>64^L</tt> ticks wide, and a timeout sits on the
+ * level of the highest base-64 digit in which its time differs from the
+ * wheel's current time. Adding and cancelling a timeout are O(1), and each
+ * timeout moves down at most once per level before it fires. Instead of
+ * checking for sleepers on every timer interrupt, the alarm sets the timer's
+ * one-shot alarm for the start of the earliest occupied slot, so a thread
+ * wakes at the first tick at or after its wake time.
+ *
+ * <p>
+ * The seven levels cover <tt>2^42</tt> ticks. A timeout further off than
+ * that, up to <tt>Long.MAX_VALUE</tt> for a wait that should never run
+ * out, waits on an overflow list and is put back into the wheel each time
+ * the top level wraps around.
  */
 public class Alarm {
     /**
@@ -15,80 +30,441 @@ public class Alarm {
      * <p><b>Note</b>: Nachos will not function correctly with more than one
      * alarm.
      */
-    private PriorityQueue<AlarmQueueEntry> alarmQueue;
-
     public Alarm() {
 	Machine.timer().setInterruptHandler(new Runnable() {
 		public void run() { timerInterrupt(); }
 	    });
+	Machine.timer().setAlarmHandler(new Runnable() {
+		public void run() { alarmInterrupt(); }
+	    });
+	Machine.interrupt().setReturnHandler(new Runnable() {
+		public void run() { interruptReturn(); }
+	    });
 
-    alarmQueue = new PriorityQueue<AlarmQueueEntry>();
+	current = Machine.timer().getTime();
     }
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
-     * periodically (approximately every 500 clock ticks). Causes the current
-     * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * periodically (approximately every 500 clock ticks). Asks the scheduler
+     * whether the current thread should be preempted. If so, the current
+     * thread yields on return from the interrupt, once every other interrupt
+     * that is due has been handled.
      */
     public void timerInterrupt() {
-	//KThread.currentThread().yield();
-    
-    boolean intStatus = Machine.interrupt().disable();
+	if (ThreadedKernel.scheduler.shouldPreempt(KThread.currentThread()))
+	    preemptPending = true;
+    }
+
+    /**
+     * The one-shot alarm handler. Fires every timeout that is due, sets the
+     * alarm for the next one, and since a woken thread may outrank the
+     * current one, asks the scheduler whether to preempt.
+     */
+    private void alarmInterrupt() {
+	programmed = -1;
 
-    while (!alarmQueue.isEmpty()){
-        AlarmQueueEntry entry = alarmQueue.peek();
-        if (entry.wakeTime > Machine.timer().getTime()) break;
-        entry.waitThread.ready();
-        alarmQueue.remove();
+	expire(Machine.timer().getTime());
+	program();
+
+	if (ThreadedKernel.scheduler.shouldPreempt(KThread.currentThread()))
+	    preemptPending = true;
     }
 
-    Machine.interrupt().restore(intStatus);
+    /**
+     * Called on return from interrupt. Preempts the current thread if the
+     * last timer interrupt asked for it.
+     */
+    private void interruptReturn() {
+	if (preemptPending) {
+	    preemptPending = false;
+	    KThread.preempt();
+	}
     }
 
     /**
      * Put the current thread to sleep for at least <i>x</i> ticks,
-     * waking it up in the timer interrupt handler. The thread must be
-     * woken up (placed in the scheduler ready set) during the first timer
-     * interrupt where
+     * waking it up in the alarm interrupt handler. The thread is woken up
+     * (placed in the scheduler ready set) at the first clock tick where
      *
      * <p><blockquote>
      * (current time) >= (WaitUntil called time)+(x)
      * </blockquote>
      *
+     * <p>
+     * A thread that needs to be able to cut its sleep short should use
+     * <tt>startWait()</tt> instead.
+     *
      * @param	x	the minimum number of clock ticks to wait.
      *
      * @see	nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
-	// for now, cheat just to get something working (busy waiting is bad)
+	if (x <= 0)
+	    return;
+
+	startWait(x).await();
+    }
+
+    /**
+     * Start a timeout that the current thread can sleep on with
+     * <tt>Timeout.await()</tt>. The timeout runs out at least <i>x</i> ticks
+     * from now, and until then any thread can cancel it.
+     *
+     * @param	x	the minimum number of clock ticks to wait.
+     * @return	the new timeout.
+     */
+    public Timeout startWait(long x) {
+	return add(new Timeout(x, KThread.currentThread(), null, null));
+    }
+
+    /**
+     * Call <i>handler</i> from the alarm interrupt, at least <i>x</i> ticks
+     * from now, unless the returned timeout is cancelled first. The handler
+     * runs with interrupts disabled, so it must not sleep. Unlike a sleeping
+     * thread, a scheduled handler costs only the timeout itself, so any
+     * number of them can be pending.
+     *
+     * @param	x	the minimum number of clock ticks to wait.
+     * @param	handler	the callback.
+     * @return	the new timeout.
+     */
+    public Timeout schedule(long x, Runnable handler) {
+	Lib.assertTrue(handler != null);
+
+	return add(new Timeout(x, null, null, handler));
+    }
+
+    /**
+     * Put the current thread, which the caller has just added to
+     * <i>waitQueue</i>, to sleep until it is woken through
+     * <i>waitQueue</i> or at least <i>x</i> ticks have passed. If the time
+     * runs out first, the alarm interrupt removes the thread from
+     * <i>waitQueue</i> and wakes it. If the thread is woken first, its
+     * timeout is cancelled. Must be called with interrupts disabled.
+     *
+     * @param	waitQueue	the queue the current thread is waiting in.
+     * @param	x		the maximum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the thread was woken through
+     *		<i>waitQueue</i>, or <tt>false</tt> if the time ran out.
+     */
+    boolean waitOn(ThreadQueue waitQueue, long x) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Timeout timeout =
+	    add(new Timeout(x, KThread.currentThread(), waitQueue, null));
+	KThread.sleep();
+
+	if (timeout.fired)
+	    return false;
+
+	timeout.cancel();
+	return true;
+    }
+
+    /**
+     * A pending wakeup or callback, returned so that it can be cancelled.
+     */
+    public class Timeout {
+	Timeout(long x, KThread thread, ThreadQueue waitQueue,
+		Runnable handler) {
+	    long now = Machine.timer().getTime();
+	    // saturate rather than wrap around to a time in the past
+	    this.time = (x < Long.MAX_VALUE - now) ? now + Math.max(x, 0)
+						     : Long.MAX_VALUE;
+	    this.thread = thread;
+	    this.waitQueue = waitQueue;
+	    this.handler = handler;
+	}
+
+	/**
+	 * Cancel this timeout, so that it never fires. If a thread is
+	 * sleeping on it in <tt>await()</tt>, wake that thread.
+	 *
+	 * @return	<tt>true</tt> if the timeout was cancelled, or
+	 *		<tt>false</tt> if it had already fired or been cancelled.
+	 */
+	public boolean cancel() {
+	    boolean intStatus = Machine.interrupt().disable();
+
+	    boolean wasPending = pending;
+	    if (pending) {
+		unlink(this);
+
+		if (sleeping) {
+		    sleeping = false;
+		    thread.ready();
+		}
+	    }
+
+	    Machine.interrupt().restore(intStatus);
+	    return wasPending;
+	}
+
+	/**
+	 * Sleep until this timeout fires or is cancelled. Only the thread
+	 * that started the timeout can wait on it.
+	 *
+	 * @return	<tt>true</tt> if the time ran out, or <tt>false</tt> if
+	 *		the timeout was cancelled.
+	 */
+	public boolean await() {
+	    Lib.assertTrue(thread == KThread.currentThread());
+	    Lib.assertTrue(waitQueue == null);
+
+	    boolean intStatus = Machine.interrupt().disable();
+
+	    if (pending) {
+		sleeping = true;
+		KThread.sleep();
+	    }
+
+	    Machine.interrupt().restore(intStatus);
+	    return fired;
+	}
+
+	/**
+	 * Return the time at which this timeout runs out.
+	 *
+	 * @return	the time, in clock ticks.
+	 */
+	public long getTime() {
+	    return time;
+	}
+
+	private long time;
+	private KThread thread;
+	/** The queue of a timed wait, or <tt>null</tt> for a plain sleep. */
+	private ThreadQueue waitQueue;
+	private Runnable handler;
+
+	/** Set while the timeout is in the wheel. */
+	private boolean pending = false;
+	/** Set when the time ran out and the timeout did its job. */
+	private boolean fired = false;
+	/** Set while <tt>thread</tt> is asleep in <tt>await()</tt>. */
+	private boolean sleeping = false;
+
+	private int level, slot;
+	private Timeout prev = null, next = null;
+    }
+
+    /**
+     * Put a new timeout in the wheel and move the alarm earlier if it has
+     * to be. A timeout that is already due fires at the next tick.
+     */
+    private Timeout add(Timeout timeout) {
 	boolean intStatus = Machine.interrupt().disable();
 
-    long wakeTime = Machine.timer().getTime() + x;
-	//while (wakeTime > Machine.timer().getTime())
-	//    KThread.yield();
-    alarmQueue.add(new AlarmQueueEntry(KThread.currentThread(), wakeTime));
-    KThread.sleep();
+	if (timeout.time <= current)
+	    timeout.time = current + 1;
 
-    Machine.interrupt().restore(intStatus);
+	insert(timeout);
+	program();
+
+	Machine.interrupt().restore(intStatus);
+	return timeout;
     }
 
-    public class AlarmQueueEntry implements Comparable<AlarmQueueEntry>{
-        private KThread waitThread;
-        private long wakeTime;
+    private void insert(Timeout timeout) {
+	Lib.assertTrue(timeout.time > current);
+
+	long differ = timeout.time ^ current;
+	int level = (63 - Long.numberOfLeadingZeros(differ)) / slotBits;
+
+	timeout.prev = null;
+	timeout.pending = true;
 
-        public AlarmQueueEntry(KThread waitThread, long wakeTime){
-            this.waitThread = waitThread;
-            this.wakeTime = wakeTime;
-        }
+	// beyond the top level's current rotation
+	if (level >= numLevels) {
+	    timeout.level = numLevels;
+	    timeout.next = overflow;
+	    if (overflow != null)
+		overflow.prev = timeout;
+	    overflow = timeout;
+	    return;
+	}
 
-        public int compareTo(AlarmQueueEntry other){
-            if (this.wakeTime > other.wakeTime) return 1;
-            if (this.wakeTime < other.wakeTime) return -1;
-            return 0;
-        }
+	int slot = (int) (timeout.time >>> (level*slotBits)) & (numSlots-1);
+
+	timeout.level = level;
+	timeout.slot = slot;
+	timeout.next = slots[level][slot];
+	if (timeout.next != null)
+	    timeout.next.prev = timeout;
+	slots[level][slot] = timeout;
+	occupied[level] |= 1L << slot;
+    }
+
+    private void unlink(Timeout timeout) {
+	int level = timeout.level, slot = timeout.slot;
+
+	if (timeout.prev != null)
+	    timeout.prev.next = timeout.next;
+	else if (level == numLevels)
+	    overflow = timeout.next;
+	else
+	    slots[level][slot] = timeout.next;
+	if (timeout.next != null)
+	    timeout.next.prev = timeout.prev;
+	if (level < numLevels && slots[level][slot] == null)
+	    occupied[level] &= ~(1L << slot);
+
+	timeout.prev = timeout.next = null;
+	timeout.pending = false;
+    }
+
+    /**
+     * Return the lowest level with an occupied slot, or -1 if the wheel is
+     * empty. Every timeout on that level is due before any on a higher one.
+     */
+    private int lowestLevel() {
+	for (int level=0; level<numLevels; level++) {
+	    if (occupied[level] != 0)
+		return level;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Return the time the top level next wraps around, when the overflow
+     * list is put back into the wheel. Every timeout in the wheel is due
+     * before then.
+     */
+    private long nextRotation() {
+	int shift = numLevels*slotBits;
+	return ((current >>> shift) + 1) << shift;
+    }
+
+    /**
+     * Return the time the specified slot of the current rotation begins. On
+     * level 0 that is exactly the time of every timeout in the slot.
+     */
+    private long slotStart(int level, int slot) {
+	int shift = level*slotBits;
+	return (current >>> (shift+slotBits) << (shift+slotBits))
+	    | ((long) slot << shift);
+    }
+
+    /**
+     * Advance the wheel to <i>now</i>. Each slot whose start has passed is
+     * emptied in turn: its due timeouts fire, and the rest move down to
+     * finer slots. Once the wheel is empty, the overflow list is emptied the
+     * same way when the top level wraps around.
+     */
+    private void expire(long now) {
+	while (true) {
+	    int level = lowestLevel(), slot = 0;
+	    long start;
+	    if (level >= 0) {
+		slot = Long.numberOfTrailingZeros(occupied[level]);
+		start = slotStart(level, slot);
+	    }
+	    else if (overflow != null) {
+		start = nextRotation();
+	    }
+	    else {
+		break;
+	    }
+
+	    if (start > now)
+		break;
+
+	    current = start;
+
+	    Timeout timeout;
+	    if (level >= 0) {
+		while ((timeout = slots[level][slot]) != null) {
+		    unlink(timeout);
+		    refile(timeout);
+		}
+	    }
+	    else {
+		// detach the list first, timeouts still too far off rejoin it
+		Timeout list = overflow;
+		overflow = null;
+		while ((timeout = list) != null) {
+		    list = timeout.next;
+		    timeout.pending = false;
+		    refile(timeout);
+		}
+	    }
+	}
+
+	if (now > current)
+	    current = now;
+    }
+
+    /**
+     * Fire a timeout taken out of the wheel if it is due, or put it back in
+     * a finer slot.
+     */
+    private void refile(Timeout timeout) {
+	if (timeout.time <= current)
+	    fire(timeout);
+	else
+	    insert(timeout);
+    }
+
+    private void fire(Timeout timeout) {
+	if (timeout.handler != null) {
+	    timeout.fired = true;
+	    timeout.handler.run();
+	}
+	else if (timeout.waitQueue != null) {
+	    // a timed wait runs out only if the thread is still in its queue
+	    if (timeout.waitQueue.remove(timeout.thread)) {
+		timeout.fired = true;
+		timeout.thread.ready();
+	    }
+	}
+	else {
+	    timeout.fired = true;
+	    if (timeout.sleeping) {
+		timeout.sleeping = false;
+		timeout.thread.ready();
+	    }
+	}
+    }
+
+    /**
+     * Set the timer's alarm for the start of the earliest occupied slot, or
+     * if only the overflow list is occupied, for the top level's next wrap.
+     * Does nothing if the alarm is set for then already.
+     */
+    private void program() {
+	int level = lowestLevel();
+	long next;
+	if (level >= 0)
+	    next = slotStart(level, Long.numberOfTrailingZeros(occupied[level]));
+	else if (overflow != null)
+	    next = nextRotation();
+	else
+	    return;
+
+	if (next != programmed) {
+	    programmed = next;
+	    Machine.timer().setAlarm(next);
+	}
     }
 
+    private static final int slotBits = 6;
+    private static final int numSlots = 1 << slotBits;
+    private static final int numLevels = 7;
+
+    private Timeout[][] slots = new Timeout[numLevels][numSlots];
+    /** One bit per occupied slot, for each level. */
+    private long[] occupied = new long[numLevels];
+    /** Timeouts beyond the top level's current rotation. */
+    private Timeout overflow = null;
+    /** The time the wheel has advanced to. */
+    private long current;
+    /** The time the timer's alarm is set for, or -1. */
+    private long programmed = -1;
+
+    private boolean preemptPending = false;
+
     public static void sleepAWhile(long sleepTime){
         long timeStamp1 = Machine.timer().getTime();
         System.out.println(KThread.currentThread().toString() + ": going to sleep (time " + Long.toString(timeStamp1) + ")");
@@ -144,5 +520,95 @@ public class Alarm {
         thread3.join();
         thread4.join();
         
+	// a sleep cut short by another thread
+	final Timeout[] handle = new Timeout[1];
+	final long[] slept = new long[1];
+	KThread sleeper = new KThread(new Runnable() {
+		public void run() {
+		    long start = Machine.timer().getTime();
+		    handle[0] = ThreadedKernel.alarm.startWait(100000);
+		    Lib.assertTrue(!handle[0].await());
+		    slept[0] = Machine.timer().getTime() - start;
+		}
+	    }).setName("sleeper");
+	sleeper.fork();
+	ThreadedKernel.alarm.waitUntil(1000);
+	Lib.assertTrue(handle[0].cancel());
+	Lib.assertTrue(!handle[0].cancel());
+	sleeper.join();
+	System.out.println("cancelled a 100000 tick sleep after " + slept[0]);
+
+	// timeouts past the wheel's range neither crash nor fire early
+	final boolean[] farFired = new boolean[1];
+	Runnable farHandler = new Runnable() {
+		public void run() { farFired[0] = true; }
+	    };
+	Timeout far = ThreadedKernel.alarm.schedule(1L << 50, farHandler);
+	Timeout never =
+	    ThreadedKernel.alarm.schedule(Long.MAX_VALUE, farHandler);
+	Lib.assertTrue(never.getTime() == Long.MAX_VALUE);
+
+	final Lock lock = new Lock();
+	final boolean[] acquired = new boolean[1];
+	lock.acquire();
+	KThread waiter = new KThread(new Runnable() {
+		public void run() {
+		    acquired[0] = lock.tryAcquire(Long.MAX_VALUE);
+		    if (acquired[0])
+			lock.release();
+		}
+	    }).setName("waiter");
+	waiter.fork();
+	ThreadedKernel.alarm.waitUntil(1000);
+	lock.release();
+	waiter.join();
+
+	Lib.assertTrue(!farFired[0] && far.cancel() && never.cancel());
+	Lib.assertTrue(acquired[0]);
+	System.out.println("waited on a lock with no time limit");
+
+	timeoutBenchmark(100000, 200000);
+    }
+
+    /**
+     * Schedule <i>n</i> callbacks at random times over the next
+     * <i>spread</i> ticks, cancel every other one, and check that the rest
+     * fire within a clock tick of their time.
+     */
+    private static void timeoutBenchmark(int n, final int spread) {
+	final int[] numFired = new int[1];
+	final long[] maxLateness = new long[1];
+
+	// keep the clock still while the timeouts are set up
+	boolean intStatus = Machine.interrupt().disable();
+
+	long start = Machine.timer().getTime();
+
+	Timeout[] timeouts = new Timeout[n];
+	for (int i=0; i<n; i++) {
+	    final long x = 1 + Lib.random(spread);
+	    final long time = start + x;
+	    timeouts[i] = ThreadedKernel.alarm.schedule(x, new Runnable() {
+		    public void run() {
+			numFired[0]++;
+			maxLateness[0] = Math.max(maxLateness[0],
+						  Machine.timer().getTime() - time);
+		    }
+		});
+	}
+
+	int numCancelled = 0;
+	for (int i=0; i<n; i+=2) {
+	    if (timeouts[i].cancel())
+		numCancelled++;
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	ThreadedKernel.alarm.waitUntil(spread + 1);
+
+	System.out.println(n + " timeouts, " + numCancelled + " cancelled, "
+			   + numFired[0] + " fired, max lateness " + maxLateness[0]);
+	Lib.assertTrue(numCancelled + numFired[0] == n);
     }
 }
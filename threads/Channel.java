@@ -0,0 +1,422 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>channel</i> carries 32-bit words from speaking threads to listening
+ * threads, like a <tt>Communicator</tt>, but moves many words per wakeup.
+ *
+ * <p>
+ * A channel with a positive capacity keeps a bounded ring buffer. A speaker
+ * returns as soon as all of its words are in the buffer, and only waits while
+ * the buffer is full. A listener takes as many buffered words as it has room
+ * for, and only waits while the buffer is empty.
+ *
+ * <p>
+ * A channel with a capacity of zero is a rendezvous, as a
+ * <tt>Communicator</tt> is: a speaker does not return until listeners have
+ * taken all of its words, and listeners copy them straight out of the
+ * speaker's array. Speakers take turns, so the words of one call to
+ * <tt>speak()</tt> are never interleaved with another's.
+ *
+ * <p>
+ * Either way, each waiting thread is woken once per batch rather than once
+ * per word, and a woken thread passes the wakeup on if there is more for
+ * another thread to do.
+ */
+public class Channel {
+    /**
+     * Allocate a new channel.
+     *
+     * @param	capacity	the number of words the channel can buffer, or
+     *				0 for a rendezvous.
+     */
+    public Channel(int capacity) {
+	Lib.assertTrue(capacity >= 0);
+
+	buffer = new int[capacity];
+    }
+
+    /**
+     * Send one word through this channel.
+     *
+     * @param	word	the integer to transfer.
+     */
+    public void speak(int word) {
+	speak(new int[] { word }, 0, 1);
+    }
+
+    /**
+     * Send <i>len</i> words from <i>words</i>, starting at <i>off</i>,
+     * through this channel. Listeners receive them in order.
+     *
+     * <p>
+     * Does not return until every word is in the buffer, or with a capacity
+     * of zero, until every word has been taken by a listener.
+     *
+     * @param	words	the array of words to send.
+     * @param	off	the index of the first word to send.
+     * @param	len	the number of words to send.
+     */
+    public void speak(int[] words, int off, int len) {
+	Lib.assertTrue(off >= 0 && len >= 0 && off+len <= words.length);
+
+	lock.acquire();
+
+	if (buffer.length == 0)
+	    offer(words, off, len);
+	else
+	    put(words, off, len);
+
+	lock.release();
+    }
+
+    /**
+     * Receive one word from this channel, waiting until there is one.
+     *
+     * @return	the integer transferred.
+     */
+    public int listen() {
+	int[] word = new int[1];
+	listen(word, 0, 1);
+	return word[0];
+    }
+
+    /**
+     * Receive words from this channel into <i>buf</i>, waiting until there is
+     * at least one.
+     *
+     * @param	buf	the array to receive into.
+     * @return	the number of words received, at most <tt>buf.length</tt>.
+     */
+    public int listen(int[] buf) {
+	return listen(buf, 0, buf.length);
+    }
+
+    /**
+     * Receive up to <i>len</i> words from this channel into <i>buf</i>,
+     * starting at <i>off</i>, waiting until there is at least one.
+     *
+     * @param	buf	the array to receive into.
+     * @param	off	the index to store the first word at.
+     * @param	len	the most words to receive.
+     * @return	the number of words received.
+     */
+    public int listen(int[] buf, int off, int len) {
+	Lib.assertTrue(off >= 0 && len > 0 && off+len <= buf.length);
+
+	lock.acquire();
+
+	int amount;
+	if (buffer.length == 0)
+	    amount = take(buf, off, len);
+	else
+	    amount = get(buf, off, len);
+
+	numWords += amount;
+
+	lock.release();
+	return amount;
+    }
+
+    /**
+     * Return the number of words that can be buffered.
+     *
+     * @return	the capacity, or 0 for a rendezvous.
+     */
+    public int getCapacity() {
+	return buffer.length;
+    }
+
+    private void put(int[] words, int off, int len) {
+	while (len > 0) {
+	    while (count == buffer.length)
+		waitForSpace();
+
+	    int amount = Math.min(len, buffer.length - count);
+	    int tail = (head + count) % buffer.length;
+	    int first = Math.min(amount, buffer.length - tail);
+
+	    System.arraycopy(words, off, buffer, tail, first);
+	    System.arraycopy(words, off+first, buffer, 0, amount-first);
+
+	    count += amount;
+	    off += amount;
+	    len -= amount;
+
+	    wakeListener();
+	}
+
+	// let another speaker use the rest of the space
+	if (count < buffer.length)
+	    wakeSpeaker();
+    }
+
+    private int get(int[] buf, int off, int len) {
+	while (count == 0)
+	    waitForWords();
+
+	int amount = Math.min(len, count);
+	int first = Math.min(amount, buffer.length - head);
+
+	System.arraycopy(buffer, head, buf, off, first);
+	System.arraycopy(buffer, 0, buf, off+first, amount-first);
+
+	head = (head + amount) % buffer.length;
+	count -= amount;
+
+	wakeSpeaker();
+	// let another listener have the rest
+	if (count > 0)
+	    wakeListener();
+
+	return amount;
+    }
+
+    /**
+     * Offer the words to listeners in place, and wait until they have all
+     * been taken.
+     */
+    private void offer(int[] words, int off, int len) {
+	while (offered != null)
+	    waitForSpace();
+
+	offered = words;
+	offeredOff = off;
+	offeredLen = len;
+
+	wakeListener();
+
+	while (offeredLen > 0) {
+	    numSleeps++;
+	    taken.sleep();
+	}
+
+	offered = null;
+	wakeSpeaker();
+    }
+
+    private int take(int[] buf, int off, int len) {
+	while (offeredLen == 0)
+	    waitForWords();
+
+	int amount = Math.min(len, offeredLen);
+	System.arraycopy(offered, offeredOff, buf, off, amount);
+
+	offeredOff += amount;
+	offeredLen -= amount;
+
+	if (offeredLen == 0)
+	    taken.wake();
+	else
+	    wakeListener();
+
+	return amount;
+    }
+
+    /**
+     * The waiter counts are kept here, as <tt>Communicator</tt> keeps them,
+     * so that a wakeup nobody is waiting for costs nothing.
+     */
+    private void waitForSpace() {
+	numWaitingSpeakers++;
+	numSleeps++;
+	notFull.sleep();
+    }
+
+    private void waitForWords() {
+	numWaitingListeners++;
+	numSleeps++;
+	notEmpty.sleep();
+    }
+
+    private void wakeSpeaker() {
+	if (numWaitingSpeakers > 0) {
+	    numWaitingSpeakers--;
+	    notFull.wake();
+	}
+    }
+
+    private void wakeListener() {
+	if (numWaitingListeners > 0) {
+	    numWaitingListeners--;
+	    notEmpty.wake();
+	}
+    }
+
+    private static class Speaker implements Runnable {
+	Speaker(Channel channel, Communicator communicator, int numWords,
+		int batch) {
+	    this.channel = channel;
+	    this.communicator = communicator;
+	    this.numWords = numWords;
+	    this.batch = batch;
+	}
+
+	public void run() {
+	    int[] words = new int[batch];
+	    for (int i=0; i<words.length; i++)
+		words[i] = i;
+
+	    for (int sent=0; sent<numWords; ) {
+		int amount = Math.min(batch, numWords - sent);
+		if (channel != null) {
+		    channel.speak(words, 0, amount);
+		}
+		else {
+		    for (int i=0; i<amount; i++)
+			communicator.speak(words[i]);
+		}
+		sent += amount;
+	    }
+	}
+
+	Channel channel;
+	Communicator communicator;
+	int numWords, batch;
+    }
+
+    private static class Listener implements Runnable {
+	Listener(Channel channel, Communicator communicator, int numWords,
+		 int batch) {
+	    this.channel = channel;
+	    this.communicator = communicator;
+	    this.numWords = numWords;
+	    this.batch = batch;
+	}
+
+	public void run() {
+	    int[] buf = new int[batch];
+
+	    for (int received=0; received<numWords; ) {
+		if (channel != null)
+		    received += channel.listen(buf, 0,
+					       Math.min(batch,
+							numWords - received));
+		else {
+		    communicator.listen();
+		    received++;
+		}
+	    }
+	}
+
+	Channel channel;
+	Communicator communicator;
+	int numWords, batch;
+    }
+
+    /**
+     * Send words from several speakers to several listeners, and print how
+     * many ticks it took per word.
+     *
+     * @param	numSpeakers	the number of speaker threads.
+     * @param	numListeners	the number of listener threads.
+     * @param	numWords	the number of words each speaker sends. Must
+     *				be a multiple of <i>numListeners</i>.
+     * @param	capacity	the channel capacity, or -1 to use a
+     *				<tt>Communicator</tt> for comparison.
+     * @param	batch		the number of words each speaker sends, and
+     *				each listener asks for, per call.
+     */
+    public static void benchmark(int numSpeakers, int numListeners,
+				 int numWords, int capacity, int batch) {
+	Lib.assertTrue((numSpeakers*numWords) % numListeners == 0);
+
+	Channel channel = (capacity >= 0) ? new Channel(capacity) : null;
+	Communicator communicator =
+	    (capacity >= 0) ? null : new Communicator();
+
+	long start = Machine.timer().getTime();
+
+	KThread[] threads = new KThread[numSpeakers + numListeners];
+	for (int i=0; i<numSpeakers; i++) {
+	    threads[i] =
+		new KThread(new Speaker(channel, communicator, numWords,
+					batch)).setName("speaker " + i);
+	}
+	for (int i=0; i<numListeners; i++) {
+	    threads[numSpeakers+i] =
+		new KThread(new Listener(channel, communicator,
+					 numSpeakers*numWords / numListeners,
+					 batch)).setName("listener " + i);
+	}
+
+	for (int i=0; i<threads.length; i++)
+	    threads[i].fork();
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+
+	long ticks = Machine.timer().getTime() - start;
+	int total = numSpeakers*numWords;
+
+	System.out.println((channel == null
+			    ? "Communicator"
+			    : "Channel, capacity " + capacity + ", batch " + batch)
+			   + ", " + numSpeakers + " speakers, " + numListeners
+			   + " listeners: " + total + " words in " + ticks
+			   + " ticks, " + ((double) ticks / total)
+			   + " ticks/word"
+			   + (channel == null
+			      ? ""
+			      : ", " + channel.numSleeps + " sleeps"));
+    }
+
+    /**
+     * Test that words arrive in order in both modes, then compare throughput
+     * with a <tt>Communicator</tt>.
+     */
+    public static void selfTest() {
+	System.out.println("\n\nChannel Test");
+
+	for (int capacity=0; capacity<=8; capacity+=8) {
+	    final Channel channel = new Channel(capacity);
+	    final int[] done = new int[1];
+
+	    KThread speaker = new KThread(new Runnable() {
+		    public void run() {
+			int[] words = new int[100];
+			for (int i=0; i<words.length; i++)
+			    words[i] = i;
+			channel.speak(words, 0, words.length);
+			done[0] = channel.numWords;
+		    }
+		}).setName("speaker");
+	    speaker.fork();
+
+	    int[] buf = new int[7];
+	    int next = 0;
+	    while (next < 100) {
+		int amount = channel.listen(buf);
+		for (int i=0; i<amount; i++)
+		    Lib.assertTrue(buf[i] == next++);
+	    }
+	    speaker.join();
+
+	    System.out.println("capacity " + capacity
+			       + ": 100 words in order, speaker returned after "
+			       + done[0] + " had been taken");
+	}
+
+	benchmark(4, 4, 400, -1, 1);
+	benchmark(4, 4, 400, 0, 1);
+	benchmark(4, 4, 400, 16, 1);
+	benchmark(4, 4, 400, 16, 16);
+	benchmark(4, 4, 400, 64, 16);
+    }
+
+    private Lock lock = new Lock();
+    private Condition2 notFull = new Condition2(lock);
+    private Condition2 notEmpty = new Condition2(lock);
+    /** Where a rendezvous speaker waits for its words to be taken. */
+    private Condition2 taken = new Condition2(lock);
+
+    private int[] buffer;
+    private int head = 0, count = 0;
+
+    /** The words a rendezvous speaker is offering, or <tt>null</tt>. */
+    private int[] offered = null;
+    private int offeredOff, offeredLen = 0;
+
+    private int numWaitingSpeakers = 0, numWaitingListeners = 0;
+    private int numWords = 0, numSleeps = 0;
+}
@@ -59,9 +59,21 @@ public class Condition {
      *				<tt>wake()</tt>, or <tt>wakeAll()</tt>.
      */
     public Condition(Lock conditionLock) {
+	this(conditionLock, null);
+    }
+
+    /**
+     * Allocate a new condition variable with a name for the lock profile.
+     *
+     * @param	conditionLock	the lock associated with this condition
+     *				variable.
+     * @param	name		the name to report contention under.
+     */
+    public Condition(Lock conditionLock, String name) {
 	this.conditionLock = conditionLock;
 
 	waitQueue = new LinkedList<Semaphore>();
+	profile = LockProfile.create("Condition", name);
     }
 
     /**
@@ -79,12 +91,18 @@ public class Condition {
     public void sleep() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-	Semaphore waiter = new Semaphore(0);
+	// the waiter is part of this condition, so it is not profiled itself
+	Semaphore waiter = new Semaphore(0, (LockProfile) null);
 	waitQueue.add(waiter);
+	long waitStart = Machine.timer().getTime();
 
 	conditionLock.release();
 	waiter.P();
+	long wokenAt = Machine.timer().getTime();
 	conditionLock.acquire();	
+
+	if (profile != null)
+	    profile.reacquired(waitStart, wokenAt);
     }
 
     /**
@@ -111,4 +129,6 @@ public class Condition {
 
     private Lock conditionLock;
     private LinkedList<Semaphore> waitQueue;
+    /** The contention profile, or <tt>null</tt> if profiling is off. */
+    private LockProfile profile;
 }
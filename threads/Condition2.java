@@ -21,9 +21,21 @@ public class Condition2 {
      *				<tt>wake()</tt>, or <tt>wakeAll()</tt>.
      */
     public Condition2(Lock conditionLock) {
+	this(conditionLock, null);
+    }
+
+    /**
+     * Allocate a new condition variable with a name for the lock profile.
+     *
+     * @param	conditionLock	the lock associated with this condition
+     *				variable.
+     * @param	name		the name to report contention under.
+     */
+    public Condition2(Lock conditionLock, String name) {
 	this.conditionLock = conditionLock;
 
     waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+    profile = LockProfile.create("Condition2", name);
     }
 
     /**
@@ -36,16 +48,56 @@ public class Condition2 {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
     boolean intStatus = Machine.interrupt().disable();
+    long waitStart = Machine.timer().getTime();
 
 
 	conditionLock.release();
 
     waitQueue.waitForAccess(KThread.currentThread());
     KThread.sleep();
+    long wokenAt = Machine.timer().getTime();
 
 	conditionLock.acquire();
+
+    if (profile != null)
+        profile.reacquired(waitStart, wokenAt);
+    
+    Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release the associated lock and go to sleep on this condition
+     * variable until either another thread wakes it using <tt>wake()</tt>, or
+     * the specified number of ticks elapse. The current thread must hold the
+     * associated lock. The thread will automatically reacquire the lock
+     * before <tt>sleepFor()</tt> returns.
+     *
+     * @param	timeout	the maximum number of ticks to sleep.
+     * @return	<tt>true</tt> if the thread was woken by <tt>wake()</tt>
+     *		or <tt>wakeAll()</tt>, or <tt>false</tt> if the time ran out.
+     */
+    public boolean sleepFor(long timeout) {
+	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+    boolean intStatus = Machine.interrupt().disable();
+    long waitStart = Machine.timer().getTime();
+
+	conditionLock.release();
+
+    boolean woken = false;
+    if (timeout > 0) {
+        waitQueue.waitForAccess(KThread.currentThread());
+        woken = ThreadedKernel.alarm.waitOn(waitQueue, timeout);
+    }
+    long wokenAt = Machine.timer().getTime();
+
+	conditionLock.acquire();
+
+    if (profile != null)
+        profile.reacquired(waitStart, wokenAt);
     
     Machine.interrupt().restore(intStatus);
+    return woken;
     }
 
     /**
@@ -83,4 +135,6 @@ public class Condition2 {
 
     private Lock conditionLock;
     private ThreadQueue waitQueue = null;
+    /** The contention profile, or <tt>null</tt> if profiling is off. */
+    private LockProfile profile;
 }
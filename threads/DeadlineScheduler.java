@@ -0,0 +1,525 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.TreeSet;
+import java.util.Iterator;
+
+/**
+ * An earliest-deadline-first scheduler for periodic real-time threads.
+ *
+ * <p>
+ * A thread becomes a periodic task by calling <tt>admit()</tt> with its
+ * period and its budget, the number of ticks it needs in each period. Each
+ * period starts with a release; the job released then must finish by the
+ * next release, its absolute deadline, and the thread says it has finished
+ * by calling <tt>waitForNextPeriod()</tt>, which sleeps on the
+ * <tt>Alarm</tt> until the next release.
+ *
+ * <p>
+ * Every queue is ordered by absolute deadline, earliest first, and a thread
+ * whose deadline is earlier than that of the running thread preempts it at
+ * the next timer interrupt. Ordinary threads have no deadline; they queue in
+ * FIFO order behind every real-time thread and share what is left of the
+ * processor round-robin, with the quantum of <tt>Scheduler</tt>. A
+ * real-time thread that runs past its budget is treated as an ordinary thread
+ * until its next release, so an overrunning task cannot starve the others.
+ *
+ * <p>
+ * A task is only admitted if the total utilization, the sum of
+ * <i>budget/period</i> over all admitted tasks, stays within
+ * <tt>DeadlineScheduler.maxUtilization</tt> (1.0 if not set). Under EDF that
+ * bound is enough for every admitted task to meet its deadlines, apart from
+ * the jitter caused by the timer granularity. A task's utilization is
+ * returned when it calls <tt>leave()</tt> or when its thread finishes.
+ *
+ * <p>
+ * Deadlines are not donated; a lock's wait queue is ordered by deadline,
+ * but the lock holder keeps its own.
+ */
+public class DeadlineScheduler extends Scheduler {
+    /**
+     * Allocate a new deadline scheduler.
+     */
+    public DeadlineScheduler() {
+	maxUtilization = Config.getDouble("DeadlineScheduler.maxUtilization",
+					  1.0);
+	Lib.assertTrue(maxUtilization > 0.0);
+    }
+
+    /**
+     * Allocate a new deadline-ordered thread queue.
+     *
+     * @param	transferPriority	ignored. Deadlines are not donated.
+     * @return	a new deadline-ordered thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new DeadlineQueue();
+    }
+
+    /**
+     * Allocate the ready queue, and remember it so that
+     * <tt>shouldPreempt()</tt> can compare the running thread with the
+     * earliest ready deadline.
+     */
+    public ThreadQueue newReadyQueue() {
+	readyQueue = new DeadlineQueue();
+	return readyQueue;
+    }
+
+    /**
+     * Admit the current thread as a periodic task. Its first job is released
+     * now, and is due one period from now.
+     *
+     * @param	period	the length of a period, in ticks.
+     * @param	budget	the number of ticks the thread needs in each period.
+     * @return	<tt>true</tt> if the task was admitted, or <tt>false</tt> if
+     *		admitting it would push the total utilization past
+     *		<tt>maxUtilization</tt>. A rejected thread stays an ordinary
+     *		thread.
+     */
+    public boolean admit(long period, long budget) {
+	Lib.assertTrue(period > 0 && budget > 0 && budget <= period);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean admitted =
+	    admit(getThreadState(KThread.currentThread()), period, budget);
+
+	Machine.interrupt().restore(intStatus);
+	return admitted;
+    }
+
+    private boolean admit(ThreadState state, long period, long budget) {
+	Lib.assertTrue(state.period == 0);
+
+	double u = (double) budget / period;
+	if (utilization + u > maxUtilization) {
+	    numRejected++;
+	    return false;
+	}
+
+	utilization += u;
+	numAdmitted++;
+
+	long now = Machine.timer().getTime();
+	state.period = period;
+	state.budget = budget;
+	state.release = now;
+	state.deadline = now + period;
+	state.used = 0;
+	state.lastDispatched = now;
+
+	return true;
+    }
+
+    /**
+     * Finish the current job of the current thread, and sleep until its next
+     * release. A job that finishes after its deadline is counted as a missed
+     * deadline; if one or more releases have already passed, the next job is
+     * released at once and is due one period from now.
+     */
+    public void waitForNextPeriod() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	ThreadState state = getThreadState(KThread.currentThread());
+	Lib.assertTrue(state.period != 0);
+
+	long now = Machine.timer().getTime();
+	recordLateness(now - state.deadline);
+
+	long next = state.release + state.period;
+	if (next < now)
+	    next = now;
+
+	state.release = next;
+	state.deadline = next + state.period;
+	state.used = 0;
+	state.lastDispatched = now;
+
+	if (next > now)
+	    ThreadedKernel.alarm.waitUntil(next - now);
+
+	state.lastDispatched = Machine.timer().getTime();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Withdraw the current thread from the periodic task set, returning its
+     * utilization to the pool. It becomes an ordinary thread.
+     */
+    public void leave() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	withdraw(getThreadState(KThread.currentThread()));
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * A periodic task that finishes without calling <tt>leave()</tt> leaves
+     * now, so its utilization is not reserved forever.
+     */
+    public void threadFinished(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	withdraw(getThreadState(thread));
+    }
+
+    private void withdraw(ThreadState state) {
+	if (state.period != 0) {
+	    utilization -= (double) state.budget / state.period;
+	    state.period = 0;
+	    state.deadline = noDeadline;
+	}
+    }
+
+    /**
+     * Get the absolute deadline of the specified thread's current job.
+     *
+     * @return	the deadline, or <tt>Long.MAX_VALUE</tt> if the thread is an
+     *		ordinary thread or has overrun its budget.
+     */
+    public long getDeadline(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).getEffectiveDeadline();
+    }
+
+    /**
+     * All threads have the same priority; deadlines decide instead.
+     */
+    public int getPriority(KThread thread) {
+	return 0;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return 0;
+    }
+
+    public void setPriority(KThread thread, int priority) {
+    }
+
+    /**
+     * Charge <i>previous</i> for the ticks it ran against its budget, and
+     * start the clock for <i>next</i>.
+     */
+    public void threadSwitch(KThread previous, KThread next) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long now = Machine.timer().getTime();
+	getThreadState(previous).charge(now);
+	getThreadState(next).lastDispatched = now;
+    }
+
+    /**
+     * Preempt the current thread if a ready thread has an earlier deadline,
+     * or if it has no deadline and its quantum has run out.
+     */
+    public boolean shouldPreempt(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+	state.charge(Machine.timer().getTime());
+
+	long deadline = state.getEffectiveDeadline();
+	ThreadState first = readyQueue.pickNextThread();
+	if (first != null && first.key < deadline)
+	    return true;
+
+	return deadline == noDeadline && super.shouldPreempt(thread);
+    }
+
+    /**
+     * Print the number of admitted tasks and jobs, missed deadlines,
+     * overruns, and a histogram of job lateness.
+     */
+    public void printStats() {
+	if (numAdmitted == 0 && numRejected == 0)
+	    return;
+
+	System.out.println("Deadline scheduler: tasks admitted " + numAdmitted
+			   + ", rejected " + numRejected
+			   + ", jobs " + numJobs
+			   + ", missed deadlines " + numMissed
+			   + ", overruns " + numOverruns);
+
+	if (numMissed > 0) {
+	    System.out.println("Lateness: mean " + totalLateness/numMissed
+			       + ", max " + maxLateness);
+	}
+
+	String separator = "Lateness histogram: ";
+	for (int i=0; i<lateness.length; i++) {
+	    if (lateness[i] == 0)
+		continue;
+
+	    System.out.print(separator);
+	    separator = ", ";
+
+	    if (i == 0)
+		System.out.print("on time " + lateness[i]);
+	    else if (i == lateness.length-1)
+		System.out.print(">" + bucketLimit(i-1) + " " + lateness[i]);
+	    else
+		System.out.print("<=" + bucketLimit(i) + " " + lateness[i]);
+	}
+	System.out.println();
+    }
+
+    /**
+     * Record the lateness of a finished job in the histogram. Bucket 0 holds
+     * jobs that met their deadline, bucket <i>i</i> jobs that were at most
+     * <tt>bucketLimit(i)</tt> ticks late, and the last bucket the rest.
+     */
+    private void recordLateness(long late) {
+	numJobs++;
+
+	if (late <= 0) {
+	    lateness[0]++;
+	    return;
+	}
+
+	numMissed++;
+	totalLateness += late;
+	maxLateness = Math.max(maxLateness, late);
+
+	int i = 1;
+	while (i < lateness.length-1 && late > bucketLimit(i))
+	    i++;
+	lateness[i]++;
+    }
+
+    private static long bucketLimit(int i) {
+	return (long) Stats.TimerTicks << (i-1);
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    public void selfTest() {
+	System.out.println("\n\nDeadlineScheduler Test");
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	Runnable simpleRun = new Runnable() {
+		public void run() {
+		}
+	    };
+	KThread a = new KThread(simpleRun).setName("a");
+	KThread b = new KThread(simpleRun).setName("b");
+	KThread c = new KThread(simpleRun).setName("c");
+
+	getThreadState(a).deadline = 3000;
+	getThreadState(b).deadline = 1000;
+	getThreadState(b).period = getThreadState(b).budget = 1000;
+	getThreadState(a).period = getThreadState(a).budget = 3000;
+
+	DeadlineQueue queue = new DeadlineQueue();
+	queue.waitForAccess(c);
+	queue.waitForAccess(a);
+	queue.waitForAccess(b);
+	System.out.println("Deadline queue order (b a c):");
+	System.out.println(queue.nextThread().getName());
+	System.out.println(queue.nextThread().getName());
+	System.out.println(queue.nextThread().getName());
+
+	// with half the processor taken, 2/3 must be rejected and 1/3 fit
+	double saved = utilization, savedMax = maxUtilization;
+	utilization = 0.5;
+	maxUtilization = 1.0;
+	System.out.println("admit 2/3: " + admit(getThreadState(c), 3000, 2000));
+	System.out.println("admit 1/3: " + admit(getThreadState(c), 3000, 1000));
+	utilization = saved;
+	maxUtilization = savedMax;
+	numAdmitted--;
+	numRejected--;
+
+	Machine.interrupt().restore(intStatus);
+
+	if (ThreadedKernel.scheduler != this)
+	    return;
+
+	// a task that finishes without leaving returns its utilization
+	final double before = utilization;
+	KThread task = new KThread(new Runnable() {
+		public void run() {
+		    Lib.assertTrue(admit(10000, 5000));
+		}
+	    }).setName("task");
+	task.fork();
+	task.join();
+	System.out.println("utilization returned by a finished task: "
+			   + (utilization == before));
+	Lib.assertTrue(utilization == before);
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that sorts threads by absolute deadline, and
+     * threads with the same deadline in FIFO order.
+     */
+    protected class DeadlineQueue extends ThreadQueue {
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (thread == KThread.currentThread())
+		state.charge(Machine.timer().getTime());
+
+	    state.key = state.getEffectiveDeadline();
+	    state.seq = nextSeq++;
+	    waitQueue.add(state);
+	    enqueued(thread);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = waitQueue.pollFirst();
+	    if (state == null)
+		return null;
+
+	    dequeued(state.thread);
+	    return state.thread;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    // the thread's key and sequence number still locate it
+	    if (!waitQueue.remove(getThreadState(thread)))
+		return false;
+
+	    dequeued(thread);
+	    return true;
+	}
+
+	/**
+	 * Return the next thread that <tt>nextThread()</tt> would return,
+	 * without modifying the state of this queue.
+	 *
+	 * @return	the next thread that <tt>nextThread()</tt> would
+	 *		return.
+	 */
+	protected ThreadState pickNextThread() {
+	    return waitQueue.isEmpty() ? null : waitQueue.first();
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (Iterator<ThreadState> i=waitQueue.iterator(); i.hasNext(); ) {
+		ThreadState state = i.next();
+		System.out.print(state.thread + " (deadline "
+				 + (state.key == noDeadline ? "none" : "" + state.key)
+				 + ") ");
+	    }
+	}
+
+	/** Waiting threads, ordered by deadline and then arrival. */
+	private TreeSet<ThreadState> waitQueue = new TreeSet<ThreadState>();
+    }
+
+    /**
+     * The scheduling state of a thread: its period, budget and current
+     * deadline, if it is a periodic task.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState implements Comparable<ThreadState> {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread. New threads are ordinary threads.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Return the deadline this thread is scheduled by: that of its current
+	 * job, or <tt>noDeadline</tt> if it is an ordinary thread or has used
+	 * up its budget for this period.
+	 */
+	public long getEffectiveDeadline() {
+	    if (period == 0 || used > budget)
+		return noDeadline;
+
+	    return deadline;
+	}
+
+	/**
+	 * Add the ticks run since the last dispatch to the time used in this
+	 * period, and count an overrun the first time the budget is exceeded.
+	 *
+	 * @param	now	the current time.
+	 */
+	void charge(long now) {
+	    boolean within = (used <= budget);
+
+	    used += now - lastDispatched;
+	    lastDispatched = now;
+
+	    if (period != 0 && within && used > budget)
+		numOverruns++;
+	}
+
+	public int compareTo(ThreadState other) {
+	    if (key != other.key)
+		return (key < other.key) ? -1 : 1;
+	    if (seq != other.seq)
+		return (seq < other.seq) ? -1 : 1;
+	    return 0;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The period of this task, or 0 for an ordinary thread. */
+	protected long period = 0;
+	/** Ticks this task may run in each period. */
+	protected long budget = 0;
+	/** The release time of the current job. */
+	protected long release = 0;
+	/** The absolute deadline of the current job. */
+	protected long deadline = noDeadline;
+	/** Ticks run since the current job was released. */
+	protected long used = 0;
+	/** The time this thread was last given the processor. */
+	protected long lastDispatched = 0;
+
+	/** The deadline this thread was queued with. */
+	long key;
+	/** Arrival order, to keep threads with equal deadlines FIFO. */
+	long seq;
+    }
+
+    /** The deadline of a thread that has none. */
+    public static final long noDeadline = Long.MAX_VALUE;
+
+    private DeadlineQueue readyQueue = null;
+    private long nextSeq = 0;
+
+    private double maxUtilization;
+    private double utilization = 0.0;
+
+    private int numAdmitted = 0, numRejected = 0;
+    private int numJobs = 0, numMissed = 0, numOverruns = 0;
+    private long totalLateness = 0, maxLateness = 0;
+    private int[] lateness = new int[10];
+}
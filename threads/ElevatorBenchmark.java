@@ -0,0 +1,710 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * Drives the elevator bank with generated traffic, without the GUI, to
+ * compare elevator controllers. Needs <tt>Machine.bank</tt> to be set.
+ *
+ * <p>
+ * Each rider waits a random time, then makes its trips. For every trip the
+ * benchmark measures the <i>wait</i>, from calling an elevator to getting
+ * in, and the <i>travel</i>, from getting in to getting out. It reports the
+ * mean and 99th percentile of each, and the fraction of the time the
+ * elevators were busy.
+ *
+ * <p>
+ * Three controllers are included. <tt>look</tt> sends every elevator in one
+ * direction as far as there are requests, then reverses, and every elevator
+ * answers every hall call. <tt>nearestCar</tt> gives each hall call to the
+ * elevator best placed to answer it. <tt>destinationDispatch</tt> has riders
+ * enter their destination on a keypad at the hall instead of pressing the
+ * up or down button, and tells them which elevator to take. The bank has no
+ * keypad, so the benchmark's riders talk to that controller directly.
+ */
+public class ElevatorBenchmark {
+    /** Everyone goes from the lobby up. */
+    public static final int upPeak = 0;
+    /** Everyone goes down to the lobby. */
+    public static final int downPeak = 1;
+    /** Everyone goes between upper floors. */
+    public static final int interFloor = 2;
+    /** Random floors, some riders making two trips. */
+    public static final int randomTraffic = 3;
+
+    public static final int look = 0;
+    public static final int nearestCar = 1;
+    public static final int destinationDispatch = 2;
+
+    private static final String[] patternNames =
+	{ "up-peak", "down-peak", "inter-floor", "random" };
+    private static final String[] controllerNames =
+	{ "LOOK", "nearest car", "destination dispatch" };
+
+    /**
+     * Run every traffic pattern with every controller.
+     */
+    public static void selfTest() {
+	System.out.println("\n\nElevator benchmark");
+
+	for (int pattern=upPeak; pattern<=randomTraffic; pattern++) {
+	    for (int controller=look; controller<=destinationDispatch;
+		 controller++)
+		run(pattern, controller, 20, 4, 200, 400000);
+	}
+    }
+
+    /**
+     * Run the benchmark.
+     *
+     * @param	pattern		the traffic pattern, one of the pattern
+     *				constants.
+     * @param	controller	the controller, one of the controller
+     *				constants.
+     * @param	numFloors	the number of floors.
+     * @param	numElevators	the number of elevators.
+     * @param	numRiders	the number of riders. Each rider is a thread.
+     * @param	period		the ticks over which riders arrive.
+     */
+    public static void run(int pattern, int controller, int numFloors,
+			   int numElevators, int numRiders, int period) {
+	Lib.assertTrue(Machine.bank() != null);
+	Lib.assertTrue(numFloors >= 3);
+
+	Dispatcher dispatcher = new Dispatcher(controller);
+	Machine.bank().init(numElevators, numFloors, dispatcher);
+
+	BenchRider[] riders = new BenchRider[numRiders];
+	int numTrips = 0;
+	for (int i=0; i<numRiders; i++) {
+	    int[] trip = makeTrip(pattern, numFloors);
+	    int[] stops = new int[trip.length-1];
+	    System.arraycopy(trip, 1, stops, 0, stops.length);
+
+	    riders[i] = new BenchRider(Lib.random(period),
+				       (controller == destinationDispatch)
+				       ? dispatcher : null);
+	    Machine.bank().addRider(riders[i], trip[0], stops);
+	    numTrips += stops.length;
+	}
+
+	long start = Machine.timer().getTime();
+	Machine.bank().run();
+	long ticks = Machine.timer().getTime() - start;
+
+	long[] waits = new long[numTrips];
+	long[] travels = new long[numTrips];
+	int n = 0;
+	for (int i=0; i<numRiders; i++) {
+	    for (int j=0; j<riders[i].numTrips; j++) {
+		waits[n] = riders[i].waits[j];
+		travels[n] = riders[i].travels[j];
+		n++;
+	    }
+	}
+	Lib.assertTrue(n == numTrips);
+
+	System.out.println(patternNames[pattern] + ", "
+			   + controllerNames[controller] + ": "
+			   + numFloors + " floors, " + numElevators
+			   + " elevators, " + numTrips + " trips in "
+			   + ticks + " ticks, wait " + summarize(waits)
+			   + ", travel " + summarize(travels)
+			   + ", utilization "
+			   + (double) dispatcher.busyTicks
+			     / (numElevators * dispatcher.ticks));
+    }
+
+    /**
+     * Return a rider's starting floor followed by its stops.
+     */
+    private static int[] makeTrip(int pattern, int numFloors) {
+	switch (pattern) {
+	case upPeak:
+	    return new int[] { 0, 1 + Lib.random(numFloors-1) };
+	case downPeak:
+	    return new int[] { 1 + Lib.random(numFloors-1), 0 };
+	case interFloor: {
+	    int from = 1 + Lib.random(numFloors-1);
+	    return new int[] { from, otherFloor(1, numFloors, from) };
+	}
+	default: {
+	    int from = Lib.random(numFloors);
+	    int to = otherFloor(0, numFloors, from);
+	    if (Lib.random(2) == 0)
+		return new int[] { from, to };
+	    else
+		return new int[] { from, to, otherFloor(0, numFloors, to) };
+	}
+	}
+    }
+
+    /**
+     * Return a random floor from <i>low</i> up to but not including
+     * <i>high</i>, other than <i>floor</i>.
+     */
+    private static int otherFloor(int low, int high, int floor) {
+	int other = low + Lib.random(high - low - 1);
+	return (other >= floor) ? other+1 : other;
+    }
+
+    private static String summarize(long[] ticks) {
+	if (ticks.length == 0)
+	    return "none";
+
+	long[] sorted = ticks.clone();
+	Arrays.sort(sorted);
+
+	long total = 0;
+	for (int i=0; i<sorted.length; i++)
+	    total += sorted[i];
+
+	int p99 = (int) Math.ceil(sorted.length * 0.99) - 1;
+	return "mean " + total/sorted.length + " p99 " + sorted[p99];
+    }
+
+    /**
+     * A rider that makes its trips and times them.
+     */
+    private static class BenchRider implements RiderInterface {
+	BenchRider(int delay, Dispatcher keypad) {
+	    this.delay = delay;
+	    this.keypad = keypad;
+	}
+
+	public void initialize(RiderControls controls, int[] stops) {
+	    this.controls = controls;
+	    this.stops = stops;
+
+	    waits = new long[stops.length];
+	    travels = new long[stops.length];
+
+	    controls.setInterruptHandler(new Runnable() {
+		    public void run() { eventWait.V(); }
+		});
+	}
+
+	public void run() {
+	    ThreadedKernel.alarm.waitUntil(delay);
+
+	    for (int i=0; i<stops.length; i++)
+		ride(stops[i]);
+
+	    controls.finish();
+	}
+
+	private void ride(int destination) {
+	    int floor = controls.getFloor();
+	    int direction = (destination > floor) ? dirUp : dirDown;
+
+	    long called = Machine.timer().getTime();
+	    int elevator = board(floor, destination, direction);
+	    long entered = Machine.timer().getTime();
+
+	    controls.pressFloorButton(destination);
+
+	    while (true) {
+		RiderEvent e = nextEvent();
+		if (e.event == RiderEvent.eventDoorsOpened &&
+		    e.elevator == elevator && e.floor == destination)
+		    break;
+	    }
+	    Lib.assertTrue(controls.exitElevator(destination));
+
+	    waits[numTrips] = entered - called;
+	    travels[numTrips] = Machine.timer().getTime() - entered;
+	    numTrips++;
+	}
+
+	/**
+	 * Call an elevator and get in one going the right way. A rider left
+	 * behind by a full elevator calls again.
+	 */
+	private int board(int floor, int destination, int direction) {
+	    while (true) {
+		int assigned = -1;
+		if (keypad != null) {
+		    assigned = keypad.request(floor, destination);
+		}
+		else if (!controls.pressDirectionButton(direction == dirUp)) {
+		    // an elevator going our way already has its doors open
+		    for (int i=0; i<controls.getNumElevators(); i++) {
+			if (controls.getDirectionDisplay(i) == direction &&
+			    controls.enterElevator(i))
+			    return i;
+		    }
+		}
+
+		while (true) {
+		    RiderEvent e = nextEvent();
+		    if (e.floor != floor)
+			continue;
+
+		    if (e.event == RiderEvent.eventDoorsClosed) {
+			if (assigned == -1 || e.elevator == assigned)
+			    break;
+		    }
+		    else if ((e.direction == direction ||
+			      e.direction == dirNeither) &&
+			     (assigned == -1 || e.elevator == assigned) &&
+			     controls.enterElevator(e.elevator)) {
+			return e.elevator;
+		    }
+		}
+	    }
+	}
+
+	private RiderEvent nextEvent() {
+	    RiderEvent e;
+	    while ((e = controls.getNextEvent()) == null)
+		eventWait.P();
+
+	    return e;
+	}
+
+	int delay;
+	Dispatcher keypad;
+	RiderControls controls;
+	int[] stops;
+	Semaphore eventWait = new Semaphore(0);
+
+	long[] waits, travels;
+	int numTrips = 0;
+    }
+
+    /**
+     * An elevator controller. Every elevator keeps the floors where riders
+     * inside want to get out, and the floors where it should pick riders
+     * up. Under <tt>look</tt> the pickups are shared by all elevators; the
+     * other controllers give each pickup to one elevator.
+     *
+     * <p>
+     * Riders using the keypad run on their own threads, and a time slice
+     * can run out in the middle of an update, so the controller's state is
+     * only touched with <tt>lock</tt> held.
+     */
+    private static class Dispatcher implements ElevatorControllerInterface {
+	Dispatcher(int policy) {
+	    this.policy = policy;
+	}
+
+	public void initialize(ElevatorControls controls) {
+	    this.controls = controls;
+
+	    numFloors = controls.getNumFloors();
+	    numElevators = controls.getNumElevators();
+
+	    state = new int[numElevators];
+	    direction = new int[numElevators];
+	    target = new int[numElevators];
+	    closeTime = new long[numElevators];
+	    busySince = new long[numElevators];
+	    numAssigned = new int[numElevators];
+
+	    dropOff = new boolean[numElevators][numFloors];
+	    if (policy == look) {
+		pickUp = new boolean[1][numFloors];
+		pickDown = new boolean[1][numFloors];
+	    }
+	    else {
+		pickUp = new boolean[numElevators][numFloors];
+		pickDown = new boolean[numElevators][numFloors];
+	    }
+	    assignedTo = new int[numElevators][numFloors];
+
+	    start = Machine.timer().getTime();
+
+	    controls.setInterruptHandler(new Runnable() {
+		    public void run() { eventWait.V(); }
+		});
+	}
+
+	public void run() {
+	    while (true) {
+		lock.acquire();
+
+		ElevatorEvent e;
+		while ((e = controls.getNextEvent()) != null) {
+		    if (e.event == ElevatorEvent.eventRidersDone) {
+			long now = Machine.timer().getTime();
+			for (int i=0; i<numElevators; i++)
+			    setState(i, idle);
+			ticks = now - start;
+			lock.release();
+			controls.finish();
+		    }
+
+		    handle(e);
+		}
+
+		step();
+
+		long next = -1;
+		for (int i=0; i<numElevators; i++) {
+		    if (state[i] == open && (next < 0 || closeTime[i] < next))
+			next = closeTime[i];
+		}
+
+		lock.release();
+
+		long now = Machine.timer().getTime();
+		if (next < 0)
+		    eventWait.P();
+		else if (next > now)
+		    eventWait.P(next - now);
+	    }
+	}
+
+	/**
+	 * The destination keypad. Give the trip to the elevator that can
+	 * serve it soonest, preferring one already going to the same
+	 * destination, and return that elevator.
+	 */
+	int request(int floor, int destination) {
+	    int dir = (destination > floor) ? dirUp : dirDown;
+
+	    lock.acquire();
+
+	    int best = 0;
+	    long bestCost = Long.MAX_VALUE;
+	    for (int i=0; i<numElevators; i++) {
+		long cost = floorsTo(i, floor, dir) * Stats.ElevatorTicks
+		    + stopsBetween(i, floor) * dwellTicks;
+		if (numAssigned[i] >= maxRiders)
+		    cost += numFloors * Stats.ElevatorTicks;
+		if (assignedTo[i][destination] > 0)
+		    cost -= dwellTicks;
+
+		if (cost < bestCost) {
+		    best = i;
+		    bestCost = cost;
+		}
+	    }
+
+	    assignedTo[best][destination]++;
+	    numAssigned[best]++;
+
+	    if (state[best] == open && controls.getFloor(best) == floor &&
+		(direction[best] == dirNeither || direction[best] == dir)) {
+		// already here: show the rider's direction so it gets in
+		direction[best] = dir;
+		controls.setDirectionDisplay(best, dir);
+		closeTime[best] = Machine.timer().getTime() + dwellTicks;
+	    }
+	    else if (dir == dirUp) {
+		pickUp[best][floor] = true;
+	    }
+	    else {
+		pickDown[best][floor] = true;
+	    }
+
+	    lock.release();
+
+	    eventWait.V();
+	    return best;
+	}
+
+	private void handle(ElevatorEvent e) {
+	    switch (e.event) {
+	    case ElevatorEvent.eventUpButtonPressed:
+		hallCall(e.floor, dirUp);
+		break;
+	    case ElevatorEvent.eventDownButtonPressed:
+		hallCall(e.floor, dirDown);
+		break;
+	    case ElevatorEvent.eventFloorButtonPressed:
+		dropOff[e.elevator][e.floor] = true;
+		break;
+	    case ElevatorEvent.eventElevatorArrived:
+		setState(e.elevator, idle);
+		arrive(e.elevator, e.floor);
+		break;
+	    }
+	}
+
+	private void hallCall(int floor, int dir) {
+	    // an open elevator with nowhere to go can take the call at once
+	    for (int i=0; i<numElevators; i++) {
+		if (state[i] == open && controls.getFloor(i) == floor &&
+		    direction[i] == dirNeither) {
+		    direction[i] = dir;
+		    controls.setDirectionDisplay(i, dir);
+		    closeTime[i] = Machine.timer().getTime() + dwellTicks;
+		    return;
+		}
+	    }
+
+	    int row = (policy == look) ? 0 : nearest(floor, dir);
+	    if (dir == dirUp)
+		pickUp[row][floor] = true;
+	    else
+		pickDown[row][floor] = true;
+	}
+
+	/**
+	 * Return the elevator with the best figure of suitability for a call:
+	 * best if it is coming towards the floor in the call's direction, then
+	 * if idle, then if coming towards it the other way, and worst if
+	 * moving away; nearer is better in each case.
+	 */
+	private int nearest(int floor, int dir) {
+	    int best = 0, bestSuitability = Integer.MIN_VALUE;
+	    for (int i=0; i<numElevators; i++) {
+		int position = controls.getFloor(i);
+		int distance = Math.abs(position - floor);
+		int toward = Integer.signum(floor - position);
+
+		int suitability;
+		if (direction[i] == dirNeither)
+		    suitability = numFloors + 1 - distance;
+		else if (toward == direction[i] || toward == 0)
+		    suitability = numFloors + 1 - distance
+			+ ((direction[i] == dir) ? 1 : -1);
+		else
+		    suitability = 1 - distance;
+
+		if (suitability > bestSuitability) {
+		    best = i;
+		    bestSuitability = suitability;
+		}
+	    }
+
+	    return best;
+	}
+
+	/**
+	 * Close the doors of elevators whose dwell is over, start idle
+	 * elevators that have somewhere to go, and stop moving elevators
+	 * sooner for requests on their way.
+	 */
+	private void step() {
+	    long now = Machine.timer().getTime();
+
+	    for (int i=0; i<numElevators; i++) {
+		if (state[i] == open && now >= closeTime[i]) {
+		    controls.closeDoors(i);
+		    setState(i, idle);
+		}
+
+		if (state[i] == idle) {
+		    int floor = controls.getFloor(i);
+		    if (requestedAt(i, floor) && arrive(i, floor))
+			continue;
+
+		    int next = nextStop(i, floor);
+		    if (next >= 0 && controls.moveTo(next, i)) {
+			direction[i] = Integer.signum(next - floor);
+			target[i] = next;
+			setState(i, moving);
+		    }
+		    else {
+			direction[i] = dirNeither;
+		    }
+		}
+		else if (state[i] == moving) {
+		    int floor = controls.getFloor(i);
+		    int next = nearestAhead(i, floor, direction[i]);
+		    if (next >= 0 && (target[i] - next) * direction[i] > 0 &&
+			controls.moveTo(next, i))
+			target[i] = next;
+		}
+	    }
+	}
+
+	/**
+	 * Stop at the specified floor. If anyone wants to get in or out here,
+	 * choose the direction to show and open the doors. An elevator that will
+	 * keep going does not open for a call the other way, which it picks up
+	 * on its way back.
+	 *
+	 * @return	<tt>true</tt> if the doors were opened.
+	 */
+	private boolean arrive(int elevator, int floor) {
+	    if (!requestedAt(elevator, floor)) {
+		// another elevator got here first
+		return false;
+	    }
+
+	    int dir = direction[elevator];
+	    int next;
+	    if (dir != dirNeither &&
+		(beyond(elevator, floor, dir) || callAt(elevator, floor, dir)))
+		next = dir;
+	    else if (callAt(elevator, floor, dirUp))
+		next = dirUp;
+	    else if (callAt(elevator, floor, dirDown))
+		next = dirDown;
+	    else if (beyond(elevator, floor, -dir))
+		next = -dir;
+	    else
+		next = dirNeither;
+
+	    if (!dropOff[elevator][floor] && !callAt(elevator, floor, next))
+		return false;
+
+	    dropOff[elevator][floor] = false;
+	    numAssigned[elevator] -= assignedTo[elevator][floor];
+	    assignedTo[elevator][floor] = 0;
+	    clearCall(elevator, floor, next);
+
+	    direction[elevator] = next;
+	    controls.setDirectionDisplay(elevator, next);
+	    controls.openDoors(elevator);
+	    closeTime[elevator] = Machine.timer().getTime() + dwellTicks;
+	    setState(elevator, open);
+	    return true;
+	}
+
+	/**
+	 * Return the next floor the specified idle elevator should go to:
+	 * the nearest request in its direction, or the farthest call the
+	 * other way beyond it, or failing that, the same in the other
+	 * direction. An idle elevator goes to the nearest request.
+	 */
+	private int nextStop(int elevator, int floor) {
+	    int dir = direction[elevator];
+	    if (dir == dirNeither) {
+		int up = sweep(elevator, floor, dirUp);
+		int down = sweep(elevator, floor, dirDown);
+		if (up < 0)
+		    return down;
+		if (down < 0)
+		    return up;
+		return (up - floor <= floor - down) ? up : down;
+	    }
+
+	    int next = sweep(elevator, floor, dir);
+	    return (next >= 0) ? next : sweep(elevator, floor, -dir);
+	}
+
+	private int sweep(int elevator, int floor, int dir) {
+	    int next = nearestAhead(elevator, floor, dir);
+	    if (next >= 0)
+		return next;
+
+	    // the farthest call for the other direction
+	    for (int f=(dir > 0 ? numFloors-1 : 0); f != floor; f -= dir) {
+		if (callAt(elevator, f, -dir))
+		    return f;
+	    }
+
+	    return -1;
+	}
+
+	private int nearestAhead(int elevator, int floor, int dir) {
+	    for (int f=floor+dir; f>=0 && f<numFloors; f+=dir) {
+		if (dropOff[elevator][f] || callAt(elevator, f, dir))
+		    return f;
+	    }
+
+	    return -1;
+	}
+
+	private boolean beyond(int elevator, int floor, int dir) {
+	    if (dir == dirNeither)
+		return false;
+
+	    for (int f=floor+dir; f>=0 && f<numFloors; f+=dir) {
+		if (requestedAt(elevator, f))
+		    return true;
+	    }
+
+	    return false;
+	}
+
+	private boolean requestedAt(int elevator, int floor) {
+	    return dropOff[elevator][floor] ||
+		callAt(elevator, floor, dirUp) ||
+		callAt(elevator, floor, dirDown);
+	}
+
+	private boolean callAt(int elevator, int floor, int dir) {
+	    int row = (policy == look) ? 0 : elevator;
+	    if (dir == dirUp)
+		return pickUp[row][floor];
+	    else if (dir == dirDown)
+		return pickDown[row][floor];
+	    else
+		return false;
+	}
+
+	private void clearCall(int elevator, int floor, int dir) {
+	    int row = (policy == look) ? 0 : elevator;
+	    if (dir != dirDown)
+		pickUp[row][floor] = false;
+	    if (dir != dirUp)
+		pickDown[row][floor] = false;
+	}
+
+	/**
+	 * Estimate how many floors the specified elevator must travel to
+	 * pick up a rider at <i>floor</i> going in direction <i>dir</i>.
+	 */
+	private int floorsTo(int elevator, int floor, int dir) {
+	    int position = controls.getFloor(elevator);
+	    int heading = direction[elevator];
+	    int toward = Integer.signum(floor - position);
+
+	    if (heading == dirNeither ||
+		(heading == dir && (toward == heading || toward == 0)))
+		return Math.abs(floor - position);
+
+	    // finish the current sweep first
+	    int end = position;
+	    for (int f=position; f>=0 && f<numFloors; f+=heading) {
+		if (requestedAt(elevator, f))
+		    end = f;
+	    }
+	    return Math.abs(end - position) + Math.abs(floor - end);
+	}
+
+	private int stopsBetween(int elevator, int floor) {
+	    int position = controls.getFloor(elevator);
+	    int dir = Integer.signum(floor - position);
+
+	    int stops = 0;
+	    for (int f=position; f!=floor; f+=dir) {
+		if (requestedAt(elevator, f))
+		    stops++;
+	    }
+	    return stops;
+	}
+
+	private void setState(int elevator, int newState) {
+	    long now = Machine.timer().getTime();
+	    if (state[elevator] != idle)
+		busyTicks += now - busySince[elevator];
+
+	    state[elevator] = newState;
+	    busySince[elevator] = now;
+	}
+
+	int policy;
+	ElevatorControls controls;
+	Semaphore eventWait = new Semaphore(0);
+	/** Held by whichever thread is reading or updating the state below. */
+	Lock lock = new Lock();
+	int numFloors, numElevators;
+
+	int[] state, direction, target;
+	long[] closeTime;
+	boolean[][] dropOff, pickUp, pickDown;
+	/** For destination dispatch, the riders assigned by destination. */
+	int[][] assignedTo;
+	int[] numAssigned;
+
+	long start, ticks, busyTicks = 0;
+	long[] busySince;
+
+	static final int idle = 0, moving = 1, open = 2;
+    }
+
+    private static final int dirUp = ElevatorBank.dirUp;
+    private static final int dirDown = ElevatorBank.dirDown;
+    private static final int dirNeither = ElevatorBank.dirNeither;
+
+    private static final int dwellTicks = 500;
+    private static final int maxRiders = 4;
+}
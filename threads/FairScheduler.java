@@ -0,0 +1,605 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.TreeSet;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A scheduler that divides the processor among threads in proportion to their
+ * weight.
+ *
+ * <p>
+ * Every thread has a <i>nice</i> level between <tt>niceMinimum</tt> and
+ * <tt>niceMaximum</tt>, which selects a weight from <tt>niceToWeight</tt>.
+ * Whenever a thread gives up the processor it is charged for the ticks it
+ * used, scaled by <tt>niceZeroWeight / weight</tt>, and this charge accumulates
+ * as the thread's <i>virtual runtime</i>. The next thread to receive access is
+ * always the waiting thread with the smallest virtual runtime, so heavier
+ * threads get proportionally more of the processor and no thread can be
+ * starved.
+ *
+ * <p>
+ * Waiting threads are kept in a balanced tree ordered by virtual runtime, so
+ * both <tt>waitForAccess()</tt> and <tt>nextThread()</tt> are O(log n) in the
+ * number of waiting threads.
+ *
+ * <p>
+ * Like a priority scheduler, a fair scheduler partially solves the priority
+ * inversion problem: through locks and joins, a thread is charged at the
+ * weight of the heaviest thread waiting for it.
+ */
+public class FairScheduler extends Scheduler {
+    /**
+     * Allocate a new fair scheduler.
+     */
+    public FairScheduler() {
+    }
+
+    /**
+     * Allocate a new fair thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer weight from waiting threads
+     *					to the owning thread.
+     * @return	a new fair thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FairQueue(transferPriority);
+    }
+
+    /**
+     * Get the nice level of the specified thread.
+     */
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).getNice();
+    }
+
+    /**
+     * Get the effective nice level of the specified thread, after taking
+     * donation into account. Lower is heavier.
+     */
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).getEffectiveNice();
+    }
+
+    /**
+     * Set the nice level of the specified thread.
+     */
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= niceMinimum &&
+		       priority <= niceMaximum);
+
+	getThreadState(thread).setNice(priority);
+    }
+
+    /**
+     * Lower the nice level of the current thread by one, making it heavier.
+     */
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+	boolean changed = false;
+
+	KThread thread = KThread.currentThread();
+
+	int nice = getPriority(thread);
+	if (nice > niceMinimum) {
+	    setPriority(thread, nice-1);
+	    changed = true;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * Raise the nice level of the current thread by one, making it lighter.
+     */
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+	boolean changed = false;
+
+	KThread thread = KThread.currentThread();
+
+	int nice = getPriority(thread);
+	if (nice < niceMaximum) {
+	    setPriority(thread, nice+1);
+	    changed = true;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * Charge <i>previous</i> for the ticks it has run since it was last
+     * dispatched, and start the clock for <i>next</i>.
+     */
+    public void threadSwitch(KThread previous, KThread next) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long now = Machine.timer().getTime();
+
+	getThreadState(previous).charge(now);
+	getThreadState(next).lastDispatched = now;
+    }
+
+    /**
+     * Return the virtual runtime of the specified thread, including the ticks
+     * it has used so far if it is running. Must be called with interrupts
+     * disabled.
+     *
+     * @param	thread	the thread to examine.
+     * @return	the thread's virtual runtime, in weighted ticks.
+     */
+    public long getVirtualRuntime(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+	if (thread == KThread.currentThread())
+	    state.charge(Machine.timer().getTime());
+
+	return state.vruntime;
+    }
+
+    /**
+     * The default nice level for a new thread.
+     */
+    public static final int niceDefault = 0;
+    /**
+     * The lowest (heaviest) nice level a thread can have.
+     */
+    public static final int niceMinimum = -20;
+    /**
+     * The highest (lightest) nice level a thread can have.
+     */
+    public static final int niceMaximum = 19;
+
+    /**
+     * The weight of a thread at nice level 0. Virtual runtime advances at
+     * exactly the wall-clock rate for such a thread.
+     */
+    public static final int niceZeroWeight = 1024;
+
+    /**
+     * Weight of each nice level, from <tt>niceMinimum</tt> to
+     * <tt>niceMaximum</tt>. Each step is roughly a factor of 1.25, so a thread
+     * one level nicer than another receives about 10% less of the processor
+     * when the two compete.
+     */
+    private static final int[] niceToWeight = {
+	/* -20 */ 88761, 71755, 56483, 46273, 36291,
+	/* -15 */ 29154, 23254, 18705, 14949, 11916,
+	/* -10 */  9548,  7620,  6100,  4904,  3906,
+	/*  -5 */  3121,  2501,  1991,  1586,  1277,
+	/*   0 */  1024,   820,   655,   526,   423,
+	/*   5 */   335,   272,   215,   172,   137,
+	/*  10 */   110,    87,    70,    56,    45,
+	/*  15 */    36,    29,    23,    18,    15,
+    };
+
+    /**
+     * How far behind the least-served waiting thread a thread that has been
+     * blocked may be placed when it becomes ready again. This bounds the
+     * credit a long sleeper can bank, so it cannot monopolize the processor
+     * when it wakes.
+     */
+    private static final long sleeperCredit = Stats.TimerTicks;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    public void selfTest() {
+	System.out.println("\n\nFairScheduler Test");
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	Runnable simpleRun = new Runnable() {
+		public void run() {
+		}
+	    };
+	KThread light = new KThread(simpleRun).setName("light");
+	KThread normal = new KThread(simpleRun).setName("normal");
+	KThread heavy = new KThread(simpleRun).setName("heavy");
+	setPriority(light, niceMaximum);
+	setPriority(heavy, niceMinimum);
+
+	// charge each thread the same 1000 ticks of processor time
+	getThreadState(light).lastDispatched = -1000;
+	getThreadState(normal).lastDispatched = -1000;
+	getThreadState(heavy).lastDispatched = -1000;
+	getThreadState(light).charge(0);
+	getThreadState(normal).charge(0);
+	getThreadState(heavy).charge(0);
+
+	// the heaviest thread is charged the least, so it should come first
+	FairQueue queue1 = new FairQueue(false);
+	queue1.waitForAccess(light);
+	queue1.waitForAccess(normal);
+	queue1.waitForAccess(heavy);
+	System.out.println("Fair queue order (heavy normal light):");
+	System.out.println(queue1.nextThread().getName());
+	System.out.println(queue1.nextThread().getName());
+	System.out.println(queue1.nextThread().getName());
+
+	// light holds a lock that heavy waits for: it inherits heavy's nice
+	FairQueue queue2 = new FairQueue(true);
+	queue2.acquire(light);
+	queue2.waitForAccess(heavy);
+	System.out.println("Effective nice of light while heavy waits: "
+			   + getEffectivePriority(light));
+	queue2.nextThread();
+	System.out.println("Effective nice of light after release: "
+			   + getEffectivePriority(light));
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that sorts threads by virtual runtime.
+     */
+    protected class FairQueue extends ThreadQueue {
+	FairQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    Lib.assertTrue(state.waitingOn == null);
+
+	    if (holder == state)
+		release();
+
+	    if (transferPriority)
+		countDonations(state.getEffectiveNice());
+
+	    state.place();
+	    state.waitingOn = this;
+	    waitQueue.add(state);
+	    enqueued(thread);
+
+	    invalidCache();
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    release();
+
+	    holder = getThreadState(thread);
+	    if (transferPriority) {
+		int oldNice = holder.getEffectiveNice();
+		holder.holding.add(this);
+		holder.invalidCache();
+
+		// threads still waiting now donate to the new holder
+		if (holder.getEffectiveNice() < oldNice)
+		    holder.thread.numDonations++;
+	    }
+	}
+
+	public void acquireShared(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (!transferPriority || sharers.contains(state))
+		return;
+
+	    int oldNice = state.getEffectiveNice();
+	    sharers.add(state);
+	    state.holding.add(this);
+	    state.invalidCache();
+
+	    if (state.getEffectiveNice() < oldNice)
+		state.thread.numDonations++;
+	}
+
+	public void release(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (holder == state)
+		release();
+
+	    if (sharers.remove(state)) {
+		state.holding.remove(this);
+		state.invalidCache();
+	    }
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (waitQueue.isEmpty()) {
+		release();
+		return null;
+	    }
+
+	    ThreadState state = waitQueue.pollFirst();
+	    state.waitingOn = null;
+	    dequeued(state.thread);
+
+	    if (state.key > minVruntime)
+		minVruntime = state.key;
+
+	    invalidCache();
+	    acquire(state.thread);
+
+	    return state.thread;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.waitingOn != this)
+		return false;
+
+	    waitQueue.remove(state);
+	    state.waitingOn = null;
+	    dequeued(thread);
+
+	    invalidCache();
+	    return true;
+	}
+
+	/**
+	 * Return the next thread that <tt>nextThread()</tt> would return,
+	 * without modifying the state of this queue.
+	 *
+	 * @return	the next thread that <tt>nextThread()</tt> would
+	 *		return.
+	 */
+	protected ThreadState pickNextThread() {
+	    if (waitQueue.isEmpty())
+		return null;
+
+	    return waitQueue.first();
+	}
+
+	/**
+	 * Return the lowest effective nice level of any thread waiting on this
+	 * queue, or <tt>niceMaximum</tt> if this queue does not transfer
+	 * priority.
+	 */
+	public int getDonatedNice() {
+	    if (!transferPriority)
+		return niceMaximum;
+
+	    if (!validCache) {
+		validCache = true;
+		donatedNice = niceMaximum;
+		for (Iterator<ThreadState> i=waitQueue.iterator(); i.hasNext(); )
+		    donatedNice = Math.min(donatedNice,
+					   i.next().getEffectiveNice());
+	    }
+	    return donatedNice;
+	}
+
+	/**
+	 * Count a donation to each holder that a new waiter at the specified
+	 * effective nice level raises.
+	 */
+	private void countDonations(int nice) {
+	    if (holder != null && nice < holder.getEffectiveNice())
+		holder.thread.numDonations++;
+	    for (Iterator<ThreadState> i=sharers.iterator(); i.hasNext(); ) {
+		ThreadState sharer = i.next();
+		if (nice < sharer.getEffectiveNice())
+		    sharer.thread.numDonations++;
+	    }
+	}
+
+	public void invalidCache() {
+	    validCache = false;
+	    if (transferPriority && holder != null)
+		holder.invalidCache();
+	    for (Iterator<ThreadState> i=sharers.iterator(); i.hasNext(); )
+		i.next().invalidCache();
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (Iterator<ThreadState> i=waitQueue.iterator(); i.hasNext(); ) {
+		ThreadState state = i.next();
+		System.out.print(state.thread + " (vruntime " + state.key
+				 + ") ");
+	    }
+	}
+
+	private void release() {
+	    if (holder == null)
+		return;
+
+	    if (transferPriority) {
+		holder.holding.remove(this);
+		holder.invalidCache();
+	    }
+	    holder = null;
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer priority from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	/** The lowest effective nice level of the waiting threads. */
+	protected int donatedNice = niceMaximum;
+	/** Whether <tt>donatedNice</tt> is up to date. */
+	protected boolean validCache = false;
+
+	/** Waiting threads, least virtual runtime first. */
+	protected TreeSet<ThreadState> waitQueue =
+	    new TreeSet<ThreadState>(byVirtualRuntime);
+	/** The thread that currently has access, if any. */
+	protected ThreadState holder = null;
+	/** Threads sharing access, each of which receives the donation. */
+	protected LinkedList<ThreadState> sharers = new LinkedList<ThreadState>();
+    }
+
+    /**
+     * The scheduling state of a thread: its nice level, virtual runtime, the
+     * queue it is waiting on and the queues whose resources it holds.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread. A new thread starts level with the least-served
+	 * thread, so it neither jumps ahead of nor falls behind the others.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	    this.vruntime = minVruntime;
+	}
+
+	/**
+	 * Return the thread this state belongs to.
+	 */
+	public KThread getThread() {
+	    return thread;
+	}
+
+	/**
+	 * Return the nice level of the associated thread.
+	 */
+	public int getNice() {
+	    return nice;
+	}
+
+	/**
+	 * Set the nice level of the associated thread.
+	 *
+	 * @param	nice	the new nice level.
+	 */
+	public void setNice(int nice) {
+	    if (this.nice == nice)
+		return;
+
+	    this.nice = nice;
+	    invalidCache();
+	}
+
+	/**
+	 * Return the effective nice level of the associated thread: the lowest
+	 * of its own nice level and those of the threads waiting for it.
+	 */
+	public int getEffectiveNice() {
+	    if (!validCache) {
+		validCache = true;
+		effectiveNice = nice;
+		for (Iterator<FairQueue> i=holding.iterator(); i.hasNext(); )
+		    effectiveNice = Math.min(effectiveNice,
+					     i.next().getDonatedNice());
+	    }
+	    return effectiveNice;
+	}
+
+	/**
+	 * Return the weight of the associated thread at its effective nice
+	 * level.
+	 */
+	public int getWeight() {
+	    return niceToWeight[getEffectiveNice() - niceMinimum];
+	}
+
+	/**
+	 * The effective nice level of this thread may have changed, so that of
+	 * whichever thread it is waiting for may have changed too.
+	 */
+	public void invalidCache() {
+	    validCache = false;
+	    if (waitingOn != null)
+		waitingOn.invalidCache();
+	}
+
+	/**
+	 * Add the ticks used since the last dispatch, scaled by weight, to
+	 * this thread's virtual runtime.
+	 *
+	 * @param	now	the current time.
+	 */
+	void charge(long now) {
+	    long delta = now - lastDispatched;
+	    if (delta > 0)
+		vruntime += delta * niceZeroWeight / getWeight();
+	    lastDispatched = now;
+	}
+
+	/**
+	 * Fix the position of this thread in the queue it is about to join.
+	 */
+	void place() {
+	    vruntime = Math.max(vruntime, minVruntime - sleeperCredit);
+	    key = vruntime;
+	    seq = numPlaced++;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The nice level of the associated thread. */
+	protected int nice = niceDefault;
+	/** The cached effective nice level. */
+	protected int effectiveNice = niceDefault;
+	/** Whether <tt>effectiveNice</tt> is up to date. */
+	protected boolean validCache = false;
+
+	/** Weighted ticks this thread has run. */
+	protected long vruntime;
+	/** The time this thread was last given the processor. */
+	protected long lastDispatched = 0;
+
+	/** The virtual runtime this thread was queued with. */
+	long key;
+	/** Breaks ties between equal keys in first-come first-serve order. */
+	long seq;
+
+	/** The queue this thread is waiting on, if any. */
+	protected FairQueue waitingOn = null;
+	/** Queues whose resources this thread holds. */
+	protected LinkedList<FairQueue> holding = new LinkedList<FairQueue>();
+    }
+
+    private final Comparator<ThreadState> byVirtualRuntime =
+	new Comparator<ThreadState>() {
+	    public int compare(ThreadState a, ThreadState b) {
+		if (a.key != b.key)
+		    return (a.key < b.key) ? -1 : 1;
+		if (a.seq != b.seq)
+		    return (a.seq < b.seq) ? -1 : 1;
+		return 0;
+	    }
+	};
+
+    /**
+     * The key of the last thread to leave any queue. Never decreases, and
+     * approximates the virtual runtime of the least-served runnable thread.
+     */
+    private long minVruntime = 0;
+    private long numPlaced = 0;
+}
@@ -0,0 +1,414 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Iterator;
+
+/**
+ * A multi-level feedback queue scheduler.
+ *
+ * <p>
+ * Threads are kept in a number of FIFO levels, and the next thread to receive
+ * access is always the first thread in the highest non-empty level (level 0).
+ * Every level has a quantum, the number of ticks a thread may run at that
+ * level before it is moved down one level. Once a thread's processor time at
+ * its level reaches the quantum, the next timer interrupt preempts it and it
+ * drops a level.
+ *
+ * <p>
+ * A thread that blocks before its quantum is used up (for example in
+ * <tt>SynchConsole.readByte()</tt> or on file I/O) keeps its level, so
+ * interactive threads stay above CPU-bound ones. To keep CPU-bound threads
+ * from starving, every thread is moved back to level 0 once per boost period.
+ *
+ * <p>
+ * The number of levels, the quantum of each level and the boost period are
+ * read from <tt>nachos.conf</tt>:
+ *
+ * <p><blockquote><pre>
+ * FeedbackScheduler.levels = 3
+ * FeedbackScheduler.quantum0 = 500
+ * FeedbackScheduler.quantum1 = 1000
+ * FeedbackScheduler.quantum2 = 2000
+ * FeedbackScheduler.boostPeriod = 50000
+ * </pre></blockquote>
+ *
+ * <p>
+ * Priority is not donated; the periodic boost bounds how long a thread
+ * holding a lock can be kept off the processor.
+ */
+public class FeedbackScheduler extends Scheduler {
+    /**
+     * Allocate a new feedback scheduler.
+     */
+    public FeedbackScheduler() {
+	numLevels = Config.getInteger("FeedbackScheduler.levels", 3);
+	Lib.assertTrue(numLevels > 0);
+
+	quantum = new int[numLevels];
+	for (int i=0; i<numLevels; i++) {
+	    quantum[i] = Config.getInteger("FeedbackScheduler.quantum" + i,
+					   Stats.TimerTicks << i);
+	    Lib.assertTrue(quantum[i] > 0);
+	}
+
+	boostPeriod = Config.getInteger("FeedbackScheduler.boostPeriod",
+					100 * Stats.TimerTicks);
+	Lib.assertTrue(boostPeriod > 0);
+	nextBoost = boostPeriod;
+    }
+
+    /**
+     * Allocate a new multi-level thread queue.
+     *
+     * @param	transferPriority	ignored. Feedback schedulers do not
+     *					donate priority.
+     * @return	a new multi-level thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new LevelQueue();
+    }
+
+    /**
+     * Get the priority of the specified thread. Level 0 has the highest
+     * priority, <tt>numLevels-1</tt>.
+     */
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return numLevels-1 - getThreadState(thread).getLevel();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    /**
+     * Move the specified thread to the level with the specified priority,
+     * with a fresh quantum.
+     */
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= 0 && priority < numLevels);
+
+	getThreadState(thread).setLevel(numLevels-1 - priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+	boolean changed = false;
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority < numLevels-1) {
+	    setPriority(thread, priority+1);
+	    changed = true;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+	boolean changed = false;
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority > 0) {
+	    setPriority(thread, priority-1);
+	    changed = true;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * Charge <i>previous</i> for the ticks it ran, moving it down a level if
+     * it has used up its quantum, and start the clock for <i>next</i>.
+     */
+    public void threadSwitch(KThread previous, KThread next) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long now = Machine.timer().getTime();
+	checkBoost(now);
+
+	getThreadState(previous).charge(now);
+	getThreadState(next).lastDispatched = now;
+    }
+
+    /**
+     * Preempt the current thread once it has used up the quantum of its
+     * level.
+     */
+    public boolean shouldPreempt(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long now = Machine.timer().getTime();
+	checkBoost(now);
+
+	ThreadState state = getThreadState(thread);
+	int level = state.getLevel();
+	return state.used + (now - state.lastDispatched) >= quantum[level];
+    }
+
+    /**
+     * Get the quantum of the specified level.
+     *
+     * @param	level	the level, between 0 and <tt>numLevels-1</tt>.
+     * @return	the number of ticks a thread may run at that level.
+     */
+    public int getQuantum(int level) {
+	return quantum[level];
+    }
+
+    private void checkBoost(long now) {
+	if (now >= nextBoost) {
+	    boostEpoch++;
+	    nextBoost = now + boostPeriod;
+	}
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    public void selfTest() {
+	System.out.println("\n\nFeedbackScheduler Test");
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	Runnable simpleRun = new Runnable() {
+		public void run() {
+		}
+	    };
+	KThread hog = new KThread(simpleRun).setName("hog");
+	KThread shell = new KThread(simpleRun).setName("shell");
+
+	// hog runs a full quantum at every level, shell never does
+	for (int i=0; i<numLevels; i++) {
+	    ThreadState state = getThreadState(hog);
+	    state.lastDispatched = -quantum[state.getLevel()];
+	    state.charge(0);
+	}
+	System.out.println("hog priority " + getPriority(hog)
+			   + ", shell priority " + getPriority(shell));
+
+	LevelQueue queue = new LevelQueue();
+	queue.waitForAccess(hog);
+	queue.waitForAccess(shell);
+	System.out.println("Level queue order (shell hog):");
+	System.out.println(queue.nextThread().getName());
+	System.out.println(queue.nextThread().getName());
+
+	// after a boost, both are back at the top and served in FIFO order
+	boostEpoch++;
+	queue.waitForAccess(hog);
+	queue.waitForAccess(shell);
+	System.out.println("After boost (hog shell):");
+	System.out.println(queue.nextThread().getName());
+	System.out.println(queue.nextThread().getName());
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> with one FIFO set per level.
+     */
+    protected class LevelQueue extends ThreadQueue {
+	LevelQueue() {
+	    levels = new ArrayList<LinkedHashSet<ThreadState>>(numLevels);
+	    for (int i=0; i<numLevels; i++)
+		levels.add(new LinkedHashSet<ThreadState>());
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    applyBoost();
+
+	    // a yielding thread is charged first, so it queues at its new level
+	    ThreadState state = getThreadState(thread);
+	    if (thread == KThread.currentThread())
+		state.charge(Machine.timer().getTime());
+
+	    levels.get(state.getLevel()).add(state);
+	    enqueued(thread);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    applyBoost();
+
+	    for (int i=0; i<numLevels; i++) {
+		if (!levels.get(i).isEmpty()) {
+		    Iterator<ThreadState> j = levels.get(i).iterator();
+		    KThread thread = j.next().thread;
+		    j.remove();
+		    dequeued(thread);
+		    return thread;
+		}
+	    }
+	    return null;
+	}
+
+	/**
+	 * Remove a waiting thread. It may have changed level since it was
+	 * queued, so every level is tried.
+	 */
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    for (int i=0; i<numLevels; i++) {
+		if (levels.get(i).remove(state)) {
+		    dequeued(thread);
+		    return true;
+		}
+	    }
+	    return false;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	/**
+	 * Return the next thread that <tt>nextThread()</tt> would return,
+	 * without modifying the state of this queue.
+	 *
+	 * @return	the next thread that <tt>nextThread()</tt> would
+	 *		return.
+	 */
+	protected ThreadState pickNextThread() {
+	    applyBoost();
+
+	    for (int i=0; i<numLevels; i++) {
+		if (!levels.get(i).isEmpty())
+		    return levels.get(i).iterator().next();
+	    }
+	    return null;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<numLevels; i++) {
+		Iterator<ThreadState> j = levels.get(i).iterator();
+		while (j.hasNext())
+		    System.out.print(j.next().thread + " (level " + i + ") ");
+	    }
+	}
+
+	/**
+	 * If a boost has happened since this queue was last used, merge every
+	 * level into level 0, highest level first.
+	 */
+	private void applyBoost() {
+	    if (epoch == boostEpoch)
+		return;
+
+	    epoch = boostEpoch;
+	    for (int i=1; i<numLevels; i++) {
+		levels.get(0).addAll(levels.get(i));
+		levels.get(i).clear();
+	    }
+	}
+
+	/** Waiting threads, one FIFO set per level. */
+	protected ArrayList<LinkedHashSet<ThreadState>> levels;
+	/** The boost this queue has last been brought up to date with. */
+	private int epoch = boostEpoch;
+    }
+
+    /**
+     * The scheduling state of a thread: its level and the processor time it
+     * has used at that level.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread. New threads start at level 0.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Return the level of the associated thread, moving it back to level
+	 * 0 if a boost has happened since it was last examined.
+	 */
+	public int getLevel() {
+	    if (epoch != boostEpoch)
+		setLevel(0);
+
+	    return level;
+	}
+
+	/**
+	 * Move the associated thread to the specified level, with a fresh
+	 * quantum. If the thread is already waiting in a queue, it stays at its
+	 * old position there until it is next dequeued.
+	 */
+	public void setLevel(int level) {
+	    this.level = level;
+	    this.used = 0;
+	    this.epoch = boostEpoch;
+	}
+
+	/**
+	 * Add the ticks run since the last dispatch to the time used at this
+	 * level, and drop a level once the quantum is used up.
+	 *
+	 * @param	now	the current time.
+	 */
+	void charge(long now) {
+	    int level = getLevel();
+
+	    used += now - lastDispatched;
+	    lastDispatched = now;
+
+	    if (used >= quantum[level])
+		setLevel(Math.min(level+1, numLevels-1));
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The level of the associated thread. */
+	protected int level = 0;
+	/** Ticks run at this level. */
+	protected long used = 0;
+	/** The time this thread was last given the processor. */
+	protected long lastDispatched = 0;
+	/** The boost this state has last been brought up to date with. */
+	private int epoch = boostEpoch;
+    }
+
+    private int numLevels;
+    private int[] quantum;
+
+    private long boostPeriod;
+    private long nextBoost;
+    /** Incremented at every boost. */
+    private int boostEpoch = 0;
+}
@@ -47,7 +47,7 @@ public class KThread {
 	    tcb = new TCB();
 	}	    
 	else {
-	    readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+	    readyQueue = ThreadedKernel.scheduler.newReadyQueue();
 	    readyQueue.acquire(this);	    
 
 	    currentThread = this;
@@ -182,10 +182,24 @@ public class KThread {
      * delete this thread.
      */
     public static void finish() {
-	Lib.debug(dbgThread, "Finishing thread: " + currentThread.toString());
+	Lib.debug(dbgThread, "Finishing thread: " + currentThread.toString()
+		  + " (ran " + currentThread.getRunTicks()
+		  + ", ready " + currentThread.readyTicks
+		  + ", blocked " + currentThread.blockedTicks
+		  + ", preempted " + currentThread.numPreemptions + " times)");
 	
 	Machine.interrupt().disable();
 
+	ThreadedKernel.scheduler.threadFinished(currentThread);
+
+	numFinished++;
+	totalRunTicks += currentThread.getRunTicks();
+	totalReadyTicks += currentThread.readyTicks;
+	totalBlockedTicks += currentThread.blockedTicks;
+	totalVoluntarySwitches += currentThread.getNumVoluntarySwitches();
+	totalPreemptions += currentThread.numPreemptions;
+	totalDonations += currentThread.numDonations;
+
 	Machine.autoGrader().finishingCurrentThread();
 
 	Lib.assertTrue(toBeDestroyed == null);
@@ -227,6 +241,11 @@ public class KThread {
 	
 	boolean intStatus = Machine.interrupt().disable();
 
+	if (numReady == 0) {
+	    Machine.interrupt().restore(intStatus);
+	    return;
+	}
+
 	currentThread.ready();
 
 	runNextThread();
@@ -265,14 +284,145 @@ public class KThread {
 	
 	Lib.assertTrue(Machine.interrupt().disabled());
 	Lib.assertTrue(status != statusReady);
+
+	long now = Machine.timer().getTime();
+	if (status == statusBlocked)
+	    blockedTicks += now - stateTime;
+	stateTime = now;
 	
 	status = statusReady;
-	if (this != idleThread)
+	if (this != idleThread) {
 	    readyQueue.waitForAccess(this);
+	    numReady++;
+	}
 	
 	Machine.autoGrader().readyThread(this);
     }
 
+    /**
+     * Preempt the current thread, if any other thread is ready to run. The
+     * current thread yields and starts a fresh time slice when it next runs.
+     * Called by the alarm on return from a timer interrupt, with interrupts
+     * disabled.
+     */
+    static void preempt() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	if (numReady == 0)
+	    return;
+
+	currentThread.numPreemptions++;
+	KThread.yield();
+    }
+
+    /**
+     * Return the number of ticks of its current time slice this thread has
+     * run. A thread that yields starts a new slice when it next runs; a
+     * thread that blocks continues its old one. Must be called with
+     * interrupts disabled.
+     *
+     * @return	the ticks of the current slice used so far.
+     */
+    public long getSliceUsed() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	if (this == currentThread)
+	    return sliceUsed + (Machine.timer().getTime() - dispatchTime);
+	else
+	    return sliceUsed;
+    }
+
+    /**
+     * Return the number of times this thread has been preempted by the
+     * timer.
+     *
+     * @return	the number of preemptions.
+     */
+    public int getNumPreemptions() {
+	return numPreemptions;
+    }
+
+    /**
+     * Return the number of times this thread gave up the processor itself,
+     * by yielding or blocking.
+     *
+     * @return	the number of voluntary context switches.
+     */
+    public int getNumVoluntarySwitches() {
+	return numSwitches - numPreemptions;
+    }
+
+    /**
+     * Return the number of ticks this thread has run, including the current
+     * slice if it is running.
+     *
+     * @return	the ticks run.
+     */
+    public long getRunTicks() {
+	if (this == currentThread)
+	    return runTicks + (Machine.timer().getTime() - dispatchTime);
+	else
+	    return runTicks;
+    }
+
+    /**
+     * Return the number of ticks this thread has spent on the ready queue,
+     * between <tt>ready()</tt> and being given the processor.
+     *
+     * @return	the ticks spent ready but not running.
+     */
+    public long getReadyTicks() {
+	return readyTicks;
+    }
+
+    /**
+     * Return the number of ticks this thread has spent blocked, not counting
+     * the current wait if it is blocked now.
+     *
+     * @return	the ticks spent blocked.
+     */
+    public long getBlockedTicks() {
+	return blockedTicks;
+    }
+
+    /**
+     * Return the number of times the scheduler raised this thread's effective
+     * priority on behalf of threads waiting for it.
+     *
+     * @return	the number of donations received.
+     */
+    public int getNumDonations() {
+	return numDonations;
+    }
+
+    /**
+     * Print the accounting totals of all finished threads, the current
+     * thread, and the ready queue. Called when the kernel terminates.
+     */
+    public static void printStats() {
+	System.out.println("Threads: finished " + numFinished
+			   + ", run " + totalRunTicks
+			   + ", ready " + totalReadyTicks
+			   + ", blocked " + totalBlockedTicks
+			   + ", voluntary switches " + totalVoluntarySwitches
+			   + ", preemptions " + totalPreemptions
+			   + ", donations " + totalDonations);
+
+	if (currentThread != null) {
+	    System.out.println("Current thread " + currentThread
+			       + ": run " + currentThread.getRunTicks()
+			       + ", ready " + currentThread.readyTicks
+			       + ", blocked " + currentThread.blockedTicks
+			       + ", voluntary switches "
+			       + currentThread.getNumVoluntarySwitches()
+			       + ", preemptions " + currentThread.numPreemptions
+			       + ", donations " + currentThread.numDonations);
+	}
+
+	if (readyQueue != null)
+	    readyQueue.printStats("Ready queue");
+    }
+
     /**
      * Waits for this thread to finish. If this thread is already finished,
      * return immediately. This method must only be called once; the second
@@ -329,6 +479,8 @@ public class KThread {
 	KThread nextThread = readyQueue.nextThread();
 	if (nextThread == null)
 	    nextThread = idleThread;
+	else
+	    numReady--;
 
 	nextThread.run();
     }
@@ -360,6 +512,25 @@ public class KThread {
 
 	currentThread.saveState();
 
+	// a thread that blocks keeps what is left of its time slice
+	long now = Machine.timer().getTime();
+	if (currentThread.status == statusReady)
+	    currentThread.sliceUsed = 0;
+	else
+	    currentThread.sliceUsed += now - currentThread.dispatchTime;
+
+	currentThread.runTicks += now - currentThread.dispatchTime;
+	if (currentThread.status != statusFinished)
+	    currentThread.numSwitches++;
+	if (currentThread.status == statusBlocked)
+	    currentThread.stateTime = now;
+
+	readyTicks += now - stateTime;
+	stateTime = now;
+	dispatchTime = now;
+
+	ThreadedKernel.scheduler.threadSwitch(currentThread, this);
+
 	Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
 		  + " to: " + toString());
 
@@ -476,6 +647,30 @@ public class KThread {
         //-----------------LotteryScheduler Test--------------
         //LotteryScheduler scheduler2 = new LotteryScheduler();
         //scheduler2.selfTest();
+
+        //-----------------FairScheduler Test--------------
+        //new FairScheduler().selfTest();
+
+        //-----------------FeedbackScheduler Test--------------
+        //new FeedbackScheduler().selfTest();
+
+        //-----------------DeadlineScheduler Test--------------
+        //new DeadlineScheduler().selfTest();
+
+        //-----------------Scheduler Benchmark--------------
+        //SchedulerBenchmark.selfTest();
+
+        //-----------------ReadWriteLock Test--------------
+        //ReadWriteLock.selfTest();
+
+        //-----------------Channel Test--------------
+        //Channel.selfTest();
+
+        //-----------------WorkQueue Test--------------
+        //WorkQueue.selfTest();
+
+        //-----------------Elevator Benchmark--------------
+        //ElevatorBenchmark.selfTest();
     }
 
     private static final char dbgThread = 't';
@@ -505,6 +700,23 @@ public class KThread {
     private boolean joined = false;
     private ThreadQueue joinQueue = null;
 
+    /** Ticks of the current time slice used before the last switch. */
+    private long sliceUsed = 0;
+    /** The time this thread was last given the processor. */
+    private long dispatchTime = 0;
+    private int numPreemptions = 0;
+
+    /** Ticks run, ready but not running, and blocked. */
+    private long runTicks = 0, readyTicks = 0, blockedTicks = 0;
+    /** The time this thread last became ready, running or blocked. */
+    private long stateTime = 0;
+    /** Times this thread gave up the processor without finishing. */
+    private int numSwitches = 0;
+    /** Donations received, counted by the scheduler. */
+    int numDonations = 0;
+    /** The time this thread joined the queue it is waiting on. */
+    long queuedTime = 0;
+
     /**
      * Unique identifer for this thread. Used to deterministically compare
      * threads.
@@ -514,7 +726,15 @@ public class KThread {
     private static int numCreated = 0;
 
     private static ThreadQueue readyQueue = null;
+    /** The number of threads (other than the idle thread) ready to run. */
+    private static int numReady = 0;
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
+
+    private static int numFinished = 0;
+    private static long totalRunTicks = 0, totalReadyTicks = 0;
+    private static long totalBlockedTicks = 0;
+    private static int totalVoluntarySwitches = 0, totalPreemptions = 0;
+    private static int totalDonations = 0;
 }
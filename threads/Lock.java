@@ -18,12 +18,30 @@ import nachos.machine.*;
  * Also, only the thread that acquired a lock may release it. As with
  * semaphores, the API does not allow you to read the lock state (because the
  * value could change immediately after you read it).
+ *
+ * <p>
+ * Kernel threads only switch when they yield, block, or re-enable
+ * interrupts, so acquiring a free lock and releasing a lock nobody waits for
+ * are done without touching the interrupt state, saving the kernel tick that
+ * re-enabling interrupts costs. Such a lock's wait queue only learns who
+ * holds it when a second thread has to wait.
  */
 public class Lock {
     /**
      * Allocate a new lock. The lock will initially be <i>free</i>.
      */
     public Lock() {
+	this(null);
+    }
+
+    /**
+     * Allocate a new lock with a name for the lock profile. The lock will
+     * initially be <i>free</i>.
+     *
+     * @param	name	the name to report contention under.
+     */
+    public Lock(String name) {
+	profile = LockProfile.create("Lock", name);
     }
 
     /**
@@ -33,33 +51,121 @@ public class Lock {
     public void acquire() {
 	Lib.assertTrue(!isHeldByCurrentThread());
 
-	boolean intStatus = Machine.interrupt().disable();
 	KThread thread = KThread.currentThread();
 
-	if (lockHolder != null) {
-	    waitQueue.waitForAccess(thread);
-	    KThread.sleep();
-	}
-	else {
-	    waitQueue.acquire(thread);
+	// uncontended: nothing can run between the test and the set
+	if (lockHolder == null) {
 	    lockHolder = thread;
+	    queueStale = true;
+	    fastPath();
+	    if (profile != null)
+		profile.acquired();
+	    return;
 	}
 
+	numSlowPaths++;
+	boolean intStatus = Machine.interrupt().disable();
+	long waitStart = Machine.timer().getTime();
+
+	enqueue(thread);
+	KThread.sleep();
+
 	Lib.assertTrue(lockHolder == thread);
 
+	if (profile != null) {
+	    profile.waited(waitStart);
+	    profile.acquired();
+	}
+
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Try to acquire this lock, waiting at most <i>timeout</i> ticks for it.
+     * The current thread must not already hold this lock.
+     *
+     * @param	timeout	the maximum number of ticks to wait, or 0 to return
+     *			at once if the lock is busy.
+     * @return	<tt>true</tt> if the current thread now holds this lock.
+     */
+    public boolean tryAcquire(long timeout) {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	KThread thread = KThread.currentThread();
+
+	if (lockHolder == null) {
+	    lockHolder = thread;
+	    queueStale = true;
+	    fastPath();
+	    if (profile != null)
+		profile.acquired();
+	    return true;
+	}
+
+	if (timeout <= 0)
+	    return false;
+
+	numSlowPaths++;
+	boolean intStatus = Machine.interrupt().disable();
+	long waitStart = Machine.timer().getTime();
+
+	enqueue(thread);
+	boolean acquired = ThreadedKernel.alarm.waitOn(waitQueue, timeout);
+
+	Lib.assertTrue((lockHolder == thread) == acquired);
+	// a thread that was handed the lock was counted out by release()
+	if (!acquired)
+	    numWaiters--;
+
+	if (profile != null) {
+	    profile.waited(waitStart);
+	    if (acquired)
+		profile.acquired();
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return acquired;
+    }
+
+    private void enqueue(KThread thread) {
+	// tell the queue who holds the lock, so the holder gets the donation
+	if (queueStale) {
+	    waitQueue.acquire(lockHolder);
+	    queueStale = false;
+	}
+
+	numWaiters++;
+	waitQueue.waitForAccess(thread);
+    }
+
     /**
      * Atomically release this lock, allowing other threads to acquire it.
      */
     public void release() {
 	Lib.assertTrue(isHeldByCurrentThread());
 
+	if (profile != null)
+	    profile.released();
+
+	if (numWaiters == 0) {
+	    lockHolder = null;
+	    queueStale = true;
+	    fastPath();
+	    return;
+	}
+
+	numSlowPaths++;
 	boolean intStatus = Machine.interrupt().disable();
 
-	if ((lockHolder = waitQueue.nextThread()) != null)
+	// the only waiter may have timed out and not yet counted itself out
+	lockHolder = waitQueue.nextThread();
+	if (lockHolder != null) {
+	    numWaiters--;
 	    lockHolder.ready();
+	}
+	else {
+	    queueStale = true;
+	}
 	
 	Machine.interrupt().restore(intStatus);
     }
@@ -73,7 +179,42 @@ public class Lock {
 	return (lockHolder == KThread.currentThread());
     }
 
+    /**
+     * Print how many lock operations took the fast path, and the kernel ticks
+     * that saved. Called when the kernel terminates.
+     */
+    public static void printStats() {
+	if (numFastPaths + numSlowPaths == 0)
+	    return;
+
+	System.out.println("Locks: fast path " + numFastPaths
+			   + ", slow path " + numSlowPaths
+			   + ", kernel ticks saved " + ticksSaved);
+    }
+
+    /**
+     * Count an operation that did not disable interrupts. Had it done so,
+     * re-enabling them would have cost a kernel tick.
+     */
+    private static void fastPath() {
+	numFastPaths++;
+	if (Machine.interrupt().enabled())
+	    ticksSaved += Stats.KernelTick;
+    }
+
+    private static int numFastPaths = 0, numSlowPaths = 0;
+    private static long ticksSaved = 0;
+
     private KThread lockHolder = null;
+    /**
+     * The threads that have started waiting and not yet been handed the lock
+     * or given up. Never less than the number in <tt>waitQueue</tt>.
+     */
+    private int numWaiters = 0;
+    /** <tt>true</tt> if <tt>waitQueue</tt> may not know the holder. */
+    private boolean queueStale = false;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(true);
+    /** The contention profile, or <tt>null</tt> if profiling is off. */
+    private LockProfile profile;
 }
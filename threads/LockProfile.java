@@ -0,0 +1,190 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Contention statistics for one <tt>Lock</tt>, <tt>Semaphore</tt>,
+ * <tt>Condition</tt> or <tt>Condition2</tt>. Profiling is off unless
+ * <tt>LockProfile.enabled</tt> is set to true. When it is off, no profile is
+ * created, and each operation costs one test of a <tt>null</tt> field.
+ *
+ * <p>
+ * Each profile counts acquisitions, and how many of them had to wait. It
+ * totals the ticks spent waiting and, for locks, the ticks the lock was held,
+ * and remembers the thread that waited longest. For a condition variable,
+ * an acquisition is the re-acquire of its lock after a wake-up, and only the
+ * time to get the lock back counts as waiting; the time spent asleep until
+ * signalled is totalled separately, as signal wait. When the kernel
+ * terminates, the profiles with the most waiting are listed, each named by
+ * the name given when the object was constructed, or if it has none, by the
+ * class and line that constructed it.
+ */
+class LockProfile {
+    private LockProfile(String kind, String name) {
+	this.kind = kind;
+	this.name = (name != null) ? name : constructionSite();
+    }
+
+    /**
+     * Return a new profile, or <tt>null</tt> if profiling is disabled.
+     *
+     * @param	kind	the kind of object profiled.
+     * @param	name	the object's name, or <tt>null</tt> to name it by its
+     *			construction site.
+     * @return	the new profile, or <tt>null</tt>.
+     */
+    static LockProfile create(String kind, String name) {
+	if (!enabled)
+	    return null;
+
+	LockProfile profile = new LockProfile(kind, name);
+	profiles.add(profile);
+	return profile;
+    }
+
+    /**
+     * Count an acquisition, and start timing the hold.
+     */
+    void acquired() {
+	numAcquires++;
+	holdStart = Machine.timer().getTime();
+    }
+
+    /**
+     * Count an acquisition that had to wait, from <i>since</i> until now.
+     * The current thread is the waiter.
+     *
+     * @param	since	the time the wait began.
+     */
+    void waited(long since) {
+	long wait = Machine.timer().getTime() - since;
+
+	numContended++;
+	totalWaitTicks += wait;
+	if (wait > maxWaitTicks) {
+	    maxWaitTicks = wait;
+	    longestWaiter = KThread.currentThread().getName();
+	}
+    }
+
+    /**
+     * Count a wake-up from a condition variable, and the re-acquire of its
+     * lock that followed, which ends now. The re-acquire counts as contended
+     * only if it took any time. The current thread is the sleeper.
+     *
+     * @param	since	the time the thread went to sleep.
+     * @param	wokenAt	the time the thread woke up.
+     */
+    void reacquired(long since, long wokenAt) {
+	numSleeps++;
+	totalSleepTicks += wokenAt - since;
+	maxSleepTicks = Math.max(maxSleepTicks, wokenAt - since);
+
+	acquired();
+	if (Machine.timer().getTime() > wokenAt)
+	    waited(wokenAt);
+    }
+
+    /**
+     * Count a release, ending the hold timed since the last acquisition.
+     */
+    void released() {
+	long hold = Machine.timer().getTime() - holdStart;
+
+	numReleases++;
+	totalHoldTicks += hold;
+	maxHoldTicks = Math.max(maxHoldTicks, hold);
+    }
+
+    /**
+     * Name an object by the first stack frame outside the synchronization
+     * classes, which is where it was constructed.
+     */
+    private static String constructionSite() {
+	StackTraceElement[] stack = new Throwable().getStackTrace();
+
+	for (int i=0; i<stack.length; i++) {
+	    String className = stack[i].getClassName();
+	    if (!className.equals(LockProfile.class.getName()) &&
+		!className.equals(Lock.class.getName()) &&
+		!className.equals(Semaphore.class.getName()) &&
+		!className.equals(Condition.class.getName()) &&
+		!className.equals(Condition2.class.getName()))
+		return className + ":" + stack[i].getLineNumber();
+	}
+
+	return "unknown";
+    }
+
+    /**
+     * Print the profiles with the most ticks spent waiting. Does nothing if
+     * profiling is disabled. Called when the kernel terminates.
+     */
+    static void printStats() {
+	if (!enabled)
+	    return;
+
+	ArrayList<LockProfile> sorted = new ArrayList<LockProfile>(profiles);
+	Collections.sort(sorted, new Comparator<LockProfile>() {
+		public int compare(LockProfile a, LockProfile b) {
+		    if (a.totalWaitTicks != b.totalWaitTicks)
+			return (a.totalWaitTicks > b.totalWaitTicks) ? -1 : 1;
+		    return b.numContended - a.numContended;
+		}
+	    });
+
+	int count = Math.min(numReported, sorted.size());
+	System.out.println("Lock profile: " + profiles.size()
+			   + " objects, the " + count + " most waited for:");
+
+	for (int i=0; i<count; i++) {
+	    LockProfile p = sorted.get(i);
+	    if (p.numAcquires == 0)
+		break;
+
+	    System.out.print("  " + p.kind + " " + p.name
+			     + ": acquisitions " + p.numAcquires
+			     + ", contended " + p.numContended
+			     + ", wait " + p.totalWaitTicks
+			     + " (max " + p.maxWaitTicks);
+	    if (p.longestWaiter != null)
+		System.out.print(", by " + p.longestWaiter);
+	    System.out.print(")");
+
+	    if (p.numSleeps > 0) {
+		System.out.print(", sleeps " + p.numSleeps
+				 + ", signal wait " + p.totalSleepTicks
+				 + " (max " + p.maxSleepTicks + ")");
+	    }
+	    if (p.numReleases > 0) {
+		System.out.print(", hold " + p.totalHoldTicks
+				 + " (mean " + p.totalHoldTicks/p.numReleases
+				 + ", max " + p.maxHoldTicks + ")");
+	    }
+	    System.out.println();
+	}
+    }
+
+    private String kind;
+    private String name;
+
+    private int numAcquires = 0, numContended = 0, numReleases = 0;
+    private long totalWaitTicks = 0, maxWaitTicks = 0;
+    private long totalHoldTicks = 0, maxHoldTicks = 0;
+    private int numSleeps = 0;
+    private long totalSleepTicks = 0, maxSleepTicks = 0;
+    private long holdStart = 0;
+    private String longestWaiter = null;
+
+    private static final boolean enabled =
+	Config.getBoolean("LockProfile.enabled", false);
+    private static final int numReported =
+	Config.getInteger("LockProfile.report", 10);
+
+    private static ArrayList<LockProfile> profiles =
+	new ArrayList<LockProfile>();
+}
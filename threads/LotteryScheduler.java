@@ -208,8 +208,11 @@ public class LotteryScheduler extends Scheduler {
         public void waitForAccess(KThread thread) {
             Lib.assertTrue(Machine.interrupt().disabled());
             ThreadState state = getThreadState(thread);
+            if (transferPriority)
+                countDonations();
             state.waitForAccess(this);
             waitQueue.add(state);
+            enqueued(thread);
         }
 
         /**
@@ -225,6 +228,43 @@ public class LotteryScheduler extends Scheduler {
             ThreadState state = getThreadState(thread);
             curThread = state;
             state.acquire(this);
+            //threads still waiting now add their tickets to the new holder
+            if (transferPriority && !waitQueue.isEmpty())
+                state.thread.numDonations++;
+        }
+
+        /**
+        * a new thread shares the resource (e.g., a read lock) with the
+        * current sharers; every sharer receives the waiters' tickets
+        *
+        * @param	thread the thread who now shares the access
+        */
+        public void acquireShared(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            ThreadState state = getThreadState(thread);
+            if (sharers.contains(state))
+                return;
+            sharers.add(state);
+            state.acquire(this);
+            if (transferPriority && !waitQueue.isEmpty())
+                state.thread.numDonations++;
+        }
+
+        /**
+        * a thread gives up its access, shared or not
+        *
+        * @param	thread the thread who has released the access
+        */
+        public void release(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            ThreadState state = getThreadState(thread);
+            //a thread can be both the holder and a sharer; drop each role
+            if (curThread == state) {
+                curThread = null;
+                state.release(this);
+            }
+            if (sharers.remove(state))
+                state.release(this);
         }
 
         public KThread nextThread() {
@@ -235,11 +275,29 @@ public class LotteryScheduler extends Scheduler {
                 return null;
             //pop it from the queue
             waitQueue.remove(nextThread);
+            dequeued(nextThread.getThread());
             //and acquire the resource
             acquire(nextThread.getThread());
             return nextThread.getThread();
         }
 
+        /**
+        * a waiting thread gives up (e.g., its timeout ran out)
+        *
+        * @param	thread the thread who stops waiting
+        */
+        public boolean remove(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            ThreadState state = getThreadState(thread);
+            if (!waitQueue.remove(state))
+                return false;
+            dequeued(thread);
+            //it no longer gives its tickets to the holder
+            state.needQueue.remove(this);
+            invalidCache();
+            return true;
+        }
+
         /**
         * Return the next thread that <tt>nextThread()</tt> would return,
         * without modifying the state of this queue.
@@ -252,8 +310,8 @@ public class LotteryScheduler extends Scheduler {
             
             // System.out.println("\n\n" + "Start getting total priority");
             int totalPriority = 0;
-            for (int i = 0; i < waitQueue.size(); i++) { 
-                ThreadState curThread = waitQueue.get(i);
+            for (Iterator<ThreadState> i = waitQueue.iterator();i.hasNext();) { 
+                ThreadState curThread = i.next();
                 int realPriority = curThread.getEffectivePriority();
                 totalPriority += realPriority;
             }
@@ -264,8 +322,8 @@ public class LotteryScheduler extends Scheduler {
             }
 
             int target = 1 + Lib.random(totalPriority), cumsum = 0;
-            for (int i = 0; i < waitQueue.size(); i++) { 
-                ThreadState curThread = waitQueue.get(i);
+            for (Iterator<ThreadState> i = waitQueue.iterator();i.hasNext();) { 
+                ThreadState curThread = i.next();
                 int realPriority = curThread.getEffectivePriority();
                 cumsum += realPriority;
                 if (cumsum >= target) {
@@ -287,8 +345,8 @@ public class LotteryScheduler extends Scheduler {
             if (transferPriority == true && !validCache) {
                 validCache = true;
                 effectivePriority = 0;
-                for (int i = 0;i < waitQueue.size(); i++) {
-                    ThreadState curThread = waitQueue.get(i);
+                for (Iterator<ThreadState> i = waitQueue.iterator();i.hasNext();) {
+                    ThreadState curThread = i.next();
                     int realPriority = curThread.getEffectivePriority();
                     effectivePriority += realPriority;
                 }
@@ -296,10 +354,24 @@ public class LotteryScheduler extends Scheduler {
             return effectivePriority;
         }
 
+        /**
+        * count a donation to each holder; a new waiter has at least one
+        * ticket, and every ticket it has is added to theirs
+        */
+        private void countDonations() {
+            if (curThread != null)
+                curThread.thread.numDonations++;
+            for (int i = 0;i < sharers.size();i ++)
+                sharers.get(i).thread.numDonations++;
+        }
+
         public void invalidCache() {
             validCache = false;
             if (transferPriority == true && curThread != null)
                 curThread.invalidCache(); 
+            if (transferPriority == true)
+                for (int i = 0;i < sharers.size();i ++)
+                    sharers.get(i).invalidCache();
         }
         
         public void print() {
@@ -323,9 +395,11 @@ public class LotteryScheduler extends Scheduler {
         protected boolean validCache = false;
 
         /** A queue of waiting threads */
-        protected LinkedList<ThreadState> waitQueue = new LinkedList<ThreadState>();
+        protected LinkedHashSet<ThreadState> waitQueue = new LinkedHashSet<ThreadState>();
         /** curThread: who is having this resource*/
         protected ThreadState curThread = null; 
+        /** sharers: who is sharing this resource*/
+        protected LinkedList<ThreadState> sharers = new LinkedList<ThreadState>();
     }
 
     /**
@@ -4,6 +4,7 @@ import nachos.machine.*;
 
 import java.util.TreeSet;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -177,6 +178,24 @@ public class PriorityScheduler extends Scheduler {
     	System.out.println("\n\n" + queue3.nextThread().getName());
     	System.out.println("\n\n" + queue3.nextThread().getName());
     	System.out.println("\n\n" + queue3.nextThread().getName());
+    	//donations are counted when a waiter raises the holder, even if
+    	//nobody asks for the holder's effective priority in between
+    	KThread holder = new KThread(simpleRun).setName("holder");
+    	KThread donor1 = new KThread(simpleRun).setName("donor1");
+    	KThread donor2 = new KThread(simpleRun).setName("donor2");
+    	KThread donor3 = new KThread(simpleRun).setName("donor3");
+    	setPriority(holder, priorityMinimum);
+    	setPriority(donor1, priorityDefault);
+    	setPriority(donor2, priorityMaximum);
+    	setPriority(donor3, priorityMaximum);
+    	PriorityQueue queue4 = new PriorityQueue(true);
+    	queue4.acquire(holder);
+    	queue4.waitForAccess(donor1);
+    	queue4.waitForAccess(donor2);
+    	queue4.waitForAccess(donor3);
+    	//donor3 does not raise holder any further
+    	System.out.println("Donations to holder (2): " + holder.getNumDonations());
+    	Lib.assertTrue(holder.getNumDonations() == 2);
     }
 
     /**
@@ -195,8 +214,11 @@ public class PriorityScheduler extends Scheduler {
 	public void waitForAccess(KThread thread) {
 	    Lib.assertTrue(Machine.interrupt().disabled());
 	    ThreadState state = getThreadState(thread);
+	    if (transferPriority)
+	    	countDonations(state.getEffectivePriority());
 	    state.waitForAccess(this);
 	    waitQueue.add(state);
+	    enqueued(thread);
 	}
 
 	/**
@@ -211,7 +233,46 @@ public class PriorityScheduler extends Scheduler {
 	    	curThread.release(this);
 	    ThreadState state = getThreadState(thread);
 	    curThread = state;
+	    int oldPriority = state.getEffectivePriority();
 	    state.acquire(this);
+	    //threads still waiting now donate to the new holder
+	    if (transferPriority && state.getEffectivePriority() > oldPriority)
+	    	state.thread.numDonations++;
+	}
+
+	/**
+	 * a new thread shares the resource (e.g., a read lock) with the
+	 * current sharers; every sharer receives the donation
+	 *
+	 * @param	thread the thread who now shares the access
+	 */
+	public void acquireShared(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    ThreadState state = getThreadState(thread);
+	    if (sharers.contains(state))
+	    	return;
+	    sharers.add(state);
+	    int oldPriority = state.getEffectivePriority();
+	    state.acquire(this);
+	    if (transferPriority && state.getEffectivePriority() > oldPriority)
+	    	state.thread.numDonations++;
+	}
+
+	/**
+	 * a thread gives up its access, shared or not
+	 *
+	 * @param	thread the thread who has released the access
+	 */
+	public void release(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    ThreadState state = getThreadState(thread);
+	    //a thread can be both the holder and a sharer; drop each role
+	    if (curThread == state) {
+	    	curThread = null;
+	    	state.release(this);
+	    }
+	    if (sharers.remove(state))
+	    	state.release(this);
 	}
 
 	public KThread nextThread() {
@@ -222,11 +283,29 @@ public class PriorityScheduler extends Scheduler {
 	    	return null;
 	    //pop it from the queue
 	    waitQueue.remove(nextThread);
+	    dequeued(nextThread.getThread());
 	    //and acquire the resource
 	    acquire(nextThread.getThread());
 	    return nextThread.getThread();
 	}
 
+	/**
+	 * a waiting thread gives up (e.g., its timeout ran out)
+	 *
+	 * @param	thread the thread who stops waiting
+	 */
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    ThreadState state = getThreadState(thread);
+	    if (!waitQueue.remove(state))
+	    	return false;
+	    dequeued(thread);
+	    //it no longer donates to the holder
+	    state.needQueue.remove(this);
+	    invalidCache();
+	    return true;
+	}
+
 	/**
 	 * Return the next thread that <tt>nextThread()</tt> would return,
 	 * without modifying the state of this queue.
@@ -238,8 +317,8 @@ public class PriorityScheduler extends Scheduler {
 	    ThreadState nextThread = null; //the nextThread
 	    //Find the one with the highest priority
 	    int curPriority = priorityMinimum - 1;
-	    for (int i = 0;i < waitQueue.size();i++) {
-	    	ThreadState curThread = waitQueue.get(i);
+	    for (Iterator<ThreadState> i = waitQueue.iterator();i.hasNext();) {
+	    	ThreadState curThread = i.next();
 	    	int realPriority = curThread.getEffectivePriority(); //note: it should be the effective priority
 	    	if (realPriority > curPriority) {
 	    		curPriority = realPriority;
@@ -258,8 +337,8 @@ public class PriorityScheduler extends Scheduler {
 		if (transferPriority == true && !validCache) {
 			validCache = true;
 			effectivePriority = priorityMinimum;
-			for (int i = 0;i < waitQueue.size();i ++) {
-				ThreadState curThread = waitQueue.get(i);
+			for (Iterator<ThreadState> i = waitQueue.iterator();i.hasNext();) {
+				ThreadState curThread = i.next();
 				int realPriority = curThread.getEffectivePriority();
 				effectivePriority = Math.max(effectivePriority, realPriority);
 			}
@@ -267,15 +346,39 @@ public class PriorityScheduler extends Scheduler {
 		return effectivePriority;
 	}
 
+	/**
+	 * count a donation to each holder that a new waiter with the given
+	 * effective priority raises
+	 *
+	 * @param	priority the effective priority of the new waiter
+	 */
+	private void countDonations(int priority) {
+	    if (curThread != null && priority > curThread.getEffectivePriority())
+	    	curThread.thread.numDonations++;
+	    for (int i = 0;i < sharers.size();i ++)
+	    	if (priority > sharers.get(i).getEffectivePriority())
+	    		sharers.get(i).thread.numDonations++;
+	}
+
 	public void invalidCache() {
 		validCache = false;
 		if (transferPriority == true && curThread != null)
 			curThread.invalidCache(); 
+		if (transferPriority == true)
+			for (int i = 0;i < sharers.size();i ++)
+				sharers.get(i).invalidCache();
 	}
 	
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me (if you want)
+
+	    for (Iterator<ThreadState> i = waitQueue.iterator();i.hasNext();) {
+	    	ThreadState state = i.next();
+	    	System.out.print(state.getThread() + " (priority "
+	    			 + state.getEffectivePriority() + ") ");
+	    }
+	    if (curThread != null)
+	    	System.out.print("held by " + curThread.getThread());
 	}
 
 	/**
@@ -294,9 +397,11 @@ public class PriorityScheduler extends Scheduler {
 	protected boolean validCache = false;
 
 	/** A queue of waiting threads */
-	protected LinkedList<ThreadState> waitQueue = new LinkedList<ThreadState>();
+	protected LinkedHashSet<ThreadState> waitQueue = new LinkedHashSet<ThreadState>();
 	/** curThread: who is having this resource*/
 	protected ThreadState curThread = null; 
+	/** sharers: who is sharing this resource*/
+	protected LinkedList<ThreadState> sharers = new LinkedList<ThreadState>();
     }
 
     /**
@@ -0,0 +1,450 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.HashSet;
+
+/**
+ * A <tt>ReadWriteLock</tt> lets any number of readers, or a single writer,
+ * hold it at a time. It is meant for kernel tables that are read far more
+ * often than they are written.
+ *
+ * <p>
+ * Readers and writers take turns in phases, so neither can starve the other.
+ * While a writer is waiting, new readers wait too. When the last reader
+ * leaves, one waiting writer goes next, and when that writer leaves, every
+ * reader that was waiting is let in together.
+ *
+ * <p>
+ * A reader can become the writer with <tt>upgrade()</tt>, and the writer can
+ * become a reader with <tt>downgrade()</tt>, without letting another writer
+ * in between.
+ *
+ * <p>
+ * Waiting threads donate priority to every thread holding the lock: the
+ * writer, or each of the current readers.
+ */
+public class ReadWriteLock {
+    /**
+     * Allocate a new read-write lock. The lock will initially be free.
+     */
+    public ReadWriteLock() {
+    }
+
+    /**
+     * Acquire this lock for reading, sharing it with other readers. The
+     * current thread must not already hold this lock.
+     */
+    public void acquireRead() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer == null && numWaitingWriters == 0 && upgrader == null) {
+	    addReader(thread);
+	}
+	else {
+	    numWaitingReaders++;
+	    readQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+
+	Lib.assertTrue(readers.contains(thread));
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Release this lock after reading. If the current thread was the last
+     * reader, let a waiting writer in.
+     */
+    public void releaseRead() {
+	KThread thread = KThread.currentThread();
+	Lib.assertTrue(readers.contains(thread));
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	readers.remove(thread);
+	removeHolder(thread);
+
+	if (upgrader != null && readers.size() == 1) {
+	    // only the upgrading reader is left
+	    KThread next = upgradeQueue.nextThread();
+	    Lib.assertTrue(next == upgrader);
+
+	    upgrader = null;
+	    readers.remove(next);
+	    writer = next;
+	    next.ready();
+	}
+	else if (readers.isEmpty()) {
+	    grant(false);
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Acquire this lock for writing, excluding every other thread. The
+     * current thread must not already hold this lock.
+     */
+    public void acquireWrite() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer == null && readers.isEmpty()) {
+	    writer = thread;
+	    addHolder(thread);
+	}
+	else {
+	    numWaitingWriters++;
+	    writeQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+
+	Lib.assertTrue(writer == thread);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Release this lock after writing, and let every waiting reader in, or
+     * if there are none, a waiting writer.
+     */
+    public void releaseWrite() {
+	Lib.assertTrue(isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	removeHolder(writer);
+	writer = null;
+	grant(true);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Turn the current thread's read lock into the write lock, waiting for
+     * the other readers to leave. Only one reader can be upgrading at a
+     * time, since two could never both succeed.
+     *
+     * @return	<tt>true</tt> if the current thread now holds the write lock,
+     *		or <tt>false</tt> if another reader is already upgrading, in
+     *		which case the current thread still holds its read lock.
+     */
+    public boolean upgrade() {
+	KThread thread = KThread.currentThread();
+	Lib.assertTrue(readers.contains(thread));
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (upgrader != null) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	if (readers.size() == 1) {
+	    readers.remove(thread);
+	    writer = thread;
+	}
+	else {
+	    upgrader = thread;
+	    upgradeQueue.release(thread);
+	    upgradeQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+
+	Lib.assertTrue(writer == thread);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * Turn the current thread's write lock into a read lock, and let the
+     * waiting readers in with it.
+     */
+    public void downgrade() {
+	KThread thread = KThread.currentThread();
+	Lib.assertTrue(isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	writer = null;
+	readers.add(thread);
+	grantReaders();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the current thread holds this lock, for reading or writing.
+     *
+     * @return	true if the current thread holds this lock.
+     */
+    public boolean isHeldByCurrentThread() {
+	KThread thread = KThread.currentThread();
+	return (writer == thread || readers.contains(thread));
+    }
+
+    /**
+     * Test if the current thread holds this lock for writing.
+     *
+     * @return	true if the current thread is the writer.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+	return (writer == KThread.currentThread());
+    }
+
+    /**
+     * Hand the free lock to the waiting threads: a writer, or all waiting
+     * readers together.
+     *
+     * @param	readersFirst	<tt>true</tt> if a writer just left, so the
+     *				readers take the next turn.
+     */
+    private void grant(boolean readersFirst) {
+	if (readersFirst && numWaitingReaders > 0) {
+	    grantReaders();
+	}
+	else if (numWaitingWriters > 0) {
+	    numWaitingWriters--;
+	    writer = writeQueue.nextThread();
+	    addHolder(writer);
+	    writer.ready();
+	}
+	else {
+	    grantReaders();
+	}
+    }
+
+    private void grantReaders() {
+	while (numWaitingReaders > 0) {
+	    numWaitingReaders--;
+	    KThread thread = readQueue.nextThread();
+	    addReader(thread);
+	    thread.ready();
+	}
+    }
+
+    private void addReader(KThread thread) {
+	readers.add(thread);
+	addHolder(thread);
+    }
+
+    /**
+     * Make the specified thread one of the threads every waiter donates
+     * priority to.
+     */
+    private void addHolder(KThread thread) {
+	readQueue.acquireShared(thread);
+	writeQueue.acquireShared(thread);
+	upgradeQueue.acquireShared(thread);
+    }
+
+    private void removeHolder(KThread thread) {
+	readQueue.release(thread);
+	writeQueue.release(thread);
+	upgradeQueue.release(thread);
+    }
+
+    private static class Reader implements Runnable {
+	Reader(ReadWriteLock rwLock, Lock lock, long deadline) {
+	    this.rwLock = rwLock;
+	    this.lock = lock;
+	    this.deadline = deadline;
+	}
+
+	public void run() {
+	    while (Machine.timer().getTime() < deadline) {
+		if (rwLock != null)
+		    rwLock.acquireRead();
+		else
+		    lock.acquire();
+
+		// a lookup that has to wait for the disk
+		ThreadedKernel.alarm.waitUntil(1000);
+		reads++;
+
+		if (rwLock != null)
+		    rwLock.releaseRead();
+		else
+		    lock.release();
+
+		KThread.yield();
+	    }
+	}
+
+	ReadWriteLock rwLock;
+	Lock lock;
+	long deadline;
+	int reads = 0;
+    }
+
+    /**
+     * Run the specified number of readers, and one writer that writes every
+     * 10000 ticks, for 100000 ticks, and print how many reads and writes
+     * completed. Every read waits 1000 ticks while holding the lock.
+     *
+     * @param	numReaders	the number of reader threads.
+     * @param	shared		<tt>true</tt> to use a
+     *				<tt>ReadWriteLock</tt>, or <tt>false</tt> to
+     *				use a plain <tt>Lock</tt> for comparison.
+     */
+    public static void benchmark(int numReaders, boolean shared) {
+	final ReadWriteLock rwLock = shared ? new ReadWriteLock() : null;
+	final Lock lock = shared ? null : new Lock();
+	final long deadline = Machine.timer().getTime() + 100000;
+	final int[] writes = new int[1];
+
+	Reader[] readers = new Reader[numReaders];
+	KThread[] threads = new KThread[numReaders];
+	for (int i=0; i<numReaders; i++) {
+	    readers[i] = new Reader(rwLock, lock, deadline);
+	    threads[i] = new KThread(readers[i]).setName("reader " + i);
+	    threads[i].fork();
+	}
+
+	KThread writer = new KThread(new Runnable() {
+		public void run() {
+		    while (Machine.timer().getTime() < deadline) {
+			ThreadedKernel.alarm.waitUntil(10000);
+
+			if (rwLock != null)
+			    rwLock.acquireWrite();
+			else
+			    lock.acquire();
+
+			writes[0]++;
+
+			if (rwLock != null)
+			    rwLock.releaseWrite();
+			else
+			    lock.release();
+		    }
+		}
+	    }).setName("writer");
+	writer.fork();
+
+	for (int i=0; i<numReaders; i++)
+	    threads[i].join();
+	writer.join();
+
+	int reads = 0;
+	for (int i=0; i<numReaders; i++)
+	    reads += readers[i].reads;
+
+	System.out.println((shared ? "ReadWriteLock" : "Lock") + ", "
+			   + numReaders + " readers: reads " + reads
+			   + ", writes " + writes[0]);
+    }
+
+    /**
+     * Test that readers share the lock and writers exclude everyone, then
+     * compare read throughput with a plain <tt>Lock</tt> as the number of
+     * readers grows.
+     */
+    public static void selfTest() {
+	System.out.println("\n\nReadWriteLock Test");
+
+	final ReadWriteLock rwLock = new ReadWriteLock();
+	final int[] inside = new int[1];
+
+	rwLock.acquireRead();
+	KThread reader = new KThread(new Runnable() {
+		public void run() {
+		    rwLock.acquireRead();
+		    inside[0]++;
+		    rwLock.releaseRead();
+		}
+	    }).setName("reader");
+	reader.fork();
+	reader.join();
+	System.out.println("second reader got in beside the first: "
+			   + (inside[0] == 1));
+
+	KThread writer = new KThread(new Runnable() {
+		public void run() {
+		    rwLock.acquireWrite();
+		    inside[0]++;
+		    rwLock.releaseWrite();
+		}
+	    }).setName("writer");
+	writer.fork();
+	KThread.yield();
+	System.out.println("writer kept out by a reader: " + (inside[0] == 1));
+
+	Lib.assertTrue(rwLock.upgrade());
+	Lib.assertTrue(rwLock.isWriteHeldByCurrentThread());
+	rwLock.downgrade();
+	rwLock.releaseRead();
+	writer.join();
+	System.out.println("writer got in once the reader left: "
+			   + (inside[0] == 2));
+
+	// a writer handed the lock by a reader stops receiving donations once
+	// it has released it
+	final Semaphore parked = new Semaphore(0);
+	rwLock.acquireRead();
+	KThread handed = new KThread(new Runnable() {
+		public void run() {
+		    rwLock.acquireWrite();
+		    rwLock.releaseWrite();
+		    parked.P();
+		}
+	    }).setName("handed writer");
+	handed.fork();
+	KThread.yield();
+	rwLock.releaseRead();
+	KThread.yield();
+
+	rwLock.acquireWrite();
+	KThread donor = new KThread(new Runnable() {
+		public void run() {
+		    rwLock.acquireWrite();
+		    rwLock.releaseWrite();
+		}
+	    }).setName("donor");
+	boolean intStatus = Machine.interrupt().disable();
+	if (ThreadedKernel.scheduler instanceof PriorityScheduler)
+	    ThreadedKernel.scheduler.setPriority(donor,
+					PriorityScheduler.priorityMaximum);
+	Machine.interrupt().restore(intStatus);
+	donor.fork();
+	KThread.yield();
+
+	intStatus = Machine.interrupt().disable();
+	boolean dropped = ThreadedKernel.scheduler.getEffectivePriority(handed)
+	    == ThreadedKernel.scheduler.getPriority(handed);
+	Machine.interrupt().restore(intStatus);
+	System.out.println("released writer no longer receives donations: "
+			   + dropped);
+
+	rwLock.releaseWrite();
+	parked.V();
+	donor.join();
+	handed.join();
+
+	for (int n=1; n<=16; n*=2) {
+	    benchmark(n, false);
+	    benchmark(n, true);
+	}
+    }
+
+    private KThread writer = null;
+    private HashSet<KThread> readers = new HashSet<KThread>();
+    /** The reader waiting in <tt>upgrade()</tt>, if any. */
+    private KThread upgrader = null;
+
+    private int numWaitingReaders = 0, numWaitingWriters = 0;
+
+    private ThreadQueue readQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+    private ThreadQueue writeQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+    private ThreadQueue upgradeQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+}
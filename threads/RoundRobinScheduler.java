@@ -2,12 +2,13 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.LinkedList;
+import java.util.LinkedHashSet;
 import java.util.Iterator;
 
 /**
  * A round-robin scheduler tracks waiting threads in FIFO queues, implemented
- * with linked lists. When a thread begins waiting for access, it is appended
+ * with linked hash sets, so a thread can also be removed from the middle of a
+ * queue in constant time. When a thread begins waiting for access, it is appended
  * to the end of a list. The next thread to receive access is always the first
  * thread in the list. This causes access to be given on a first-come
  * first-serve basis.
@@ -40,6 +41,7 @@ public class RoundRobinScheduler extends Scheduler {
 	    Lib.assertTrue(Machine.interrupt().disabled());
 		       
 	    waitQueue.add(thread);
+	    enqueued(thread);
 	}
 
 	/**
@@ -55,7 +57,27 @@ public class RoundRobinScheduler extends Scheduler {
 	    if (waitQueue.isEmpty())
 		return null;
 
-	    return (KThread) waitQueue.removeFirst();
+	    Iterator<KThread> i = waitQueue.iterator();
+	    KThread thread = i.next();
+	    i.remove();
+	    dequeued(thread);
+	    return thread;
+	}
+
+	/**
+	 * Remove a thread from anywhere in the queue.
+	 *
+	 * @param	thread	the thread to remove.
+	 * @return	<tt>true</tt> if the thread was in the queue.
+	 */
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (!waitQueue.remove(thread))
+		return false;
+
+	    dequeued(thread);
+	    return true;
 	}
 
 	/**
@@ -79,6 +101,6 @@ public class RoundRobinScheduler extends Scheduler {
 		System.out.print((KThread) i.next() + " ");
 	}
 
-	private LinkedList<KThread> waitQueue = new LinkedList<KThread>();
+	private LinkedHashSet<KThread> waitQueue = new LinkedHashSet<KThread>();
     }
 }
@@ -9,9 +9,22 @@ import nachos.machine.*;
  */
 public abstract class Scheduler {
     /**
-     * Allocate a new scheduler.
+     * Allocate a new scheduler. Reads the time-slice quanta from
+     * <tt>nachos.conf</tt>: <tt>Scheduler.quantum</tt> is the number of ticks
+     * a thread may run before the timer preempts it (0 disables preemption),
+     * and <tt>Scheduler.quantum</tt><i>p</i> optionally overrides it for
+     * threads of priority <i>p</i>, for <i>p</i> between 0 and 7.
      */
     public Scheduler() {
+	quantum = Config.getInteger("Scheduler.quantum", Stats.TimerTicks);
+	Lib.assertTrue(quantum >= 0);
+
+	priorityQuantum = new int[numPriorityQuanta];
+	for (int p=0; p<numPriorityQuanta; p++) {
+	    priorityQuantum[p] = Config.getInteger("Scheduler.quantum" + p, -1);
+	    if (priorityQuantum[p] >= 0)
+		hasPriorityQuanta = true;
+	}
     }
     
     /**
@@ -52,6 +65,18 @@ public abstract class Scheduler {
      */
     public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+    /**
+     * Allocate the queue of threads waiting to run on the processor. Called
+     * once, by the first <tt>KThread</tt>. By default this is the same as
+     * <tt>newThreadQueue(false)</tt>; schedulers that need to look at the
+     * ready queue can override this to keep a reference to it.
+     *
+     * @return	a new thread queue for the processor.
+     */
+    public ThreadQueue newReadyQueue() {
+	return newThreadQueue(false);
+    }
+
     /**
      * Get the priority of the specified thread. Must be called with
      * interrupts disabled.
@@ -154,4 +179,75 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
 	return false;
     }
+
+    /**
+     * Notify this scheduler that the processor is being dispatched from
+     * <i>previous</i> to <i>next</i>. Called by <tt>KThread.run()</tt> with
+     * interrupts disabled, immediately before the context switch. Schedulers
+     * that charge threads for the time they spend on the processor can use
+     * this to do their accounting; by default it does nothing.
+     *
+     * @param	previous	the thread giving up the processor.
+     * @param	next		the thread about to receive the processor.
+     */
+    public void threadSwitch(KThread previous, KThread next) {
+    }
+
+    /**
+     * Notify this scheduler that the current thread is finishing. Called by
+     * <tt>KThread.finish()</tt> with interrupts disabled. Schedulers that
+     * reserve something for a thread can release it here; by default it
+     * does nothing.
+     *
+     * @param	thread	the finishing thread.
+     */
+    public void threadFinished(KThread thread) {
+    }
+
+    /**
+     * Decide whether the specified thread, which is currently running, should
+     * be preempted. Called by the alarm on every timer interrupt, with
+     * interrupts disabled. By default a thread is preempted once it has used
+     * up its quantum.
+     *
+     * @param	thread	the current thread.
+     * @return	<tt>true</tt> if the current thread should yield the
+     *		processor.
+     */
+    public boolean shouldPreempt(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	int q = getQuantum(thread);
+	return q > 0 && thread.getSliceUsed() >= q;
+    }
+
+    /**
+     * Get the time-slice quantum of the specified thread. Must be called
+     * with interrupts disabled.
+     *
+     * @param	thread	the thread.
+     * @return	the number of ticks the thread may run before it is
+     *		preempted, or 0 if it is never preempted.
+     */
+    public int getQuantum(KThread thread) {
+	if (hasPriorityQuanta) {
+	    int p = getPriority(thread);
+	    if (p >= 0 && p < numPriorityQuanta && priorityQuantum[p] >= 0)
+		return priorityQuantum[p];
+	}
+	return quantum;
+    }
+
+    /**
+     * Print any statistics this scheduler keeps. Called when the kernel
+     * terminates; by default prints nothing.
+     */
+    public void printStats() {
+    }
+
+    private int quantum;
+    private int[] priorityQuantum;
+    private boolean hasPriorityQuanta = false;
+
+    private static final int numPriorityQuanta = 8;
 }
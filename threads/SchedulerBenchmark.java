@@ -0,0 +1,141 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * Measures how the configured scheduler shares the processor among
+ * CPU-bound kernel threads. Run it once under each
+ * <tt>ThreadedKernel.scheduler</tt> to compare schedulers.
+ *
+ * <p>
+ * Half of the worker threads raise their own priority once with
+ * <tt>increasePriority()</tt>. Each worker then repeatedly burns a burst of
+ * kernel ticks and yields, until the deadline passes. For every worker the
+ * benchmark reports the ticks it ran and the time it spent waiting to be
+ * rescheduled after each yield.
+ */
+public class SchedulerBenchmark {
+    /**
+     * Run the benchmark with the default workload.
+     */
+    public static void selfTest() {
+	run(8, 100000, 10);
+	run(200, 1000000, 10);
+	// bursts longer than the quantum, so the timer has to preempt
+	run(8, 100000, 200);
+    }
+
+    /**
+     * Run the benchmark.
+     *
+     * @param	numThreads	the number of worker threads.
+     * @param	duration	how many ticks the workers should run for.
+     * @param	burst		how many kernel ticks each worker runs between
+     *				yields.
+     */
+    public static void run(int numThreads, long duration, int burst) {
+	System.out.println("\n\nScheduler benchmark: "
+			   + ThreadedKernel.scheduler.getClass().getName()
+			   + ", " + numThreads + " threads, "
+			   + duration + " ticks, bursts of " + burst);
+
+	long deadline = Machine.timer().getTime() + duration;
+
+	Worker[] workers = new Worker[numThreads];
+	KThread[] threads = new KThread[numThreads];
+	for (int i=0; i<numThreads; i++) {
+	    workers[i] = new Worker(i % 2 == 0, deadline, burst);
+	    threads[i] = new KThread(workers[i]).setName("worker " + i);
+	    threads[i].fork();
+	}
+	for (int i=0; i<numThreads; i++)
+	    threads[i].join();
+
+	report(workers, true);
+	report(workers, false);
+    }
+
+    private static void report(Worker[] workers, boolean favoured) {
+	long ran = 0, waits = 0, waited = 0, maxWait = 0;
+	int preemptions = 0, maxPreemptions = 0;
+	long minRan = Long.MAX_VALUE, maxRan = 0;
+	double sum = 0, sumSquares = 0;
+	int n = 0;
+
+	for (int i=0; i<workers.length; i++) {
+	    Worker w = workers[i];
+	    if (w.favoured != favoured)
+		continue;
+
+	    n++;
+	    ran += w.ran;
+	    minRan = Math.min(minRan, w.ran);
+	    maxRan = Math.max(maxRan, w.ran);
+	    sum += w.ran;
+	    sumSquares += (double) w.ran * w.ran;
+	    waits += w.waits;
+	    waited += w.waited;
+	    maxWait = Math.max(maxWait, w.maxWait);
+	    preemptions += w.preemptions;
+	    maxPreemptions = Math.max(maxPreemptions, w.preemptions);
+	}
+
+	if (n == 0)
+	    return;
+
+	// Jain's index: 1.0 when every thread ran equally, 1/n when one did
+	double fairness = (sumSquares == 0) ? 1.0 : sum*sum / (n*sumSquares);
+
+	System.out.println((favoured ? "favoured" : "ordinary")
+			   + " threads: " + n
+			   + ", ticks run " + ran
+			   + " (min " + minRan + ", max " + maxRan + ")"
+			   + ", fairness " + fairness
+			   + ", mean wait " + (waits == 0 ? 0 : waited/waits)
+			   + ", max wait " + maxWait
+			   + ", preemptions " + preemptions
+			   + " (max " + maxPreemptions + ")");
+    }
+
+    private static class Worker implements Runnable {
+	Worker(boolean favoured, long deadline, int burst) {
+	    this.favoured = favoured;
+	    this.deadline = deadline;
+	    this.burst = burst;
+	}
+
+	public void run() {
+	    if (favoured)
+		ThreadedKernel.scheduler.increasePriority();
+
+	    long yielded = -1;
+	    while (Machine.timer().getTime() < deadline) {
+		long start = Machine.timer().getTime();
+		if (yielded >= 0) {
+		    long wait = start - yielded;
+		    waits++;
+		    waited += wait;
+		    maxWait = Math.max(maxWait, wait);
+		}
+
+		// each enable advances the clock by one kernel tick
+		for (int i=0; i<burst; i++) {
+		    boolean intStatus = Machine.interrupt().disable();
+		    Machine.interrupt().restore(intStatus);
+		}
+
+		yielded = Machine.timer().getTime();
+		ran += yielded - start;
+		KThread.yield();
+	    }
+
+	    preemptions = KThread.currentThread().getNumPreemptions();
+	}
+
+	boolean favoured;
+	long deadline;
+	int burst;
+	long ran = 0, waits = 0, waited = 0, maxWait = 0;
+	int preemptions = 0;
+    }
+}
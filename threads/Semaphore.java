@@ -20,6 +20,10 @@ import nachos.machine.*;
  * because by the time you get the value, a context switch might have occurred,
  * and some other thread might have called <tt>P()</tt> or <tt>V()</tt>, so the
  * true value might now be different.
+ *
+ * <p>
+ * <tt>P()</tt> on a non-zero semaphore and <tt>V()</tt> on one nobody waits
+ * for do not touch the interrupt state; see <tt>Lock</tt>.
  */
 public class Semaphore {
     /**
@@ -28,24 +32,97 @@ public class Semaphore {
      * @param	initialValue	the initial value of this semaphore.
      */
     public Semaphore(int initialValue) {
+	this(initialValue, (String) null);
+    }
+
+    /**
+     * Allocate a new semaphore with a name for the lock profile.
+     *
+     * @param	initialValue	the initial value of this semaphore.
+     * @param	name		the name to report contention under.
+     */
+    public Semaphore(int initialValue, String name) {
+	this(initialValue, LockProfile.create("Semaphore", name));
+    }
+
+    /**
+     * Allocate a new semaphore with the specified profile, which may be
+     * <tt>null</tt> for a semaphore that is part of another primitive.
+     */
+    Semaphore(int initialValue, LockProfile profile) {
 	value = initialValue;
+	this.profile = profile;
     }
 
     /**
      * Atomically wait for this semaphore to become non-zero and decrement it.
      */
     public void P() {
+	// threads only wait while the value is 0
+	if (value > 0) {
+	    value--;
+	    fastPath();
+	    if (profile != null)
+		profile.acquired();
+	    return;
+	}
+
+	numSlowPaths++;
 	boolean intStatus = Machine.interrupt().disable();
+	long waitStart = Machine.timer().getTime();
+
+	numWaiters++;
+	waitQueue.waitForAccess(KThread.currentThread());
+	KThread.sleep();
 
-	if (value == 0) {
-	    waitQueue.waitForAccess(KThread.currentThread());
-	    KThread.sleep();
+	if (profile != null) {
+	    profile.waited(waitStart);
+	    profile.acquired();
 	}
-	else {
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Wait at most <i>timeout</i> ticks for this semaphore to become non-zero,
+     * and decrement it if it does.
+     *
+     * @param	timeout	the maximum number of ticks to wait, or 0 to return
+     *			at once if the semaphore is zero.
+     * @return	<tt>true</tt> if the semaphore was decremented, or
+     *		<tt>false</tt> if the time ran out.
+     */
+    public boolean P(long timeout) {
+	if (value > 0) {
 	    value--;
+	    fastPath();
+	    if (profile != null)
+		profile.acquired();
+	    return true;
+	}
+
+	if (timeout <= 0)
+	    return false;
+
+	numSlowPaths++;
+	boolean intStatus = Machine.interrupt().disable();
+	long waitStart = Machine.timer().getTime();
+
+	numWaiters++;
+	waitQueue.waitForAccess(KThread.currentThread());
+	boolean woken = ThreadedKernel.alarm.waitOn(waitQueue, timeout);
+	// a thread that was woken was counted out by V()
+	if (!woken)
+	    numWaiters--;
+
+	if (profile != null) {
+	    profile.waited(waitStart);
+	    if (woken)
+		profile.acquired();
 	}
 
 	Machine.interrupt().restore(intStatus);
+	return woken;
     }
 
     /**
@@ -53,10 +130,19 @@ public class Semaphore {
      * sleeping on this semaphore.
      */
     public void V() {
+	if (numWaiters == 0) {
+	    value++;
+	    fastPath();
+	    return;
+	}
+
+	numSlowPaths++;
 	boolean intStatus = Machine.interrupt().disable();
 
+	// the only waiter may have timed out and not yet counted itself out
 	KThread thread = waitQueue.nextThread();
 	if (thread != null) {
+	    numWaiters--;
 	    thread.ready();
 	}
 	else {
@@ -66,6 +152,25 @@ public class Semaphore {
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Print how many semaphore operations took the fast path, and the kernel
+     * ticks that saved. Called when the kernel terminates.
+     */
+    public static void printStats() {
+	if (numFastPaths + numSlowPaths == 0)
+	    return;
+
+	System.out.println("Semaphores: fast path " + numFastPaths
+			   + ", slow path " + numSlowPaths
+			   + ", kernel ticks saved " + ticksSaved);
+    }
+
+    private static void fastPath() {
+	numFastPaths++;
+	if (Machine.interrupt().enabled())
+	    ticksSaved += Stats.KernelTick;
+    }
+
     private static class PingTest implements Runnable {
 	PingTest(Semaphore ping, Semaphore pong) {
 	    this.ping = ping;
@@ -98,7 +203,14 @@ public class Semaphore {
 	}
     }
 
+    private static int numFastPaths = 0, numSlowPaths = 0;
+    private static long ticksSaved = 0;
+
     private int value;
+    /** The threads in <tt>P()</tt> that have not yet been woken or given up. */
+    private int numWaiters = 0;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(false);
+    /** The contention profile, or <tt>null</tt> if profiling is off. */
+    private LockProfile profile;
 }
@@ -1,35 +1,90 @@
 package nachos.threads;
 
-import java.util.LinkedList;
+import java.util.Collection;
 import nachos.machine.*;
 import nachos.threads.*;
 
 /**
  * A synchronized queue.
+ *
+ * <p>
+ * The queue keeps its elements in a ring buffer. An unbounded queue grows the
+ * buffer as needed. A bounded queue never holds more than its capacity: when
+ * it is full, <tt>add()</tt> either waits for room, which slows producers
+ * down to the rate consumers can keep up with, or drops the new element.
+ *
+ * @param	<E>	the type of the elements.
  */
-public class SynchList {
+public class SynchList<E> {
     /**
-     * Allocate a new synchronized queue.
+     * Allocate a new synchronized queue with no limit on its size.
      */
     public SynchList() {
-	list = new LinkedList<Object>();
+	this(0, false);
+    }
+
+    /**
+     * Allocate a new bounded synchronized queue.
+     *
+     * @param	capacity	the most elements the queue can hold, or 0 for
+     *				no limit.
+     * @param	dropWhenFull	<tt>true</tt> if <tt>add()</tt> should drop
+     *				the element when the queue is full, or
+     *				<tt>false</tt> if it should wait for room.
+     */
+    public SynchList(int capacity, boolean dropWhenFull) {
+	Lib.assertTrue(capacity >= 0);
+
+	this.capacity = capacity;
+	this.dropWhenFull = dropWhenFull;
+
+	items = new Object[(capacity > 0) ? capacity : 16];
 	lock = new Lock();
 	listEmpty = new Condition(lock);
+	listFull = new Condition(lock);
     }
 
     /**
      * Add the specified object to the end of the queue. If another thread is
-     * waiting in <tt>removeFirst()</tt>, it is woken up.
+     * waiting in <tt>removeFirst()</tt>, it is woken up. If the queue is
+     * full, wait for room, or drop the object if the queue was created to.
      *
      * @param	o	the object to add. Must not be <tt>null</tt>.
+     * @return	<tt>true</tt> if the object was added, or <tt>false</tt> if
+     *		it was dropped.
      */
-    public void add(Object o) {
+    public boolean add(E o) {
 	Lib.assertTrue(o != null);
-	
+
 	lock.acquire();
-	list.add(o);
+
+	if (capacity > 0 && size == capacity) {
+	    if (dropWhenFull) {
+		numDropped++;
+		lock.release();
+		return false;
+	    }
+
+	    numFullWaits++;
+	    do {
+		numWaitingProducers++;
+		listFull.sleep();
+	    } while (size == capacity);
+	}
+
+	if (size == items.length)
+	    grow();
+
+	items[(head + size) % items.length] = o;
+	size++;
+
+	numAdded++;
+	totalSize += size;
+	maxSize = Math.max(maxSize, size);
+
 	listEmpty.wake();
 	lock.release();
+	return true;
     }
 
     /**
@@ -38,39 +93,140 @@ public class SynchList {
      *
      * @return	the element removed from the front of the queue.
      */
-    public Object removeFirst() {
-	Object o;
+    public E removeFirst() {
+	E o;
+
+	lock.acquire();
+	while (size == 0)
+	    listEmpty.sleep();
+	o = remove();
+	wakeProducers();
+	lock.release();
+
+	return o;
+    }
+
+    /**
+     * Remove up to <i>max</i> objects from the front of the queue and add
+     * them, in order, to <i>c</i>, blocking until the queue is non-empty if
+     * necessary. A consumer that keeps up with a burst this way takes the
+     * whole burst for one wakeup and one lock acquisition.
+     *
+     * @param	c	the collection to add the elements to.
+     * @param	max	the most elements to remove.
+     * @return	the number of elements removed, at least 1.
+     */
+    public int drainTo(Collection<? super E> c, int max) {
+	Lib.assertTrue(max > 0);
 
 	lock.acquire();
-	while (list.isEmpty())
+	while (size == 0)
 	    listEmpty.sleep();
-	o = list.removeFirst();
+
+	int amount = Math.min(max, size);
+	for (int i=0; i<amount; i++)
+	    c.add(remove());
+
+	numDrains++;
+	wakeProducers();
 	lock.release();
 
+	return amount;
+    }
+
+    /**
+     * Return the number of elements in the queue.
+     *
+     * @return	the current size.
+     */
+    public int getSize() {
+	return size;
+    }
+
+    /**
+     * Return the largest number of elements the queue has held.
+     *
+     * @return	the maximum size.
+     */
+    public int getMaxSize() {
+	return maxSize;
+    }
+
+    /**
+     * Return the number of elements dropped because the queue was full.
+     *
+     * @return	the number of dropped elements.
+     */
+    public int getNumDropped() {
+	return numDropped;
+    }
+
+    /**
+     * Print the queue's depth and how often it was full.
+     *
+     * @param	name	the name to print the statistics under.
+     */
+    public void printStats(String name) {
+	System.out.println(name + ": added " + numAdded
+			   + ", size " + size
+			   + ", max size " + maxSize
+			   + ", mean size " + (numAdded == 0 ? 0 : totalSize/numAdded)
+			   + (capacity > 0 ? ", capacity " + capacity : "")
+			   + ", dropped " + numDropped
+			   + ", waits for room " + numFullWaits
+			   + ", drains " + numDrains);
+    }
+
+    private E remove() {
+	// only add() stores into items, so every element is an E
+	E o = (E) items[head];
+	items[head] = null;
+	head = (head + 1) % items.length;
+	size--;
 	return o;
     }
 
+    /**
+     * Let the producers waiting for room try again, as many as there is now
+     * room for.
+     */
+    private void wakeProducers() {
+	for (int room=capacity-size; room>0 && numWaitingProducers>0; room--) {
+	    numWaitingProducers--;
+	    listFull.wake();
+	}
+    }
+
+    private void grow() {
+	Object[] bigger = new Object[items.length * 2];
+	for (int i=0; i<size; i++)
+	    bigger[i] = items[(head + i) % items.length];
+
+	items = bigger;
+	head = 0;
+    }
+
     private static class PingTest implements Runnable {
-	PingTest(SynchList ping, SynchList pong) {
+	PingTest(SynchList<Integer> ping, SynchList<Integer> pong) {
 	    this.ping = ping;
 	    this.pong = pong;
 	}
-	
+
 	public void run() {
 	    for (int i=0; i<10; i++)
 		pong.add(ping.removeFirst());
 	}
 
-	private SynchList ping;
-	private SynchList pong;
+	private SynchList<Integer> ping;
+	private SynchList<Integer> pong;
     }
 
     /**
      * Test that this module is working.
      */
     public static void selfTest() {
-	SynchList ping = new SynchList();
-	SynchList pong = new SynchList();
+	SynchList<Integer> ping = new SynchList<Integer>();
+	SynchList<Integer> pong = new SynchList<Integer>();
 
 	new KThread(new PingTest(ping, pong)).setName("ping").fork();
 
@@ -79,10 +235,54 @@ public class SynchList {
 	    ping.add(o);
 	    Lib.assertTrue(pong.removeFirst() == o);
 	}
+
+	// a full queue that drops
+	SynchList<Integer> lossy = new SynchList<Integer>(4, true);
+	for (int i=0; i<10; i++)
+	    lossy.add(new Integer(i));
+	Lib.assertTrue(lossy.getSize() == 4 && lossy.getNumDropped() == 6);
+
+	// any collection that can hold the elements will do
+	java.util.ArrayList<Object> objects = new java.util.ArrayList<Object>();
+	Lib.assertTrue(lossy.drainTo(objects, 10) == 4);
+	Lib.assertTrue(objects.get(3).equals(new Integer(3)));
+
+	// a full queue that makes the producer wait
+	final SynchList<Integer> bounded =
+	    new SynchList<Integer>(4, false);
+	KThread producer = new KThread(new Runnable() {
+		public void run() {
+		    for (int i=0; i<100; i++)
+			bounded.add(new Integer(i));
+		}
+	    }).setName("producer");
+	producer.fork();
+
+	java.util.ArrayList<Integer> drained = new java.util.ArrayList<Integer>();
+	int next = 0;
+	while (next < 100) {
+	    drained.clear();
+	    bounded.drainTo(drained, 100);
+	    for (int i=0; i<drained.size(); i++)
+		Lib.assertTrue(drained.get(i).intValue() == next++);
+	}
+	producer.join();
+
+	Lib.assertTrue(bounded.getMaxSize() <= 4);
+	bounded.printStats("bounded queue");
     }
 
-    private LinkedList<Object> list;
+    private Object[] items;
+    private int head = 0, size = 0;
+    private int capacity;
+    private boolean dropWhenFull;
+
     private Lock lock;
     private Condition listEmpty;
-}
+    private Condition listFull;
+    private int numWaitingProducers = 0;
 
+    private int numAdded = 0, numDropped = 0, numFullWaits = 0, numDrains = 0;
+    private int maxSize = 0;
+    private long totalSize = 0;
+}
@@ -1,5 +1,7 @@
 package nachos.threads;
 
+import nachos.machine.*;
+
 /**
  * Schedules access to some sort of resource with limited access constraints. A
  * thread queue can be used to share this limited access among multiple
@@ -36,6 +38,12 @@ package nachos.threads;
  *
  * <p>
  * All thread queue methods must be invoked with <b>interrupts disabled</b>.
+ *
+ * <p>
+ * Every queue keeps its current and maximum length and a histogram of how
+ * long threads waited in it. Implementations call <tt>enqueued()</tt> from
+ * <tt>waitForAccess()</tt> and <tt>dequeued()</tt> for every thread
+ * <tt>nextThread()</tt> returns.
  */
 public abstract class ThreadQueue {
     /**
@@ -91,8 +99,144 @@ public abstract class ThreadQueue {
      */
     public abstract void acquire(KThread thread);
 
+    /**
+     * Notify this thread queue that the specified thread has received access
+     * that it shares with other threads, such as a read lock. If this queue
+     * transfers priority, the waiting threads donate priority to every
+     * thread sharing access, not just to one owner.
+     *
+     * <p>
+     * Queues that do not transfer priority need not keep track of sharers,
+     * so by default this does nothing.
+     *
+     * @param	thread	a thread that now shares access.
+     */
+    public void acquireShared(KThread thread) {
+    }
+
+    /**
+     * Notify this thread queue that the specified thread no longer has
+     * access, whether it had it alone or shared. Waiting threads stop
+     * donating priority to it. By default this does nothing.
+     *
+     * @param	thread	the thread giving up access.
+     */
+    public void release(KThread thread) {
+    }
+
+    /**
+     * Remove the specified thread from this queue, if it is still waiting
+     * in it. Used when a timed wait runs out before the thread receives
+     * access. Must not scan the whole queue.
+     *
+     * <p>
+     * A queue that cannot remove waiters returns <tt>false</tt>, and
+     * threads with a timeout wait on it until they are woken.
+     *
+     * @param	thread	the thread to remove.
+     * @return	<tt>true</tt> if the thread was waiting and has been removed.
+     */
+    public boolean remove(KThread thread) {
+	return false;
+    }
+
     /**
      * Print out all the threads waiting for access, in no particular order.
      */
     public abstract void print();
+
+    /**
+     * Record that the specified thread has started waiting in this queue.
+     *
+     * @param	thread	the thread passed to <tt>waitForAccess()</tt>.
+     */
+    protected void enqueued(KThread thread) {
+	thread.queuedTime = Machine.timer().getTime();
+
+	length++;
+	numWaits++;
+	if (length > maxLength)
+	    maxLength = length;
+    }
+
+    /**
+     * Record that the specified thread has left this queue, and how long it
+     * waited.
+     *
+     * @param	thread	the thread about to be returned by
+     *			<tt>nextThread()</tt>.
+     */
+    protected void dequeued(KThread thread) {
+	long wait = Machine.timer().getTime() - thread.queuedTime;
+
+	length--;
+	totalWait += wait;
+
+	int i = 0;
+	while (i < waitHistogram.length-1 && wait >= bucketLimit(i))
+	    i++;
+	waitHistogram[i]++;
+    }
+
+    /**
+     * Return the number of threads waiting in this queue.
+     */
+    public int getLength() {
+	return length;
+    }
+
+    /**
+     * Return the largest number of threads that have waited in this queue at
+     * the same time.
+     */
+    public int getMaxLength() {
+	return maxLength;
+    }
+
+    /**
+     * Return the mean number of ticks a thread waited in this queue, or 0 if
+     * no thread has left it yet.
+     */
+    public long getMeanWait() {
+	long n = numWaits - length;
+	return (n == 0) ? 0 : totalWait / n;
+    }
+
+    /**
+     * Print the length, maximum length and wait-time histogram of this
+     * queue. Bucket <i>i</i> of the histogram counts waits shorter than
+     * <tt>10 &lt;&lt; i</tt> ticks; the last bucket counts the rest.
+     *
+     * @param	name	the name to print the statistics under.
+     */
+    public void printStats(String name) {
+	System.out.print(name + ": waits " + numWaits
+			 + ", length " + length
+			 + ", max length " + maxLength
+			 + ", mean wait " + getMeanWait());
+
+	String separator = ", wait histogram: ";
+	for (int i=0; i<waitHistogram.length; i++) {
+	    if (waitHistogram[i] == 0)
+		continue;
+
+	    System.out.print(separator);
+	    separator = ", ";
+
+	    if (i == waitHistogram.length-1)
+		System.out.print(">=" + bucketLimit(i-1) + " " + waitHistogram[i]);
+	    else
+		System.out.print("<" + bucketLimit(i) + " " + waitHistogram[i]);
+	}
+	System.out.println();
+    }
+
+    private static long bucketLimit(int i) {
+	return 10L << i;
+    }
+
+    private int length = 0, maxLength = 0;
+    private int numWaits = 0;
+    private long totalWait = 0;
+    private int[] waitHistogram = new int[16];
 }
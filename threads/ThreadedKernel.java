@@ -62,9 +62,16 @@ public class ThreadedKernel extends Kernel {
     }
 
     /**
-     * Terminate this kernel. Never returns.
+     * Terminate this kernel. Prints the thread, scheduler, synchronization and
+     * work queue statistics, then halts the machine. Never returns.
      */
     public void terminate() {
+	KThread.printStats();
+	scheduler.printStats();
+	Lock.printStats();
+	Semaphore.printStats();
+	LockProfile.printStats();
+	WorkQueue.printStats();
 	Machine.halt();
     }
 
@@ -83,4 +90,12 @@ public class ThreadedKernel extends Kernel {
     private static Communicator dummy5 = null;
     private static Rider dummy6 = null;
     private static ElevatorController dummy7 = null;
+    private static FairScheduler dummy8 = null;
+    private static SchedulerBenchmark dummy9 = null;
+    private static FeedbackScheduler dummy10 = null;
+    private static DeadlineScheduler dummy11 = null;
+    private static ReadWriteLock dummy12 = null;
+    private static Channel dummy13 = null;
+    private static WorkQueue dummy14 = null;
+    private static ElevatorBenchmark dummy15 = null;
 }
@@ -0,0 +1,275 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+/**
+ * A <i>work queue</i> runs deferred work in kernel worker threads. An
+ * interrupt handler cannot take a lock or sleep, so it does only what must be
+ * done at once, and enqueues the rest, its bottom half, to run later in a
+ * worker with interrupts enabled.
+ *
+ * <p>
+ * Every work queue is served by one pool of worker threads, started when the
+ * first queue is created. There are <tt>WorkQueue.workers</tt> of them, 2 by
+ * default. A worker always serves the non-empty queue with the highest
+ * priority, and takes up to <tt>batchSize</tt> items from it per wakeup. An
+ * idle worker is only woken if no other worker is already on its way, and a
+ * worker that leaves work behind wakes another, so a burst of interrupts
+ * costs a few wakeups rather than one each.
+ *
+ * <p>
+ * Items from one queue can run in several workers at once, and so finish out
+ * of order. A <i>serial</i> queue is served by at most one worker at a time,
+ * so its items run one after another in the order they were enqueued.
+ */
+public class WorkQueue {
+    /**
+     * Allocate a new work queue, starting the worker threads if this is the
+     * first one. Must be called from a kernel thread.
+     *
+     * @param	name		the name to print statistics under.
+     * @param	priority	the priority of this queue. Workers serve
+     *				queues with higher priority first.
+     */
+    public WorkQueue(String name, int priority) {
+	this(name, priority, false);
+    }
+
+    /**
+     * Allocate a new work queue, starting the worker threads if this is the
+     * first one. Must be called from a kernel thread.
+     *
+     * @param	name		the name to print statistics under.
+     * @param	priority	the priority of this queue. Workers serve
+     *				queues with higher priority first.
+     * @param	serial		<tt>true</tt> if the items must run one at a
+     *				time, in order.
+     */
+    public WorkQueue(String name, int priority, boolean serial) {
+	this.name = name;
+	this.priority = priority;
+	this.serial = serial;
+
+	if (workers == null)
+	    startWorkers();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	int i = 0;
+	while (i < queues.size() && queues.get(i).priority >= priority)
+	    i++;
+	queues.add(i, this);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Add work to the end of this queue. Never blocks, so it can be called
+     * from an interrupt handler.
+     *
+     * @param	work	the work to run in a worker thread.
+     */
+    public void enqueue(Runnable work) {
+	Lib.assertTrue(work != null);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	pending.add(work);
+	numEnqueued++;
+	maxPending = Math.max(maxPending, pending.size());
+
+	if (numWaking == 0)
+	    wakeWorker();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the number of items waiting to run.
+     *
+     * @return	the length of this queue.
+     */
+    public int getLength() {
+	return pending.size();
+    }
+
+    private static void startWorkers() {
+	int numWorkers = Config.getInteger("WorkQueue.workers", 2);
+	Lib.assertTrue(numWorkers > 0);
+
+	workers = new KThread[numWorkers];
+	for (int i=0; i<numWorkers; i++) {
+	    workers[i] = new KThread(new Runnable() {
+		    public void run() { work(); }
+		}).setName("worker " + i);
+	    workers[i].fork();
+	}
+    }
+
+    private static void wakeWorker() {
+	if (!idleWorkers.isEmpty()) {
+	    numWaking++;
+	    idleWorkers.removeFirst().ready();
+	}
+    }
+
+    /**
+     * The worker thread loop. Takes a batch from the highest-priority
+     * non-empty queue with interrupts disabled, then runs it with interrupts
+     * enabled.
+     */
+    private static void work() {
+	Runnable[] batch = new Runnable[batchSize];
+	WorkQueue queue = null;
+
+	while (true) {
+	    boolean intStatus = Machine.interrupt().disable();
+
+	    // a serial queue's last batch has finished
+	    if (queue != null)
+		queue.running = false;
+
+	    while ((queue = highestNonEmpty()) == null) {
+		idleWorkers.add(KThread.currentThread());
+		KThread.sleep();
+		numWaking--;
+	    }
+
+	    int amount = Math.min(batchSize, queue.pending.size());
+	    for (int i=0; i<amount; i++)
+		batch[i] = queue.pending.removeFirst();
+	    queue.running = queue.serial;
+
+	    queue.numBatches++;
+	    queue.numRun += amount;
+
+	    // leave the rest to another worker
+	    if (numWaking == 0 && highestNonEmpty() != null)
+		wakeWorker();
+
+	    Machine.interrupt().restore(intStatus);
+
+	    for (int i=0; i<amount; i++) {
+		batch[i].run();
+		batch[i] = null;
+	    }
+	}
+    }
+
+    private static WorkQueue highestNonEmpty() {
+	for (int i=0; i<queues.size(); i++) {
+	    WorkQueue queue = queues.get(i);
+	    if (!queue.pending.isEmpty() && !queue.running)
+		return queue;
+	}
+
+	return null;
+    }
+
+    /**
+     * Print how much work each queue has run, and in how many batches.
+     * Called when the kernel terminates.
+     */
+    public static void printStats() {
+	for (int i=0; i<queues.size(); i++) {
+	    WorkQueue queue = queues.get(i);
+
+	    System.out.println("Work queue " + queue.name
+			       + ": priority " + queue.priority
+			       + ", enqueued " + queue.numEnqueued
+			       + ", run " + queue.numRun
+			       + ", batches " + queue.numBatches
+			       + ", max length " + queue.maxPending);
+	}
+    }
+
+    /**
+     * Test that work enqueued from an interrupt handler runs in a worker, in
+     * batches, with higher-priority queues first, and that a serial queue
+     * runs its items in order.
+     */
+    public static void selfTest() {
+	System.out.println("\n\nWorkQueue Test");
+
+	final WorkQueue low = new WorkQueue("low", 0);
+	final WorkQueue high = new WorkQueue("high", 1);
+	final StringBuffer order = new StringBuffer();
+	final Semaphore done = new Semaphore(0);
+
+	// enqueue a burst all at once, as an interrupt handler would
+	boolean intStatus = Machine.interrupt().disable();
+	for (int i=0; i<100; i++) {
+	    final int n = i;
+	    low.enqueue(new Runnable() {
+		    public void run() {
+			Lib.assertTrue(KThread.currentThread().getName()
+				       .startsWith("worker"));
+			if (n == 99)
+			    done.V();
+		    }
+		});
+	}
+	high.enqueue(new Runnable() {
+		public void run() { order.append("high "); }
+	    });
+	low.enqueue(new Runnable() {
+		public void run() { order.append("low"); }
+	    });
+	Machine.interrupt().restore(intStatus);
+
+	done.P();
+	ThreadedKernel.alarm.waitUntil(100);
+
+	System.out.println("ran " + order + ", " + low.numRun + " low items in "
+			   + low.numBatches + " batches");
+	Lib.assertTrue(order.toString().equals("high low"));
+
+	// more than a batch of items that block must still finish in order on
+	// a serial queue
+	final WorkQueue serial = new WorkQueue("serial", 0, true);
+	final int[] next = new int[1];
+	final boolean[] inOrder = { true };
+	intStatus = Machine.interrupt().disable();
+	for (int i=0; i<2*batchSize; i++) {
+	    final int n = i;
+	    serial.enqueue(new Runnable() {
+		    public void run() {
+			ThreadedKernel.alarm.waitUntil(10);
+			if (n != next[0]++)
+			    inOrder[0] = false;
+			if (n == 2*batchSize-1)
+			    done.V();
+		    }
+		});
+	}
+	Machine.interrupt().restore(intStatus);
+
+	done.P();
+	System.out.println("serial queue ran " + next[0] + " items in "
+			   + serial.numBatches + " batches, in order: "
+			   + inOrder[0]);
+	Lib.assertTrue(inOrder[0]);
+    }
+
+    private String name;
+    private int priority;
+    private boolean serial;
+    /** Set while a worker runs a batch from this serial queue. */
+    private boolean running = false;
+    private LinkedList<Runnable> pending = new LinkedList<Runnable>();
+
+    private int numEnqueued = 0, numRun = 0, numBatches = 0, maxPending = 0;
+
+    /** The most items a worker takes from a queue per wakeup. */
+    private static final int batchSize = 32;
+
+    /** Every work queue, in order of decreasing priority. */
+    private static ArrayList<WorkQueue> queues = new ArrayList<WorkQueue>();
+    private static KThread[] workers = null;
+    private static LinkedList<KThread> idleWorkers = new LinkedList<KThread>();
+    /** The number of workers woken that have not started running yet. */
+    private static int numWaking = 0;
+}
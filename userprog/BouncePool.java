@@ -0,0 +1,83 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A fixed pool of kernel buffers for syscall I/O. A user buffer scattered
+ * over frames that are not contiguous would take one device call per run of
+ * frames; a bounce buffer gathers the runs so that each device call moves a
+ * whole buffer instead. The pool never grows, so however large a transfer
+ * is, it costs the kernel no more memory than the pool.
+ *
+ * <p>
+ * There are <tt>UserProcess.bounceBuffers</tt> buffers, 4 by default, of
+ * <tt>UserProcess.bouncePages</tt> pages each, 8 by default.
+ */
+class BouncePool {
+    /**
+     * Take a buffer from the pool. Does not wait: if every buffer is in use,
+     * the caller transfers directly instead.
+     *
+     * @return	a buffer, or <tt>null</tt> if none is free.
+     */
+    static byte[] acquire() {
+	lock.acquire();
+
+	byte[] buffer = null;
+	if (numFree > 0) {
+	    buffer = free[--numFree];
+	    free[numFree] = null;
+	}
+	else if (numAllocated < numBuffers) {
+	    buffer = new byte[bufferSize];
+	    numAllocated++;
+	}
+	else {
+	    numMisses++;
+	}
+
+	lock.release();
+	return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool.
+     *
+     * @param	buffer	a buffer returned by <tt>acquire()</tt>.
+     */
+    static void release(byte[] buffer) {
+	lock.acquire();
+	free[numFree++] = buffer;
+	lock.release();
+    }
+
+    /**
+     * Return the size of each buffer.
+     *
+     * @return	the buffer size, in bytes.
+     */
+    static int getBufferSize() {
+	return bufferSize;
+    }
+
+    /**
+     * Return the number of times no buffer was free.
+     *
+     * @return	the number of misses.
+     */
+    static int getNumMisses() {
+	return numMisses;
+    }
+
+    private static final int numBuffers =
+	Config.getInteger("UserProcess.bounceBuffers", 4);
+    private static final int bufferSize =
+	Config.getInteger("UserProcess.bouncePages", 8) * Processor.pageSize;
+
+    private static Lock lock = new Lock();
+    /** Buffers are allocated the first time they are needed. */
+    private static byte[][] free = new byte[numBuffers][];
+    private static int numFree = 0, numAllocated = 0;
+    private static int numMisses = 0;
+}
@@ -0,0 +1,152 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * Measures keystroke-to-echo latency while CPU-bound threads compete for
+ * the processor. Run it once under each <tt>ThreadedKernel.scheduler</tt>,
+ * with <tt>Console.inputFile</tt> naming the script to type, to compare how
+ * quickly each scheduler gets an interactive thread back on the processor.
+ *
+ * <p>
+ * A typist thread echoes one line of the script per run. The script is
+ * read from the file all at once, so the typist paces itself: it sleeps on
+ * the alarm until each keystroke is due, then reads the byte, writes it and
+ * flushes the console. The latency of a keystroke is the time from when it
+ * was due to when its echo has been sent, so it includes the wait to be
+ * rescheduled after the alarm fires, as a thread blocked on a real keyboard
+ * would wait after the receive interrupt. Meanwhile each spinner thread
+ * multiplies matrices, as <tt>matmult</tt> does, without ever yielding or
+ * blocking.
+ */
+public class ConsoleBenchmark {
+    /**
+     * Run the benchmark with the default workload: one line of the script
+     * with no spinners, then one line against four spinners. Does nothing
+     * unless <tt>Console.inputFile</tt> is set.
+     */
+    public static void selfTest() {
+	if (Config.getString("Console.inputFile") == null) {
+	    System.out.println("Console benchmark needs Console.inputFile");
+	    return;
+	}
+
+	run(0, 2000);
+	run(4, 2000);
+    }
+
+    /**
+     * Run the benchmark, echoing the next line of console input.
+     *
+     * @param	numSpinners	the number of CPU-bound threads to run.
+     * @param	typingGap	the ticks between keystrokes.
+     */
+    public static void run(int numSpinners, long typingGap) {
+	System.out.println("\n\nConsole benchmark: "
+			   + ThreadedKernel.scheduler.getClass().getName()
+			   + ", " + numSpinners + " spinners, a keystroke every "
+			   + typingGap + " ticks");
+
+	Typist typist = new Typist(typingGap);
+	KThread typistThread = new KThread(typist).setName("typist");
+
+	Spinner[] spinners = new Spinner[numSpinners];
+	KThread[] threads = new KThread[numSpinners];
+	for (int i=0; i<numSpinners; i++) {
+	    spinners[i] = new Spinner(typist);
+	    threads[i] = new KThread(spinners[i]).setName("spinner " + i);
+	    threads[i].fork();
+	}
+
+	typistThread.fork();
+	typistThread.join();
+	for (int i=0; i<numSpinners; i++)
+	    threads[i].join();
+
+	long products = 0;
+	for (int i=0; i<numSpinners; i++)
+	    products += spinners[i].products;
+
+	System.out.println("\nkeystrokes " + typist.keystrokes
+			   + ", mean latency "
+			   + (typist.keystrokes == 0 ? 0 :
+			      typist.totalLatency / typist.keystrokes)
+			   + ", max latency " + typist.maxLatency
+			   + ", inner products " + products);
+    }
+
+    private static class Typist implements Runnable {
+	Typist(long typingGap) {
+	    this.typingGap = typingGap;
+	}
+
+	public void run() {
+	    long due = Machine.timer().getTime();
+	    int c;
+
+	    do {
+		due += typingGap;
+		long now = Machine.timer().getTime();
+		if (due > now)
+		    ThreadedKernel.alarm.waitUntil(due - now);
+
+		c = UserKernel.console.readByte(true);
+		UserKernel.console.writeByte(c);
+		UserKernel.console.flush();
+
+		long latency = Machine.timer().getTime() - due;
+		keystrokes++;
+		totalLatency += latency;
+		maxLatency = Math.max(maxLatency, latency);
+	    }
+	    while (c != '\n');
+
+	    done = true;
+	}
+
+	long typingGap;
+	int keystrokes = 0;
+	long totalLatency = 0, maxLatency = 0;
+	boolean done = false;
+    }
+
+    private static class Spinner implements Runnable {
+	Spinner(Typist typist) {
+	    this.typist = typist;
+	}
+
+	public void run() {
+	    while (!typist.done) {
+		for (int i=0; i<dim; i++) {
+		    for (int j=0; j<dim; j++) {
+			a[i][j] = i;
+			b[i][j] = j;
+			c[i][j] = 0;
+		    }
+		}
+
+		for (int i=0; i<dim && !typist.done; i++) {
+		    for (int j=0; j<dim; j++) {
+			for (int k=0; k<dim; k++)
+			    c[i][j] += a[i][k] * b[k][j];
+
+			// each enable advances the clock by one kernel tick
+			boolean intStatus = Machine.interrupt().disable();
+			Machine.interrupt().restore(intStatus);
+			products++;
+		    }
+		}
+	    }
+	}
+
+	private static final int dim = 20;
+
+	Typist typist;
+	int[][] a = new int[dim][dim];
+	int[][] b = new int[dim][dim];
+	int[][] c = new int[dim][dim];
+	long products = 0;
+    }
+}
@@ -0,0 +1,76 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * An open file description: an open file together with the file descriptors
+ * that refer to it. <tt>dup2()</tt> and <tt>exec()</tt> make more than one
+ * descriptor refer to the same description, so that they share the file and
+ * its position. The file itself is closed only when the last of them is
+ * closed, which is what lets a pipe see end of file once every writer has
+ * gone.
+ */
+public class FileDescription extends OpenFile {
+    /**
+     * Allocate a new description of <i>file</i>, referred to by one file
+     * descriptor.
+     *
+     * @param	file	the open file to describe.
+     */
+    public FileDescription(OpenFile file) {
+	super(file.getFileSystem(), file.getName());
+	this.file = file;
+    }
+
+    /**
+     * Add a reference to this description, for a new file descriptor.
+     *
+     * @return	this description.
+     */
+    public FileDescription share() {
+	Lib.assertTrue(references > 0);
+	references++;
+	return this;
+    }
+
+    /**
+     * Remove a reference to this description, closing the file when none are
+     * left.
+     */
+    public void close() {
+	Lib.assertTrue(references > 0);
+	if (--references == 0)
+	    file.close();
+    }
+
+    public int read(int pos, byte[] buf, int offset, int length) {
+	return file.read(pos, buf, offset, length);
+    }
+
+    public int write(int pos, byte[] buf, int offset, int length) {
+	return file.write(pos, buf, offset, length);
+    }
+
+    public int read(byte[] buf, int offset, int length) {
+	return file.read(buf, offset, length);
+    }
+
+    public int write(byte[] buf, int offset, int length) {
+	return file.write(buf, offset, length);
+    }
+
+    public int length() {
+	return file.length();
+    }
+
+    public void seek(int pos) {
+	file.seek(pos);
+    }
+
+    public int tell() {
+	return file.tell();
+    }
+
+    private OpenFile file;
+    private int references = 1;
+}
@@ -0,0 +1,443 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * Allocates physical page frames. Free frames are kept both on a stack, so
+ * that allocating or freeing one frame takes constant time, and in a bitmap,
+ * so that a run of contiguous free frames can be found a word at a time.
+ * Each frame's position on the stack is remembered, so a frame taken from the
+ * middle of the stack by a contiguous allocation is removed in constant time
+ * too.
+ *
+ * <p>
+ * Every allocated frame records the process that owns it, a pin count and a
+ * reference count. A pinned frame must not be freed or, once there is
+ * paging, evicted. A frame mapped by more than one process, as after a
+ * <tt>fork()</tt>, has one reference per mapping, and each <tt>free()</tt>
+ * drops one; the frame is only really freed when the last is dropped.
+ */
+public class FrameAllocator {
+    /**
+     * Allocate a new frame allocator with every frame free.
+     *
+     * @param	numFrames	the number of physical frames to manage.
+     */
+    public FrameAllocator(int numFrames) {
+	Lib.assertTrue(numFrames > 0);
+
+	this.numFrames = numFrames;
+
+	freeStack = new int[numFrames];
+	stackIndex = new int[numFrames];
+	freeMap = new long[(numFrames + 63) / 64];
+	owners = new int[numFrames];
+	pinCounts = new short[numFrames];
+	references = new int[numFrames];
+
+	// push in reverse, so that frames are handed out lowest first
+	for (int i=0; i<numFrames; i++) {
+	    int ppn = numFrames-1 - i;
+	    freeStack[i] = ppn;
+	    stackIndex[ppn] = i;
+	    freeMap[ppn >> 6] |= 1L << (ppn & 63);
+	    owners[ppn] = noOwner;
+	}
+
+	numFree = numFrames;
+	minFree = numFrames;
+    }
+
+    /**
+     * Allocate one frame.
+     *
+     * @param	owner	the process ID of the new owner.
+     * @return	the physical page number allocated, or -1 if there is no free
+     *		frame.
+     */
+    public int allocate(int owner) {
+	lock.acquire();
+
+	int ppn = -1;
+	if (numFree > 0)
+	    ppn = take(freeStack[numFree-1], owner);
+	else
+	    numFailures++;
+
+	minFree = Math.min(minFree, numFree);
+	lock.release();
+	return ppn;
+    }
+
+    /**
+     * Allocate <i>count</i> frames, storing their page numbers in
+     * <i>ppns</i> starting at <i>offset</i>. Either every frame is allocated
+     * or none is.
+     *
+     * @param	owner	the process ID of the new owner.
+     * @param	ppns	the array to store the physical page numbers in.
+     * @param	offset	the index of the first page number to store.
+     * @param	count	the number of frames to allocate.
+     * @return	<tt>true</tt> if the frames were allocated.
+     */
+    public boolean allocate(int owner, int[] ppns, int offset, int count) {
+	Lib.assertTrue(offset >= 0 && count >= 0 &&
+		       offset+count <= ppns.length);
+
+	lock.acquire();
+
+	if (count > numFree) {
+	    numFailures++;
+	    lock.release();
+	    return false;
+	}
+
+	for (int i=0; i<count; i++)
+	    ppns[offset+i] = take(freeStack[numFree-1], owner);
+
+	minFree = Math.min(minFree, numFree);
+	lock.release();
+	return true;
+    }
+
+    /**
+     * Allocate <i>count</i> frames with consecutive physical page numbers,
+     * the first of them a multiple of <i>alignment</i>, as a large page
+     * needs.
+     *
+     * @param	owner		the process ID of the new owner.
+     * @param	count		the number of frames to allocate.
+     * @param	alignment	the alignment of the first frame, a power of 2.
+     * @return	the physical page number of the first frame, or -1 if there
+     *		is no such run of free frames.
+     */
+    public int allocateContiguous(int owner, int count, int alignment) {
+	Lib.assertTrue(count > 0 && alignment > 0 &&
+		       (alignment & (alignment-1)) == 0);
+
+	lock.acquire();
+
+	int first = -1;
+	if (count <= numFree)
+	    first = findRun(count, alignment);
+
+	if (first == -1) {
+	    numFailures++;
+	}
+	else {
+	    for (int ppn=first; ppn<first+count; ppn++)
+		take(ppn, owner);
+	}
+
+	minFree = Math.min(minFree, numFree);
+	lock.release();
+	return first;
+    }
+
+    /**
+     * Free one frame, or if it has more than one reference, drop one of
+     * them. A frame that is really freed must not be pinned.
+     *
+     * @param	ppn	the physical page number to free.
+     */
+    public void free(int ppn) {
+	lock.acquire();
+	put(ppn);
+	lock.release();
+    }
+
+    /**
+     * Free <i>count</i> frames whose page numbers are in <i>ppns</i>,
+     * starting at <i>offset</i>, as <tt>free(int)</tt> does.
+     *
+     * @param	ppns	the physical page numbers to free.
+     * @param	offset	the index of the first page number.
+     * @param	count	the number of frames to free.
+     */
+    public void free(int[] ppns, int offset, int count) {
+	Lib.assertTrue(offset >= 0 && count >= 0 &&
+		       offset+count <= ppns.length);
+
+	lock.acquire();
+	for (int i=0; i<count; i++)
+	    put(ppns[offset+i]);
+	lock.release();
+    }
+
+    /**
+     * Add a reference to an allocated frame, for another mapping of it. The
+     * frame keeps its owner.
+     *
+     * @param	ppn	the physical page number.
+     */
+    public void addReference(int ppn) {
+	lock.acquire();
+	Lib.assertTrue(isAllocated(ppn) && references[ppn] < Integer.MAX_VALUE);
+	references[ppn]++;
+	numShared++;
+	lock.release();
+    }
+
+    /**
+     * Return the number of references to the specified frame.
+     *
+     * @param	ppn	the physical page number.
+     * @return	the number of references, 0 if the frame is free.
+     */
+    public int getReferences(int ppn) {
+	return references[ppn];
+    }
+
+    /**
+     * Pin an allocated frame, so that it cannot be freed or evicted until it
+     * is unpinned as many times as it was pinned.
+     *
+     * @param	ppn	the physical page number to pin.
+     */
+    public void pin(int ppn) {
+	lock.acquire();
+	Lib.assertTrue(isAllocated(ppn) && pinCounts[ppn] < Short.MAX_VALUE);
+	if (pinCounts[ppn]++ == 0)
+	    numPinned++;
+	lock.release();
+    }
+
+    /**
+     * Undo one call to <tt>pin()</tt>.
+     *
+     * @param	ppn	the physical page number to unpin.
+     */
+    public void unpin(int ppn) {
+	lock.acquire();
+	Lib.assertTrue(isAllocated(ppn) && pinCounts[ppn] > 0);
+	if (--pinCounts[ppn] == 0)
+	    numPinned--;
+	lock.release();
+    }
+
+    /**
+     * Return <tt>true</tt> if the specified frame is pinned.
+     *
+     * @param	ppn	the physical page number.
+     * @return	<tt>true</tt> if the frame is pinned.
+     */
+    public boolean isPinned(int ppn) {
+	return pinCounts[ppn] > 0;
+    }
+
+    /**
+     * Return the process ID of the owner of the specified frame.
+     *
+     * @param	ppn	the physical page number.
+     * @return	the owner, or <tt>noOwner</tt> if the frame is free.
+     */
+    public int getOwner(int ppn) {
+	return owners[ppn];
+    }
+
+    /**
+     * Return the number of frames managed.
+     *
+     * @return	the number of frames.
+     */
+    public int getNumFrames() {
+	return numFrames;
+    }
+
+    /**
+     * Return the number of free frames.
+     *
+     * @return	the number of free frames.
+     */
+    public int getNumFree() {
+	return numFree;
+    }
+
+    /**
+     * Return the fewest frames that have been free at once.
+     *
+     * @return	the low-water mark of free frames.
+     */
+    public int getMinFree() {
+	return minFree;
+    }
+
+    /**
+     * Print how much memory is free, how little has been, and how many
+     * allocations failed.
+     */
+    public void printStats() {
+	System.out.println("Frames: total " + numFrames
+			   + ", free " + numFree
+			   + ", min free " + minFree
+			   + ", pinned " + numPinned
+			   + ", allocated " + numAllocated
+			   + ", freed " + numFreed
+			   + ", shared " + numShared
+			   + ", failed allocations " + numFailures);
+    }
+
+    private boolean isAllocated(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numFrames);
+	return (freeMap[ppn >> 6] & (1L << (ppn & 63))) == 0;
+    }
+
+    /**
+     * Remove a free frame from the stack and the bitmap, and give it to
+     * <i>owner</i>.
+     */
+    private int take(int ppn, int owner) {
+	Lib.assertTrue(!isAllocated(ppn));
+
+	// fill the hole with the top of the stack
+	int top = freeStack[--numFree];
+	int index = stackIndex[ppn];
+	freeStack[index] = top;
+	stackIndex[top] = index;
+
+	freeMap[ppn >> 6] &= ~(1L << (ppn & 63));
+	owners[ppn] = owner;
+	references[ppn] = 1;
+	numAllocated++;
+
+	return ppn;
+    }
+
+    /**
+     * Drop a reference to a frame, and push it back on the stack and the
+     * bitmap if it was the last one.
+     */
+    private void put(int ppn) {
+	Lib.assertTrue(isAllocated(ppn) && references[ppn] > 0);
+	if (--references[ppn] > 0)
+	    return;
+
+	Lib.assertTrue(pinCounts[ppn] == 0);
+
+	freeStack[numFree] = ppn;
+	stackIndex[ppn] = numFree;
+	numFree++;
+
+	freeMap[ppn >> 6] |= 1L << (ppn & 63);
+	owners[ppn] = noOwner;
+	numFreed++;
+    }
+
+    /**
+     * Find the first aligned run of <i>count</i> free frames. Words with no
+     * free frame are skipped whole, and so are whole words of free frames
+     * while the run is still short of 64.
+     */
+    private int findRun(int count, int alignment) {
+	int first = -1, run = 0;
+
+	for (int ppn=0; ppn<numFrames; ) {
+	    long word = freeMap[ppn >> 6];
+
+	    if ((ppn & 63) == 0 && word == 0) {
+		run = 0;
+		ppn += 64;
+		continue;
+	    }
+	    if ((ppn & 63) == 0 && word == -1L && run > 0 &&
+		ppn+64 <= numFrames && run+64 < count) {
+		run += 64;
+		ppn += 64;
+		continue;
+	    }
+
+	    if ((word & (1L << (ppn & 63))) == 0) {
+		run = 0;
+	    }
+	    else if (run > 0 || (ppn & (alignment-1)) == 0) {
+		if (run++ == 0)
+		    first = ppn;
+		if (run == count)
+		    return first;
+	    }
+	    ppn++;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Test allocation, contiguous allocation, pinning, sharing and freeing.
+     */
+    public static void selfTest() {
+	System.out.println("\n\nFrameAllocator Test");
+
+	FrameAllocator frames = new FrameAllocator(1000);
+
+	int[] ppns = new int[600];
+	Lib.assertTrue(frames.allocate(1, ppns, 0, 600));
+	Lib.assertTrue(!frames.allocate(2, new int[401], 0, 401));
+	Lib.assertTrue(frames.getNumFree() == 400);
+
+	// free every other frame, leaving no run of two below 600
+	for (int i=0; i<600; i+=2)
+	    frames.free(ppns[i]);
+	int first = frames.allocateContiguous(2, 128, 64);
+	Lib.assertTrue(first >= 600 && first % 64 == 0);
+	for (int ppn=first; ppn<first+128; ppn++)
+	    Lib.assertTrue(frames.getOwner(ppn) == 2);
+
+	frames.pin(first);
+	Lib.assertTrue(frames.isPinned(first));
+	frames.unpin(first);
+
+	// a shared frame survives until both references are dropped
+	frames.addReference(first);
+	frames.free(first);
+	Lib.assertTrue(frames.getReferences(first) == 1 &&
+		       frames.getOwner(first) == 2);
+	for (int ppn=first; ppn<first+128; ppn++)
+	    frames.free(ppn);
+
+	for (int i=1; i<600; i+=2)
+	    frames.free(ppns[i]);
+	Lib.assertTrue(frames.getNumFree() == 1000);
+	Lib.assertTrue(frames.allocateContiguous(3, 1000, 1) == 0);
+	frames.printStats();
+
+	// a large memory: a page at a time, then all of it at once
+	int numFrames = 1 << 20;
+	FrameAllocator big = new FrameAllocator(numFrames);
+	long start = System.currentTimeMillis();
+
+	for (int i=0; i<numFrames; i++)
+	    Lib.assertTrue(big.allocate(1) == i);
+	Lib.assertTrue(big.allocate(1) == -1);
+	for (int i=0; i<numFrames; i++)
+	    big.free(i);
+	int[] all = new int[numFrames];
+	Lib.assertTrue(big.allocate(1, all, 0, numFrames));
+	big.free(all, 0, numFrames);
+
+	System.out.println(numFrames + " frames allocated and freed twice in "
+			   + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /** The owner of a free frame. */
+    public static final int noOwner = -1;
+
+    private int numFrames;
+    private Lock lock = new Lock();
+
+    /** The free frames; the top of the stack is allocated next. */
+    private int[] freeStack;
+    private int numFree;
+    /** The index of each free frame in <tt>freeStack</tt>. */
+    private int[] stackIndex;
+    /** One bit per frame, set if the frame is free. */
+    private long[] freeMap;
+
+    private int[] owners;
+    private short[] pinCounts;
+    private int[] references;
+
+    private int minFree, numPinned = 0;
+    private long numAllocated = 0, numFreed = 0, numShared = 0;
+    private int numFailures = 0;
+}
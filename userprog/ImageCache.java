@@ -0,0 +1,383 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.io.EOFException;
+import java.util.*;
+
+/**
+ * Keeps the parsed headers and page contents of executables in kernel
+ * memory, so that running a program again needs no disk access: its pages are
+ * copied into memory from the cache instead of being read from the file a
+ * page at a time.
+ *
+ * <p>
+ * An executable's pages are captured the first time they are loaded through
+ * its <tt>Coff</tt>; the file stays open only while a process that might
+ * still need an uncaptured page is using the image. Images are evicted least
+ * recently used first when their pages take more than
+ * <tt>ImageCache.maxBytes</tt>, 1 MB by default, but never while a process
+ * is using them.
+ *
+ * <p>
+ * An image is invalidated when a process creates, writes or unlinks its file.
+ * Changes made to the file outside Nachos while it runs are not noticed.
+ */
+public class ImageCache {
+    /**
+     * Allocate a new, empty image cache.
+     */
+    public ImageCache() {
+    }
+
+    /**
+     * Open an executable. The returned loader must be closed when the caller
+     * is done with it.
+     *
+     * @param	name	the name of the executable file.
+     * @return	a loader for the executable, or <tt>null</tt> if the file
+     *		could not be opened or is not a valid executable.
+     */
+    public Coff open(String name) {
+	lock.acquire();
+
+	Image image = images.get(name);
+	if (image == null) {
+	    numMisses++;
+	    lock.release();
+
+	    Coff loader = openLoader(name);
+	    if (loader == null)
+		return null;
+
+	    lock.acquire();
+	    // another process may have opened it while the file was read
+	    image = images.get(name);
+	    if (image == null) {
+		image = new Image(name + ":" + getVersion(name), loader);
+		images.put(name, image);
+	    }
+	    else if (image.loader == null && !image.isComplete()) {
+		image.loader = loader;
+	    }
+	    else {
+		loader.close();
+	    }
+	}
+	else {
+	    numHits++;
+
+	    // pages that were never captured still have to come from the file
+	    if (image.loader == null && !image.isComplete()) {
+		lock.release();
+		Coff loader = openLoader(name);
+		lock.acquire();
+
+		if (loader == null) {
+		    lock.release();
+		    return null;
+		}
+		if (image.loader == null)
+		    image.loader = loader;
+		else
+		    loader.close();
+	    }
+	}
+
+	image.users++;
+	Coff coff = new CachedCoff(image);
+
+	lock.release();
+	return coff;
+    }
+
+    /**
+     * Open another loader for the executable a loader returned by
+     * <tt>open()</tt> was opened from, for a forked process. It needs no
+     * disk access, and loads the same executable even if the file has been
+     * changed since. The returned loader must be closed too.
+     *
+     * @param	coff	an open loader returned by <tt>open()</tt>.
+     * @return	another loader for the same executable.
+     */
+    public Coff reopen(Coff coff) {
+	Image image = ((CachedCoff) coff).image;
+
+	lock.acquire();
+
+	// the caller's loader keeps the image's own loader open if needed
+	Lib.assertTrue(image.users > 0);
+	image.users++;
+	Coff copy = new CachedCoff(image);
+
+	lock.release();
+	return copy;
+    }
+
+    /**
+     * Return the identity of the executable a loader returned by
+     * <tt>open()</tt> was opened from. Two loaders have the same identity
+     * only if their file was not changed by a process in between.
+     *
+     * @param	coff	a loader returned by <tt>open()</tt>.
+     * @return	the identity of its executable.
+     */
+    public String getIdentity(Coff coff) {
+	return ((CachedCoff) coff).image.identity;
+    }
+
+    /**
+     * Forget the image of a file that is about to be changed or removed.
+     * Processes already running it are not affected.
+     *
+     * @param	name	the name of the file.
+     */
+    public void invalidate(String name) {
+	lock.acquire();
+
+	Image image = images.remove(name);
+	if (image != null) {
+	    // a new image of this file gets a new identity
+	    versions.put(name, getVersion(name) + 1);
+
+	    image.cached = false;
+	    totalBytes -= image.bytes;
+	    if (image.users == 0)
+		closeLoader(image);
+	    numInvalidations++;
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Print how many executables were opened from the cache, how many pages
+     * were copied from it instead of read from a file, and how much memory
+     * it uses.
+     */
+    public void printStats() {
+	System.out.println("Image cache: images " + images.size()
+			   + ", bytes " + totalBytes
+			   + ", hits " + numHits
+			   + ", misses " + numMisses
+			   + ", pages copied " + pagesCopied
+			   + ", pages read " + pagesRead
+			   + ", evictions " + numEvictions
+			   + ", invalidations " + numInvalidations);
+    }
+
+    private int getVersion(String name) {
+	Integer version = versions.get(name);
+	return (version == null) ? 0 : version;
+    }
+
+    private static Coff openLoader(String name) {
+	OpenFile file = ThreadedKernel.fileSystem.open(name, false);
+	if (file == null) {
+	    Lib.debug(dbgImage, "\topen failed");
+	    return null;
+	}
+
+	try {
+	    return new Coff(file);
+	}
+	catch (EOFException e) {
+	    file.close();
+	    Lib.debug(dbgImage, "\tcoff load failed");
+	    return null;
+	}
+    }
+
+    private void closeLoader(Image image) {
+	if (image.loader != null) {
+	    image.loader.close();
+	    image.loader = null;
+	}
+    }
+
+    /**
+     * Copy a page of a section into a frame, from the cache if it has been
+     * captured, or else from the file, capturing it for next time.
+     */
+    private void loadPage(Image image, int s, int spn, int ppn) {
+	byte[] memory = Machine.processor().getMemory();
+	int paddr = ppn*pageSize;
+
+	lock.acquire();
+
+	byte[] page = image.pages[s][spn];
+	if (page != null) {
+	    System.arraycopy(page, 0, memory, paddr, pageSize);
+	    pagesCopied++;
+	    lock.release();
+	    return;
+	}
+
+	// the loader stays open while the caller uses the image
+	Coff loader = image.loader;
+	Lib.assertTrue(loader != null);
+	lock.release();
+
+	loader.getSection(s).loadPage(spn, ppn);
+
+	lock.acquire();
+	pagesRead++;
+
+	if (image.cached && image.pages[s][spn] == null) {
+	    page = new byte[pageSize];
+	    System.arraycopy(memory, paddr, page, 0, pageSize);
+	    image.pages[s][spn] = page;
+	    image.numMissing--;
+	    image.bytes += pageSize;
+	    totalBytes += pageSize;
+
+	    if (image.isComplete())
+		closeLoader(image);
+	    evict();
+	}
+
+	lock.release();
+    }
+
+    private void release(Image image) {
+	lock.acquire();
+
+	Lib.assertTrue(image.users > 0);
+	if (--image.users == 0) {
+	    closeLoader(image);
+	    evict();
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Evict images that are not in use, least recently opened first, until
+     * the cache is within its budget.
+     */
+    private void evict() {
+	Iterator<Image> i = images.values().iterator();
+	while (totalBytes > maxBytes && i.hasNext()) {
+	    Image image = i.next();
+	    if (image.users > 0)
+		continue;
+
+	    i.remove();
+	    image.cached = false;
+	    totalBytes -= image.bytes;
+	    numEvictions++;
+	}
+    }
+
+    private static class Image {
+	Image(String identity, Coff loader) {
+	    this.identity = identity;
+	    this.loader = loader;
+
+	    entryPoint = loader.getEntryPoint();
+	    sections = new CoffSection[loader.getNumSections()];
+	    pages = new byte[sections.length][][];
+	    for (int s=0; s<sections.length; s++) {
+		sections[s] = loader.getSection(s);
+		pages[s] = new byte[sections[s].getLength()][];
+		if (sections[s].isInitialzed())
+		    numMissing += sections[s].getLength();
+	    }
+	}
+
+	boolean isComplete() {
+	    return numMissing == 0;
+	}
+
+	String identity;
+	/** The executable's own loader, while uncaptured pages are needed. */
+	Coff loader;
+	int entryPoint;
+	CoffSection[] sections;
+	/** The captured pages of each section; <tt>null</tt> if not yet. */
+	byte[][][] pages;
+	int numMissing = 0;
+	long bytes = 0;
+
+	int users = 0;
+	boolean cached = true;
+    }
+
+    /**
+     * A loader for a cached image. Its sections load pages through the cache.
+     */
+    private class CachedCoff extends Coff {
+	CachedCoff(Image image) {
+	    super();
+
+	    this.image = image;
+	    entryPoint = image.entryPoint;
+	    sections = new CoffSection[image.sections.length];
+	    for (int s=0; s<sections.length; s++)
+		sections[s] = new CachedSection(this, s);
+	}
+
+	public int getEntryPoint() {
+	    return entryPoint;
+	}
+
+	public void close() {
+	    if (!closed) {
+		closed = true;
+		release(image);
+	    }
+	}
+
+	Image image;
+	private boolean closed = false;
+    }
+
+    private class CachedSection extends CoffSection {
+	CachedSection(CachedCoff coff, int s) {
+	    // whether a section is executable is not visible outside it
+	    super(coff, coff.image.sections[s].getName(), false,
+		  coff.image.sections[s].isReadOnly(),
+		  coff.image.sections[s].getLength(),
+		  coff.image.sections[s].getFirstVPN());
+
+	    this.image = coff.image;
+	    this.s = s;
+	    initialized = image.sections[s].isInitialzed();
+	}
+
+	public void loadPage(int spn, int ppn) {
+	    Lib.assertTrue(spn>=0 && spn<numPages);
+	    Lib.assertTrue(ppn>=0 && ppn<Machine.processor().getNumPhysPages());
+
+	    if (initialized) {
+		ImageCache.this.loadPage(image, s, spn, ppn);
+	    }
+	    else {
+		byte[] memory = Machine.processor().getMemory();
+		Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+	    }
+	}
+
+	private Image image;
+	private int s;
+    }
+
+    private static final int maxBytes =
+	Config.getInteger("ImageCache.maxBytes", 1 << 20);
+
+    private Lock lock = new Lock();
+    /** The cached images by file name, least recently opened first. */
+    private LinkedHashMap<String, Image> images =
+	new LinkedHashMap<String, Image>(16, 0.75f, true);
+    /** How many times each file's image has been invalidated. */
+    private HashMap<String, Integer> versions = new HashMap<String, Integer>();
+    private long totalBytes = 0;
+
+    private int numHits = 0, numMisses = 0;
+    private int numEvictions = 0, numInvalidations = 0;
+    private long pagesCopied = 0, pagesRead = 0;
+
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgImage = 'a';
+}
@@ -0,0 +1,236 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A one-way byte stream between processes, kept in a kernel ring buffer.
+ * Bytes written to the write end are read, in order, from the read end,
+ * without touching the file system.
+ *
+ * <p>
+ * A reader waits while the buffer is empty, and reads whatever is there once
+ * it is not; when the buffer is empty and the write end has been closed, a
+ * read returns 0, end of file. A writer waits while the buffer is full, and
+ * returns once all of its bytes are in the buffer. If the read end is closed
+ * first, the writer returns the number of bytes it got into the buffer, or
+ * -1 if it got none in.
+ */
+public class Pipe {
+    /**
+     * Allocate a new pipe with the default capacity,
+     * <tt>Pipe.capacity</tt>, 4096 bytes unless configured otherwise.
+     */
+    public Pipe() {
+	this(defaultCapacity);
+    }
+
+    /**
+     * Allocate a new pipe.
+     *
+     * @param	capacity	the number of bytes the pipe can hold.
+     */
+    public Pipe(int capacity) {
+	Lib.assertTrue(capacity > 0);
+
+	buffer = new byte[capacity];
+	readEnd = new End(true);
+	writeEnd = new End(false);
+    }
+
+    /**
+     * Return the read end of this pipe. The end is closed when its
+     * <tt>close()</tt> method is called.
+     *
+     * @return	a file that reads from this pipe.
+     */
+    public OpenFile getReadEnd() {
+	return readEnd;
+    }
+
+    /**
+     * Return the write end of this pipe.
+     *
+     * @return	a file that writes to this pipe.
+     */
+    public OpenFile getWriteEnd() {
+	return writeEnd;
+    }
+
+    private int read(byte[] buf, int offset, int length) {
+	if (length == 0)
+	    return 0;
+
+	lock.acquire();
+
+	while (count == 0 && writerOpen)
+	    notEmpty.sleep();
+
+	int amount = Math.min(length, count);
+	int first = Math.min(amount, buffer.length - head);
+	System.arraycopy(buffer, head, buf, offset, first);
+	System.arraycopy(buffer, 0, buf, offset+first, amount-first);
+	head = (head + amount) % buffer.length;
+	count -= amount;
+
+	if (amount > 0)
+	    notFull.wakeAll();
+
+	bytesRead += amount;
+	lock.release();
+	return amount;
+    }
+
+    private int write(byte[] buf, int offset, int length) {
+	lock.acquire();
+
+	int done = 0;
+	while (done < length && readerOpen) {
+	    if (count == buffer.length) {
+		notFull.sleep();
+		continue;
+	    }
+
+	    int tail = (head + count) % buffer.length;
+	    int amount = Math.min(length - done,
+				  Math.min(buffer.length - count,
+					   buffer.length - tail));
+	    System.arraycopy(buf, offset+done, buffer, tail, amount);
+	    count += amount;
+	    done += amount;
+
+	    notEmpty.wakeAll();
+	}
+
+	bytesWritten += done;
+	lock.release();
+
+	if (done == 0 && length > 0)
+	    return -1;
+	return done;
+    }
+
+    private void close(boolean reader) {
+	lock.acquire();
+
+	if (reader) {
+	    readerOpen = false;
+	    notFull.wakeAll();
+	}
+	else {
+	    writerOpen = false;
+	    notEmpty.wakeAll();
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Return the number of bytes that have been read from this pipe.
+     *
+     * @return	the number of bytes read.
+     */
+    public long getBytesRead() {
+	return bytesRead;
+    }
+
+    /**
+     * Return the number of bytes that have been written to this pipe.
+     *
+     * @return	the number of bytes written.
+     */
+    public long getBytesWritten() {
+	return bytesWritten;
+    }
+
+    /**
+     * Test a pipe between two threads: a writer that streams more than the
+     * pipe holds, in odd-sized pieces, and a reader that checks every byte
+     * and sees end of file after the writer closes. Then check that a writer
+     * is told when the reader has gone.
+     */
+    public static void selfTest() {
+	System.out.println("\n\nPipe Test");
+
+	final Pipe pipe = new Pipe(100);
+	final int total = 10000;
+
+	KThread writer = new KThread(new Runnable() {
+		public void run() {
+		    OpenFile out = pipe.getWriteEnd();
+		    byte[] data = new byte[37];
+		    for (int sent = 0; sent < total; ) {
+			int length = Math.min(data.length, total - sent);
+			for (int i=0; i<length; i++)
+			    data[i] = (byte) (sent + i);
+			Lib.assertTrue(out.write(data, 0, length) == length);
+			sent += length;
+		    }
+		    out.close();
+		}
+	    }).setName("pipe writer");
+	writer.fork();
+
+	OpenFile in = pipe.getReadEnd();
+	byte[] data = new byte[64];
+	int received = 0, n;
+	while ((n = in.read(data, 0, data.length)) > 0) {
+	    for (int i=0; i<n; i++)
+		Lib.assertTrue(data[i] == (byte) (received + i));
+	    received += n;
+	}
+	Lib.assertTrue(n == 0 && received == total);
+	writer.join();
+	in.close();
+
+	Pipe broken = new Pipe(10);
+	broken.getReadEnd().close();
+	Lib.assertTrue(broken.getWriteEnd().write(data, 0, 5) == -1);
+
+	System.out.println("Pipe: " + pipe.getBytesWritten() + " bytes written, "
+			   + pipe.getBytesRead() + " bytes read");
+    }
+
+    private class End extends OpenFile {
+	End(boolean reader) {
+	    super(null, reader ? "pipe (read)" : "pipe (write)");
+	    this.reader = reader;
+	}
+
+	public int read(byte[] buf, int offset, int length) {
+	    if (!reader || closed)
+		return -1;
+	    return Pipe.this.read(buf, offset, length);
+	}
+
+	public int write(byte[] buf, int offset, int length) {
+	    if (reader || closed)
+		return -1;
+	    return Pipe.this.write(buf, offset, length);
+	}
+
+	public void close() {
+	    if (!closed) {
+		closed = true;
+		Pipe.this.close(reader);
+	    }
+	}
+
+	private boolean reader;
+	private boolean closed = false;
+    }
+
+    private static final int defaultCapacity =
+	Config.getInteger("Pipe.capacity", 4096);
+
+    private byte[] buffer;
+    private int head = 0, count = 0;
+    private boolean readerOpen = true, writerOpen = true;
+    private long bytesRead = 0, bytesWritten = 0;
+
+    private Lock lock = new Lock();
+    private Condition2 notEmpty = new Condition2(lock);
+    private Condition2 notFull = new Condition2(lock);
+
+    private End readEnd, writeEnd;
+}
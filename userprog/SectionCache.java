@@ -0,0 +1,131 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+
+/**
+ * Remembers the frames holding the read-only sections of executables that
+ * are loaded, so that every process running the same program maps one copy
+ * of its text instead of loading its own.
+ *
+ * <p>
+ * An executable is identified as <tt>ImageCache.getIdentity()</tt> identifies
+ * it, so a program that a process rewrites is not confused with the old one.
+ * The cache holds no references to frames itself. It counts the
+ * processes mapping each section, and forgets the section when the last of
+ * them unmaps it; that process's <tt>free()</tt> of the frames then really
+ * frees them.
+ */
+public class SectionCache {
+    /**
+     * Allocate a new, empty section cache.
+     */
+    public SectionCache() {
+    }
+
+    /**
+     * Map a cached section into another process. A reference is added to
+     * each of its frames for the caller, which frees them as usual when it
+     * is done, after calling <tt>unmap()</tt>.
+     *
+     * @param	executable	the identity of the executable.
+     * @param	section		the section number.
+     * @return	the physical page numbers of the section's pages, or
+     *		<tt>null</tt> if the section is not cached.
+     */
+    public int[] map(String executable, int section) {
+	lock.acquire();
+
+	Entry entry = entries.get(key(executable, section));
+	int[] ppns = null;
+	if (entry == null) {
+	    numMisses++;
+	}
+	else {
+	    for (int i=0; i<entry.ppns.length; i++)
+		UserKernel.frames.addReference(entry.ppns[i]);
+	    entry.mappers++;
+	    numHits++;
+	    pagesShared += entry.ppns.length;
+	    ppns = entry.ppns;
+	}
+
+	lock.release();
+	return ppns;
+    }
+
+    /**
+     * Add a section that the caller has just loaded, with the caller as its
+     * only mapper. If another process loaded the same section at the same
+     * time and added it first, the caller's copy stays private.
+     *
+     * @param	executable	the identity of the executable.
+     * @param	section		the section number.
+     * @param	ppns		the physical page numbers of the section's
+     *				pages, which must not be written again.
+     * @return	<tt>true</tt> if the section was added, in which case the
+     *		caller must <tt>unmap()</tt> it.
+     */
+    public boolean add(String executable, int section, int[] ppns) {
+	lock.acquire();
+
+	String key = key(executable, section);
+	boolean added = !entries.containsKey(key);
+	if (added)
+	    entries.put(key, new Entry(ppns));
+
+	lock.release();
+	return added;
+    }
+
+    /**
+     * Stop mapping a section that was mapped by <tt>map()</tt> or added by
+     * <tt>add()</tt>. Must be called before the caller frees the frames.
+     *
+     * @param	executable	the identity of the executable.
+     * @param	section		the section number.
+     */
+    public void unmap(String executable, int section) {
+	lock.acquire();
+
+	String key = key(executable, section);
+	Entry entry = entries.get(key);
+	Lib.assertTrue(entry != null && entry.mappers > 0);
+	if (--entry.mappers == 0)
+	    entries.remove(key);
+
+	lock.release();
+    }
+
+    /**
+     * Print how often a section was found in the cache and how many pages
+     * that saved loading.
+     */
+    public void printStats() {
+	System.out.println("Section cache: sections " + entries.size()
+			   + ", hits " + numHits
+			   + ", misses " + numMisses
+			   + ", pages shared " + pagesShared);
+    }
+
+    private static String key(String executable, int section) {
+	return executable + "#" + section;
+    }
+
+    private static class Entry {
+	Entry(int[] ppns) {
+	    this.ppns = ppns;
+	}
+
+	int[] ppns;
+	int mappers = 1;
+    }
+
+    private Lock lock = new Lock();
+    private HashMap<String, Entry> entries = new HashMap<String, Entry>();
+
+    private int numHits = 0, numMisses = 0;
+    private long pagesShared = 0;
+}
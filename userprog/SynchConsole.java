@@ -7,6 +7,15 @@ import nachos.userprog.*;
 /**
  * Provides a simple, synchronized interface to the machine's console. The
  * interface can also be accessed through <tt>OpenFile</tt> objects.
+ *
+ * <p>
+ * Input and output both go through ring buffers. The receive interrupt
+ * defers to a work queue, which moves everything that has arrived into the
+ * input buffer, and readers take bytes from the buffer. Writers add bytes to
+ * the output buffer and return, waiting only while it is full; the send
+ * interrupt starts the next send as soon as one completes. A console that
+ * supports block transfers moves as much of a buffer as it can per
+ * interrupt; any other console moves one byte.
  */
 public class SynchConsole {
     /**
@@ -16,6 +25,8 @@ public class SynchConsole {
      */
     public SynchConsole(SerialConsole console) {
 	this.console = console;
+	if (console instanceof BulkConsole)
+	    bulkConsole = (BulkConsole) console;
 	
 	Runnable receiveHandler = new Runnable() {
 	    public void run() { receiveInterrupt(); }
@@ -24,6 +35,11 @@ public class SynchConsole {
 	    public void run() { sendInterrupt(); }
 	};
 	console.setInterruptHandlers(receiveHandler, sendHandler);
+
+	receiveWork = new Runnable() {
+		public void run() { receive(); }
+	    };
+	bottomHalf = new WorkQueue("console", 1);
     }
 
     /**
@@ -38,25 +54,57 @@ public class SynchConsole {
      */
     public int readByte(boolean block) {
 	int value;
-	boolean intStatus = Machine.interrupt().disable();	
 	readLock.acquire();
 
-	if (block || charAvailable) {
-	    charAvailable = false;
-	    readWait.P();
+	while (block && inputCount == 0)
+	    inputAvailable.sleep();
+
+	if (inputCount > 0) {
+	    value = input[inputHead] & 0xFF;
+	    keystrokeTime = inputTimes[inputHead];
+	    inputHead = (inputHead + 1) % input.length;
+	    inputCount--;
 
-	    value = console.readByte();
-	    Lib.assertTrue(value != -1);
+	    resumeDevice();
 	}
 	else {
 	    value = -1;
 	}
 
 	readLock.release();
-	Machine.interrupt().restore(intStatus);
 	return value;
     }
 
+    /**
+     * Move up to <i>length</i> received bytes into <i>buf</i>, starting at
+     * <i>offset</i>. Never blocks.
+     *
+     * @param	buf	the buffer to store the bytes in.
+     * @param	offset	the offset in the buffer to start storing bytes.
+     * @param	length	the most bytes to read.
+     * @return	the number of bytes read.
+     */
+    public int read(byte[] buf, int offset, int length) {
+	readLock.acquire();
+
+	int amount = Math.min(length, inputCount);
+	if (amount > 0) {
+	    int first = Math.min(amount, input.length - inputHead);
+	    System.arraycopy(input, inputHead, buf, offset, first);
+	    System.arraycopy(input, 0, buf, offset+first, amount-first);
+
+	    keystrokeTime =
+		inputTimes[(inputHead + amount - 1) % input.length];
+	    inputHead = (inputHead + amount) % input.length;
+	    inputCount -= amount;
+
+	    resumeDevice();
+	}
+
+	readLock.release();
+	return amount;
+    }
+
     /**
      * Return an <tt>OpenFile</tt> that can be used to read this as a file.
      *
@@ -67,19 +115,138 @@ public class SynchConsole {
     }
 
     private void receiveInterrupt() {
-	charAvailable = true;
-	readWait.V();
+	receiveTime = Machine.timer().getTime();
+	bottomHalf.enqueue(receiveWork);
+    }
+
+    /**
+     * The bottom half of the receive interrupt. Moves the bytes that arrived
+     * into the input buffer, or if the buffer is full, leaves them in the
+     * console for a reader to move once there is room.
+     */
+    private void receive() {
+	readLock.acquire();
+
+	if (inputCount == input.length)
+	    devicePending = true;
+	else
+	    drain();
+
+	readLock.release();
     }
 
     /**
-     * Send a byte. Blocks until the send is complete.
+     * Let the console hand over the bytes it has been holding, now that a
+     * reader has made room.
+     */
+    private void resumeDevice() {
+	if (devicePending) {
+	    devicePending = false;
+	    drain();
+	}
+    }
+
+    private void drain() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int amount = 0;
+	while (inputCount < input.length) {
+	    int tail = (inputHead + inputCount) % input.length;
+	    int n;
+
+	    if (bulkConsole != null) {
+		int room = Math.min(input.length - inputCount,
+				    input.length - tail);
+		n = bulkConsole.read(input, tail, room);
+	    }
+	    else {
+		int value = console.readByte();
+		if (value != -1)
+		    input[tail] = (byte) value;
+		n = (value != -1) ? 1 : 0;
+	    }
+
+	    if (n == 0)
+		break;
+
+	    for (int i=0; i<n; i++)
+		inputTimes[tail+i] = receiveTime;
+	    inputCount += n;
+	    amount += n;
+	}
+
+	// the console may still hold bytes there was no room for
+	if (inputCount == input.length)
+	    devicePending = true;
+
+	Machine.interrupt().restore(intStatus);
+
+	if (amount > 0)
+	    inputAvailable.wakeAll();
+    }
+
+    /**
+     * Send a byte. Returns as soon as the byte is in the output buffer.
      *
      * @param	value	the byte to be sent (the upper 24 bits are ignored).
      */
     public void writeByte(int value) {
+	write(new byte[] { (byte) value }, 0, 1);
+    }
+
+    /**
+     * Send <i>length</i> bytes from <i>buf</i>, starting at <i>offset</i>.
+     * Returns as soon as they are all in the output buffer, waiting only
+     * while the buffer is full. The bytes of one call are not interleaved
+     * with another's.
+     *
+     * @param	buf	the buffer to get the bytes from.
+     * @param	offset	the offset in the buffer to start getting.
+     * @param	length	the number of bytes to send.
+     */
+    public void write(byte[] buf, int offset, int length) {
 	writeLock.acquire();
-	console.writeByte(value);
-	writeWait.P();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	while (length > 0) {
+	    while (outputCount == output.length) {
+		numOutputWaits++;
+		writerWaiting = true;
+		outputSpace.P();
+	    }
+
+	    int tail = (outputHead + outputCount) % output.length;
+	    int amount = Math.min(length, Math.min(output.length - outputCount,
+						   output.length - tail));
+	    System.arraycopy(buf, offset, output, tail, amount);
+
+	    outputCount += amount;
+	    offset += amount;
+	    length -= amount;
+
+	    if (sending == 0)
+		startSend();
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	writeLock.release();
+    }
+
+    /**
+     * Wait until every byte written has been sent.
+     */
+    public void flush() {
+	writeLock.acquire();
+
+	boolean intStatus = Machine.interrupt().disable();
+	while (outputCount > 0) {
+	    flushWaiting = true;
+	    outputDrained.P();
+	}
+	Machine.interrupt().restore(intStatus);
+
 	writeLock.release();
     }
 
@@ -92,17 +259,105 @@ public class SynchConsole {
 	return new File(false, true);
     }
 
+    /**
+     * Send the bytes from the head of the output buffer up to its end, or
+     * one byte if the console only sends one at a time. Interrupts must be
+     * disabled.
+     */
+    private void startSend() {
+	if (bulkConsole != null) {
+	    sending = Math.min(outputCount, output.length - outputHead);
+	    bulkConsole.write(output, outputHead, sending);
+	}
+	else {
+	    sending = 1;
+	    console.writeByte(output[outputHead]);
+	}
+	numSends++;
+    }
+
     private void sendInterrupt() {
-	writeWait.V();
+	if (keystrokeTime != -1) {
+	    long latency = Machine.timer().getTime() - keystrokeTime;
+	    numEchoes++;
+	    totalEchoTicks += latency;
+	    maxEchoTicks = Math.max(maxEchoTicks, latency);
+	    keystrokeTime = -1;
+	}
+
+	outputHead = (outputHead + sending) % output.length;
+	outputCount -= sending;
+	numBytesSent += sending;
+	sending = 0;
+
+	if (outputCount > 0)
+	    startSend();
+
+	if (writerWaiting) {
+	    writerWaiting = false;
+	    outputSpace.V();
+	}
+	if (flushWaiting && outputCount == 0) {
+	    flushWaiting = false;
+	    outputDrained.V();
+	}
+    }
+
+    /**
+     * Print the keystroke-to-echo latency: the ticks from a byte arriving at
+     * the console to the completion of the first write after it was read,
+     * and how many bytes each send moved. Prints nothing if nothing was
+     * sent.
+     */
+    public void printStats() {
+	if (numEchoes > 0) {
+	    System.out.println("Console echo: keystrokes " + numEchoes
+			       + ", mean latency "
+			       + (totalEchoTicks / numEchoes)
+			       + ", max latency " + maxEchoTicks);
+	}
+	if (numSends > 0) {
+	    System.out.println("Console output: bytes " + numBytesSent
+			       + ", sends " + numSends
+			       + ", waits for room " + numOutputWaits);
+	}
     }
 
-    private boolean charAvailable = false;
+    /** Bytes received but not yet read, and the times they arrived. */
+    private byte[] input = new byte[256];
+    private long[] inputTimes = new long[input.length];
+    private int inputHead = 0, inputCount = 0;
+    /** Set when the console may hold bytes the full buffer had no room for. */
+    private boolean devicePending = false;
+
+    /** Bytes written but not yet sent. */
+    private byte[] output = new byte[4096];
+    private int outputHead = 0, outputCount = 0;
+    /** The number of bytes the console is sending now, or 0 if idle. */
+    private int sending = 0;
+    private boolean writerWaiting = false, flushWaiting = false;
+
+    private Runnable receiveWork;
+    private WorkQueue bottomHalf;
+
+    /** Time the last byte arrived. */
+    private long receiveTime = -1;
+    /** Arrival time of the last byte read, until it is echoed. */
+    private long keystrokeTime = -1;
+    private int numEchoes = 0;
+    private long totalEchoTicks = 0;
+    private long maxEchoTicks = 0;
+    private long numBytesSent = 0;
+    private int numSends = 0, numOutputWaits = 0;
 
     private SerialConsole console;
+    /** The console, if it supports block transfers. */
+    private BulkConsole bulkConsole = null;
     private Lock readLock = new Lock();
+    private Condition2 inputAvailable = new Condition2(readLock);
     private Lock writeLock = new Lock();
-    private Semaphore readWait = new Semaphore(0);
-    private Semaphore writeWait = new Semaphore(0);
+    private Semaphore outputSpace = new Semaphore(0);
+    private Semaphore outputDrained = new Semaphore(0);
 
     private class File extends OpenFile {
 	File(boolean canRead, boolean canWrite) {
@@ -120,25 +375,14 @@ public class SynchConsole {
 	    if (!canRead)
 		return 0;
 
-	    int i;
-	    for (i=0; i<length; i++) {
-		int value = SynchConsole.this.readByte(false);
-		if (value == -1)
-		    break;
-		
-		buf[offset+i] = (byte) value;
-	    }
-
-	    return i;
+	    return SynchConsole.this.read(buf, offset, length);
 	}
 
 	public int write(byte[] buf, int offset, int length) {
 	    if (!canWrite)
 		return 0;
 	    
-	    for (int i=0; i<length; i++)
-		SynchConsole.this.writeByte(buf[offset+i]);
-	    
+	    SynchConsole.this.write(buf, offset, length);
 	    return length;
 	}
 
@@ -30,12 +30,9 @@ public class UserKernel extends ThreadedKernel {
             public void run() { exceptionHandler(); }
             });
 
-        /** ArrayList maintaining free physical pages */
-        freePhysPages = new ArrayList<Integer>();
-        for (int i=0; i < Machine.processor().getNumPhysPages(); i++) {
-            freePhysPages.add(i);
-        }
-        freePhysPagesLock = new Lock();
+        frames = new FrameAllocator(Machine.processor().getNumPhysPages());
+        sections = new SectionCache();
+        images = new ImageCache();
     }
 
     /**
@@ -43,6 +40,9 @@ public class UserKernel extends ThreadedKernel {
      */	
     public void selfTest() {
         super.selfTest();
+        //FrameAllocator.selfTest();
+        //Pipe.selfTest();
+        //ConsoleBenchmark.selfTest();
 
         System.out.println("Testing the console device. Typed characters");
         System.out.println("will be echoed until q is typed.");
@@ -110,19 +110,32 @@ public class UserKernel extends ThreadedKernel {
     }
 
     /**
-     * Terminate this kernel. Never returns.
+     * Terminate this kernel. Prints the console, memory and syscall I/O
+     * statistics, then terminates the threaded kernel. Never returns.
      */
     public void terminate() {
-	super.terminate();
+        console.flush();
+        console.printStats();
+        frames.printStats();
+        sections.printStats();
+        images.printStats();
+        UserProcess.printStats();
+        super.terminate();
     }
 
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
 
-    /** List of free physical pages */
-    public static ArrayList<Integer> freePhysPages;
-    public static Lock freePhysPagesLock;
+    /** The allocator of physical page frames. */
+    public static FrameAllocator frames;
+
+    /** The read-only sections shared by processes running one program. */
+    public static SectionCache sections;
+
+    /** The executables that have been run, kept in memory. */
+    public static ImageCache images;
 
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
+    private static ConsoleBenchmark dummy2 = null;
 }
@@ -26,10 +26,12 @@ public class UserProcess {
      */
      
     public UserProcess() {
-    	this.fileTable = new OpenFile[16]; //up to 16 open files
+    	this.fileTable = new FileDescription[16]; //grows up to maxOpenFiles
         //stdin and stdout
-        this.fileTable[0] = UserKernel.console.openForReading();
-        this.fileTable[1] = UserKernel.console.openForWriting();
+        this.fileTable[0] =
+            new FileDescription(UserKernel.console.openForReading());
+        this.fileTable[1] =
+            new FileDescription(UserKernel.console.openForWriting());
         pid = ++ pidNum;
         cntLock.acquire();
         ++ numOfProcess;
@@ -155,25 +157,24 @@ public class UserProcess {
 
         for (int i = 0; i < maxAmount;) {
             int vpn = (vaddr + i) / pageSize;
-            int ppn = pageTable[vpn].ppn;
-
-            Lib.debug(dbgProcess, "vpn " + vpn + " ppn " + ppn);
 
             int pageOffset0 = (vaddr + i) - vpn * pageSize;
             int pageOffset1 = Math.min(vaddr + maxAmount, (vpn + 1) * pageSize) - vpn * pageSize;
 
             Lib.debug(dbgProcess, "offsets " + pageOffset0 + ' ' + pageOffset1);
 
-            if (pageTable[vpn].valid) {
-                System.arraycopy(memory, ppn * pageSize + pageOffset0, data, offset + i, pageOffset1 - pageOffset0);
-                amount += pageOffset1 - pageOffset0;
-            }
-            else {
+            TranslationEntry entry = pinPage(vpn, false);
+            if (entry == null)
                 break;
-            }
-            
 
-            i = (vpn + 1) * pageSize;
+            Lib.debug(dbgProcess, "vpn " + vpn + " ppn " + entry.ppn);
+
+            System.arraycopy(memory, entry.ppn * pageSize + pageOffset0, data, offset + i, pageOffset1 - pageOffset0);
+            entry.used = true;
+            unpinPage(entry);
+            amount += pageOffset1 - pageOffset0;
+
+            i = (vpn + 1) * pageSize - vaddr;
         }
 
         return amount;
@@ -220,20 +221,22 @@ public class UserProcess {
 
         for (int i = 0; i < maxAmount;) {
             int vpn = (vaddr + i) / pageSize;
-            int ppn = pageTable[vpn].ppn;
 
             int pageOffset0 = (vaddr + i) - vpn * pageSize;
             int pageOffset1 = Math.min(vaddr + maxAmount, (vpn + 1) * pageSize) - vpn * pageSize;
 
-            if (!pageTable[vpn].readOnly && pageTable[vpn].valid) {
-                System.arraycopy(data, offset + i, memory, ppn * pageSize + pageOffset0, pageOffset1 - pageOffset0);
-                amount += pageOffset1 - pageOffset0;
-            }
-            else {
+            // fails for a read-only page, and copies a copy-on-write one
+            TranslationEntry entry = pinPage(vpn, true);
+            if (entry == null)
                 break;
-            }
 
-            i = (vpn + 1) * pageSize;
+            System.arraycopy(data, offset + i, memory, entry.ppn * pageSize + pageOffset0, pageOffset1 - pageOffset0);
+            entry.used = true;
+            entry.dirty = true;
+            unpinPage(entry);
+            amount += pageOffset1 - pageOffset0;
+
+            i = (vpn + 1) * pageSize - vaddr;
         }
 
 
@@ -253,20 +256,11 @@ public class UserProcess {
     private boolean load(String name, String[] args) {
         Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
         
-        OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-        if (executable == null) {
-            Lib.debug(dbgProcess, "\topen failed");
-            return false;
-        }
-
-        try {
-            coff = new Coff(executable);
-        }
-        catch (EOFException e) {
-            executable.close();
-            Lib.debug(dbgProcess, "\tcoff load failed");
+        // a program run before is loaded from memory instead of the file
+        coff = UserKernel.images.open(name);
+        if (coff == null)
             return false;
-        }
+        executableKey = UserKernel.images.getIdentity(coff);
 
         // make sure the sections are contiguous and start at page 0
         numPages = 0;
@@ -333,43 +327,78 @@ public class UserProcess {
      * memory. If this returns successfully, the process will definitely be
      * run (this is the last step in process initialization that can fail).
      *
+     * <p>
+     * A read-only section that another process running the same executable
+     * has loaded is mapped from <tt>UserKernel.sections</tt> rather than
+     * loaded again, and a read-only section loaded here is added to it.
+     *
      * @return	<tt>true</tt> if the sections were successfully loaded.
      */
     protected boolean loadSections() {
+        int numSections = coff.getNumSections();
+        int[][] cached = new int[numSections][];
+        int numPrivate = numPages;
+        for (int s=0; s<numSections; s++) {
+            CoffSection section = coff.getSection(s);
+            if (section.isReadOnly()) {
+                cached[s] = UserKernel.sections.map(executableKey, s);
+                if (cached[s] != null)
+                    numPrivate -= section.getLength();
+            }
+        }
 
-        UserKernel.freePhysPagesLock.acquire();
-
-        if (numPages > UserKernel.freePhysPages.size()) {
+        int[] ppns = new int[numPrivate];
+        if (!UserKernel.frames.allocate(pid, ppns, 0, numPrivate)) {
+            for (int s=0; s<numSections; s++) {
+                if (cached[s] != null) {
+                    UserKernel.sections.unmap(executableKey, s);
+                    UserKernel.frames.free(cached[s], 0, cached[s].length);
+                }
+            }
             coff.close();
             Lib.debug(dbgProcess, "\tinsufficient physical memory");
-            UserKernel.freePhysPagesLock.release();
             return false;
         }
 
         pageTable = new TranslationEntry[numPages];
-        for (int i = 0; i < numPages; ++i) {
-            int ppn = UserKernel.freePhysPages.remove(0);
+        mappedSections = new boolean[numSections];
+        for (int s=0; s<numSections; s++) {
+            if (cached[s] == null)
+                continue;
             
-            pageTable[i] = new TranslationEntry(i, ppn, true, false, false, false);
-            Lib.debug(dbgProcess, "------- load " + pid + " ppn " + ppn);
+            CoffSection section = coff.getSection(s);
+            for (int i=0; i<section.getLength(); i++) {
+                int vpn = section.getFirstVPN()+i;
+                pageTable[vpn] = new TranslationEntry(vpn, cached[s][i], true, true, false, false);
+            }
+            mappedSections[s] = true;
+        }
+        for (int vpn = 0, next = 0; vpn < numPages; ++vpn) {
+            if (pageTable[vpn] == null)
+                pageTable[vpn] = new TranslationEntry(vpn, ppns[next++], true, false, false, false);
+            Lib.debug(dbgProcess, "------- load " + pid + " ppn " + pageTable[vpn].ppn);
         }
-        
-
-        UserKernel.freePhysPagesLock.release();        
 
         // load sections
-        for (int s=0; s<coff.getNumSections(); s++) {
+        for (int s=0; s<numSections; s++) {
             CoffSection section = coff.getSection(s);
+            if (mappedSections[s])
+                continue;
             
             Lib.debug(dbgProcess, "\tinitializing " + section.getName()
                 + " section (" + section.getLength() + " pages)");
 
+            int[] sectionPPNs = new int[section.getLength()];
             for (int i=0; i<section.getLength(); i++) {
                 int vpn = section.getFirstVPN()+i;
 
                 section.loadPage(i, pageTable[vpn].ppn); 
                 pageTable[vpn].readOnly = section.isReadOnly();
+                sectionPPNs[i] = pageTable[vpn].ppn;
             }
+
+            if (section.isReadOnly())
+                mappedSections[s] = UserKernel.sections.add(executableKey, s, sectionPPNs);
 	    }
 	
 	    return true;
@@ -379,17 +408,25 @@ public class UserProcess {
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
-        
-        UserKernel.freePhysPagesLock.acquire();
+        // stop sharing text before the frames can be freed
+        if (mappedSections != null) {
+            for (int s=0; s<mappedSections.length; s++) {
+                if (mappedSections[s])
+                    UserKernel.sections.unmap(executableKey, s);
+            }
+            mappedSections = null;
+        }
 
+        int[] ppns = new int[numPages];
         for (int i = 0; i < numPages; i++) {
-            UserKernel.freePhysPages.add(pageTable[i].ppn);
-            Lib.debug(dbgProcess, "------- unload " + pid + " ppn " + pageTable[i].ppn);
+            ppns[i] = pageTable[i].ppn;
+            Lib.debug(dbgProcess, "------- unload " + pid + " ppn " + ppns[i]);
         }
+        UserKernel.frames.free(ppns, 0, numPages);
 
-        UserKernel.freePhysPagesLock.release();
-
-        coff.close();
+        // a forked process shares its parent's pages but not its executable
+        if (coff != null)
+            coff.close();
     }
 
     /**
@@ -403,6 +440,14 @@ public class UserProcess {
     public void initRegisters() {
 	Processor processor = Machine.processor();
 
+	// a forked process starts where its parent was
+	if (forkedRegisters != null) {
+	    for (int i=0; i<Processor.numUserRegisters; i++)
+		processor.writeRegister(i, forkedRegisters[i]);
+	    forkedRegisters = null;
+	    return;
+	}
+
 	// by default, everything's 0
 	for (int i=0; i<processor.numUserRegisters; i++)
 	    processor.writeRegister(i, 0);
@@ -422,7 +467,7 @@ public class UserProcess {
     private int handleHalt() {
         Lib.debug(dbgProcess, "going to halt");
         
-	Machine.halt();
+	Kernel.kernel.terminate();
 	
 	Lib.assertNotReached("Machine.halt() did not halt machine!");
 	return 0;
@@ -432,62 +477,466 @@ public class UserProcess {
         String name = readVirtualMemoryString(vaddr, 256);
         Lib.debug(dbgProcess, "file name " + name);
         if (name == null || name.length() == 0) return -1; //invalid name
-        int fileDescriptor = -1;
-        for (int i=0; i<this.fileTable.length; i++)
-        if (this.fileTable[i] == null){
-            fileDescriptor = i;
-            break;
-        }
+        int fileDescriptor = allocateFileDescriptor();
         if (fileDescriptor == -1) return -1; //no position
+        UserKernel.images.invalidate(name); //creat() truncates the file
         OpenFile createdFile = ThreadedKernel.fileSystem.open(name, true);
         if (createdFile == null) return -1; //failed
-        this.fileTable[fileDescriptor] = createdFile;
+        this.fileTable[fileDescriptor] = new FileDescription(createdFile);
         return fileDescriptor;
     }
 
     private int handleOpen(int vaddr){
         String name = readVirtualMemoryString(vaddr, 256);
         if (name == null || name.length() == 0) return -1; //invalid name
-        int fileDescriptor = -1;
-        for (int i=0; i<this.fileTable.length; i++)
-        if (this.fileTable[i] == null){
-            fileDescriptor = i;
-            break;
-        }
+        int fileDescriptor = allocateFileDescriptor();
         if (fileDescriptor == -1) return -1; //no position
         OpenFile openFile = ThreadedKernel.fileSystem.open(name, false);
         if (openFile == null) return -1; //failed
-        this.fileTable[fileDescriptor] = openFile;
+        this.fileTable[fileDescriptor] = new FileDescription(openFile);
         return fileDescriptor;
     }
 
+    /**
+     * Find the lowest unused file descriptor, doubling the file table if
+     * every entry is in use and the table is still smaller than
+     * <tt>maxOpenFiles</tt>.
+     *
+     * @return	an unused file descriptor, or -1 if there is none.
+     */
+    protected int allocateFileDescriptor() {
+        for (int i=0; i<fileTable.length; i++)
+            if (fileTable[i] == null)
+                return i;
+
+        if (fileTable.length == maxOpenFiles)
+            return -1;
+
+        int fileDescriptor = fileTable.length;
+        growFileTable(fileDescriptor + 1);
+        return fileDescriptor;
+    }
+
+    /**
+     * Make the file table at least <i>size</i> entries long, doubling it as
+     * many times as needed, but not past <tt>maxOpenFiles</tt>.
+     */
+    private void growFileTable(int size) {
+        int length = fileTable.length;
+        while (length < size)
+            length *= 2;
+        if (length != fileTable.length)
+            fileTable = Arrays.copyOf(fileTable,
+                                      Math.min(length, maxOpenFiles));
+    }
+
+    /**
+     * Handle the pipe() system call. Creates a pipe and stores the file
+     * descriptors of its read end and write end at <i>vaddr</i>.
+     */
+    private int handlePipe(int vaddr) {
+        int readFD = allocateFileDescriptor();
+        if (readFD == -1) return -1;
+        Pipe pipe = new Pipe();
+        fileTable[readFD] = new FileDescription(pipe.getReadEnd());
+
+        int writeFD = allocateFileDescriptor();
+        if (writeFD == -1) {
+            handleClose(readFD);
+            pipe.getWriteEnd().close();
+            return -1;
+        }
+        fileTable[writeFD] = new FileDescription(pipe.getWriteEnd());
+
+        byte[] fds = new byte[8];
+        Lib.bytesFromInt(fds, 0, readFD);
+        Lib.bytesFromInt(fds, 4, writeFD);
+        if (writeVirtualMemory(vaddr, fds) != fds.length) {
+            handleClose(readFD);
+            handleClose(writeFD);
+            return -1;
+        }
+        return 0;
+    }
+
+    /**
+     * Handle the dup2() system call. Makes <i>newFD</i> refer to the same
+     * open file description as <i>oldFD</i>, closing whatever <i>newFD</i>
+     * referred to before.
+     */
+    private int handleDup2(int oldFD, int newFD) {
+        if (oldFD < 0 || oldFD >= fileTable.length || fileTable[oldFD] == null)
+            return -1;
+        if (newFD < 0 || newFD >= maxOpenFiles)
+            return -1;
+        if (newFD == oldFD)
+            return newFD;
+
+        growFileTable(newFD + 1);
+        if (fileTable[newFD] != null)
+            handleClose(newFD);
+        fileTable[newFD] = fileTable[oldFD].share();
+        return newFD;
+    }
+
     private int handleRead(int fileDescriptor, int buffer, int count){
         if (count < 0 || fileDescriptor < 0 || fileDescriptor >= this.fileTable.length) return -1;
         OpenFile readFile = this.fileTable[fileDescriptor];
         if (readFile == null) return -1;
-        byte[] content = new byte[count];
-        int readLength = readFile.read(content, 0, count);
-        if (readLength == -1) return -1;
-        int writeLength = writeVirtualMemory(buffer, content, 0, readLength);
-        if (readLength != writeLength) return -1;
-        return readLength;
+        return transfer(readFile, buffer, count, true);
     }
 
     private int handleWrite(int fileDescriptor, int buffer, int count){
         if (count < 0 || fileDescriptor < 0 || fileDescriptor >= this.fileTable.length) return -1;
         OpenFile writeFile = this.fileTable[fileDescriptor];
         if (writeFile == null) return -1;
-        byte[] content = new byte[count];
-        int readLength = readVirtualMemory(buffer, content, 0, count);
-        if (readLength < count) return -1;
-        int writeLength = writeFile.write(content, 0, count);
-        if (writeLength < count) return -1;
-        return count;
+        if (writeFile.getFileSystem() != null)
+            UserKernel.images.invalidate(writeFile.getName());
+        // a pipe whose reader has gone may take only part of the buffer
+        return transfer(writeFile, buffer, count, false);
+    }
+
+    /**
+     * Move bytes between a file and this process's virtual memory, without
+     * copying them through a kernel buffer. The user buffer is resolved into
+     * runs of physically contiguous frames, and the file reads or writes
+     * each run in place in main memory. A buffer split over more than one
+     * run is gathered through a bounce buffer instead, if one is free, so
+     * that each device call still moves many pages.
+     *
+     * <p>
+     * Every page of the buffer is pinned for the transfer. Nothing is
+     * transferred unless the whole buffer is mapped, and, for a read,
+     * writable. A read from a stream, such as a pipe or the console, returns
+     * after the first device call that gets any bytes, rather than waiting
+     * for more to fill the rest of the buffer.
+     *
+     * @param	file	the file to transfer to or from.
+     * @param	vaddr	the first byte of the user buffer.
+     * @param	count	the number of bytes to transfer.
+     * @param	toMemory	<tt>true</tt> to read from the file into
+     *				memory, <tt>false</tt> to write memory to the
+     *				file.
+     * @return	the number of bytes transferred, or -1 on failure.
+     */
+    protected int transfer(OpenFile file, int vaddr, int count,
+                           boolean toMemory) {
+        if (count == 0)
+            return 0;
+        if (vaddr < 0 || (long) vaddr + count > (long) numPages * pageSize)
+            return -1;
+
+        int firstVPN = vaddr / pageSize;
+        TranslationEntry[] entries =
+            new TranslationEntry[(vaddr + count - 1) / pageSize - firstVPN + 1];
+
+        int runs = 1;
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = pinPage(firstVPN + i, toMemory);
+            if (entries[i] == null) {
+                for (int j = 0; j < i; j++)
+                    unpinPage(entries[j]);
+                return -1;
+            }
+            if (i > 0 && entries[i].ppn != entries[i-1].ppn + 1)
+                runs++;
+        }
+
+        byte[] bounce = (runs > 1) ? BouncePool.acquire() : null;
+
+        int amount;
+        if (bounce == null)
+            amount = transferDirect(file, vaddr, count, toMemory, entries);
+        else
+            amount = transferBounced(file, vaddr, count, toMemory, entries,
+                                     bounce);
+
+        if (bounce != null)
+            BouncePool.release(bounce);
+
+        for (int i = 0; i < entries.length; i++) {
+            entries[i].used = true;
+            if (toMemory)
+                entries[i].dirty = true;
+            unpinPage(entries[i]);
+        }
+
+        if (amount > 0)
+            bytesTransferred += amount;
+        return amount;
+    }
+
+    private int transferDirect(OpenFile file, int vaddr, int count,
+                               boolean toMemory, TranslationEntry[] entries) {
+        byte[] memory = Machine.processor().getMemory();
+        int firstVPN = vaddr / pageSize;
+        int done = 0;
+
+        while (done < count) {
+            // extend the run while the next page's frame follows this one's
+            int i = (vaddr + done) / pageSize - firstVPN;
+            int paddr = entries[i].ppn * pageSize + (vaddr + done) % pageSize;
+            int length = Math.min(count - done,
+                                  (i + 1 + firstVPN) * pageSize - (vaddr + done));
+            while (done + length < count &&
+                   entries[i+1].ppn == entries[i].ppn + 1) {
+                i++;
+                length = Math.min(count - done, length + pageSize);
+            }
+
+            int n = toMemory ? file.read(memory, paddr, length)
+                             : file.write(memory, paddr, length);
+            directRuns++;
+
+            if (n < 0)
+                return (done > 0) ? done : -1;
+            done += n;
+            if (n < length || (toMemory && file.tell() < 0))
+                break;
+        }
+
+        return done;
+    }
+
+    private int transferBounced(OpenFile file, int vaddr, int count,
+                                boolean toMemory, TranslationEntry[] entries,
+                                byte[] bounce) {
+        int done = 0;
+
+        while (done < count) {
+            int length = Math.min(count - done, bounce.length);
+            int n;
+
+            if (toMemory) {
+                n = file.read(bounce, 0, length);
+                if (n > 0)
+                    copyPages(vaddr, done, n, entries, bounce, true);
+            }
+            else {
+                copyPages(vaddr, done, length, entries, bounce, false);
+                n = file.write(bounce, 0, length);
+            }
+            bouncedChunks++;
+
+            if (n < 0)
+                return (done > 0) ? done : -1;
+            done += n;
+            if (n < length || (toMemory && file.tell() < 0))
+                break;
+        }
+
+        return done;
+    }
+
+    /**
+     * Copy <i>length</i> bytes between the start of <i>bounce</i> and the
+     * pinned user buffer, <i>done</i> bytes past <i>vaddr</i>.
+     */
+    private void copyPages(int vaddr, int done, int length,
+                           TranslationEntry[] entries, byte[] bounce,
+                           boolean toMemory) {
+        byte[] memory = Machine.processor().getMemory();
+        int firstVPN = vaddr / pageSize;
+
+        for (int copied = 0; copied < length; ) {
+            int addr = vaddr + done + copied;
+            int paddr = entries[addr / pageSize - firstVPN].ppn * pageSize
+                + addr % pageSize;
+            int amount = Math.min(length - copied, pageSize - addr % pageSize);
+
+            if (toMemory)
+                System.arraycopy(bounce, copied, memory, paddr, amount);
+            else
+                System.arraycopy(memory, paddr, bounce, copied, amount);
+            copied += amount;
+        }
+    }
+
+    /**
+     * Return the mapping of a page the kernel is about to copy to or from,
+     * for a syscall transfer or <tt>readVirtualMemory()</tt> and
+     * <tt>writeVirtualMemory()</tt>, and pin its frame until
+     * <tt>unpinPage()</tt>.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	write	<tt>true</tt> if the transfer will write the page.
+     * @return	the page's translation entry, or <tt>null</tt> if the page is
+     *		not mapped, or is read-only and <i>write</i> is
+     *		<tt>true</tt>.
+     */
+    protected TranslationEntry pinPage(int vpn, boolean write) {
+        if (vpn < 0 || vpn >= numPages)
+            return null;
+
+        TranslationEntry entry = pageTable[vpn];
+        if (entry == null || !entry.valid)
+            return null;
+        if (write && isCopyOnWrite(vpn) && !breakCopyOnWrite(vpn))
+            return null;
+        if (write && entry.readOnly)
+            return null;
+
+        UserKernel.frames.pin(entry.ppn);
+        return entry;
+    }
+
+    /**
+     * Release a page pinned by <tt>pinPage()</tt>.
+     *
+     * @param	entry	the entry <tt>pinPage()</tt> returned.
+     */
+    protected void unpinPage(TranslationEntry entry) {
+        UserKernel.frames.unpin(entry.ppn);
+    }
+
+    /**
+     * Print how syscall I/O reached user memory, and how much memory
+     * <tt>fork()</tt> shared and copied. Called when the kernel terminates.
+     */
+    public static void printStats() {
+        System.out.println("Syscall I/O: bytes " + bytesTransferred
+                           + ", direct runs " + directRuns
+                           + ", bounced chunks " + bouncedChunks
+                           + ", bounce buffer misses "
+                           + BouncePool.getNumMisses());
+        System.out.println("Fork: forks " + numForks
+                           + ", pages shared " + pagesShared
+                           + ", pages copied on write " + pagesCopied);
+    }
+
+    /**
+     * Handle the fork() system call. The child gets this process's address
+     * space, registers and file table, and returns 0 from fork(); the parent
+     * gets the child's process ID.
+     *
+     * <p>
+     * No memory is copied. The child maps every frame the parent does, and
+     * each writable page is made read-only in both processes. The first
+     * write to such a page, by either process, raises a read-only exception,
+     * and <tt>breakCopyOnWrite()</tt> gives the writer its own copy. A fork
+     * therefore costs a page table, and then a page for each page written.
+     */
+    private int handleFork() {
+        UserProcess childProcess = UserProcess.newUserProcess();
+        childList.add(childProcess);
+        childProcess.parentProcess = this;
+
+        if (copyOnWrite == null)
+            copyOnWrite = new boolean[numPages];
+
+        childProcess.numPages = numPages;
+        childProcess.pageTable = new TranslationEntry[numPages];
+        childProcess.copyOnWrite = new boolean[numPages];
+        for (int vpn = 0; vpn < numPages; vpn++)
+            sharePage(childProcess, vpn);
+
+        // the child returns 0 from the syscall instruction, resuming where
+        // advancePC() will leave the parent
+        Processor processor = Machine.processor();
+        childProcess.forkedRegisters = new int[Processor.numUserRegisters];
+        for (int i = 0; i < Processor.numUserRegisters; i++)
+            childProcess.forkedRegisters[i] = processor.readRegister(i);
+        childProcess.forkedRegisters[Processor.regV0] = 0;
+        childProcess.forkedRegisters[Processor.regPC] =
+            processor.readRegister(Processor.regNextPC);
+        childProcess.forkedRegisters[Processor.regNextPC] =
+            processor.readRegister(Processor.regNextPC) + 4;
+
+        for (int fd = 0; fd < 2; fd++)
+            childProcess.fileTable[fd].close();
+        childProcess.fileTable = new FileDescription[fileTable.length];
+        for (int fd = 0; fd < fileTable.length; fd++) {
+            if (fileTable[fd] != null)
+                childProcess.fileTable[fd] = fileTable[fd].share();
+        }
+
+        Lib.debug(dbgProcess, "parent process is " + pid + " forked child " + childProcess.pid);
+        numForks++;
+        childProcess.thread = new UThread(childProcess);
+        childProcess.thread.setName(KThread.currentThread().getName()).fork();
+        return childProcess.pid;
+    }
+
+    /**
+     * Give a forked child a page of this process's address space. The child
+     * maps the same frame, and a writable page becomes copy-on-write in both
+     * processes.
+     *
+     * @param	child	the forked process.
+     * @param	vpn	the virtual page number.
+     */
+    protected void sharePage(UserProcess child, int vpn) {
+        TranslationEntry entry = pageTable[vpn];
+        if (!entry.readOnly) {
+            entry.readOnly = true;
+            copyOnWrite[vpn] = true;
+            invalidateTranslation(vpn);
+        }
+
+        child.pageTable[vpn] =
+            new TranslationEntry(vpn, entry.ppn, entry.valid, true,
+                                 false, false);
+        child.copyOnWrite[vpn] = copyOnWrite[vpn];
+        UserKernel.frames.addReference(entry.ppn);
+        pagesShared++;
+    }
+
+    /**
+     * Return <tt>true</tt> if the specified page is shared copy-on-write
+     * with another process.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	<tt>true</tt> if writing the page needs a private copy first.
+     */
+    protected boolean isCopyOnWrite(int vpn) {
+        return copyOnWrite != null && copyOnWrite[vpn];
+    }
+
+    /**
+     * Make a copy-on-write page writable. If another process still maps its
+     * frame, the page gets a new frame with a copy of the old one; if this
+     * is the last process mapping it, the frame is simply made writable.
+     *
+     * @param	vpn	the virtual page number of a copy-on-write page.
+     * @return	<tt>true</tt> if the page is now writable, <tt>false</tt> if
+     *		there was no free frame to copy it to.
+     */
+    protected boolean breakCopyOnWrite(int vpn) {
+        Lib.assertTrue(isCopyOnWrite(vpn));
+
+        TranslationEntry entry = pageTable[vpn];
+        if (UserKernel.frames.getReferences(entry.ppn) > 1) {
+            int ppn = UserKernel.frames.allocate(pid);
+            if (ppn == -1)
+                return false;
+
+            byte[] memory = Machine.processor().getMemory();
+            System.arraycopy(memory, entry.ppn * pageSize,
+                             memory, ppn * pageSize, pageSize);
+            UserKernel.frames.free(entry.ppn);
+            entry.ppn = ppn;
+            pagesCopied++;
+        }
+
+        entry.readOnly = false;
+        copyOnWrite[vpn] = false;
+        invalidateTranslation(vpn);
+        return true;
+    }
+
+    /**
+     * Called when the translation of one of this process's pages changes, so
+     * that a subclass that keeps copies of translations, in a TLB, can drop
+     * its copy. Does nothing here: the processor reads the page table.
+     *
+     * @param	vpn	the virtual page number.
+     */
+    protected void invalidateTranslation(int vpn) {
     }
 
     private int handleClose(int fileDescriptor){
         if (fileDescriptor < 0 || fileDescriptor >= this.fileTable.length) return -1;
-        OpenFile closeFile = fileTable[fileDescriptor];
+        FileDescription closeFile = fileTable[fileDescriptor];
         if (closeFile == null) return -1;
         fileTable[fileDescriptor] = null;
         closeFile.close();
@@ -497,6 +946,7 @@ public class UserProcess {
     private int handleUnlink(int vaddr){
         String name = readVirtualMemoryString(vaddr, 256);
         if (name == null || name.length() == 0) return -1; //invalid name
+        UserKernel.images.invalidate(name);
         if (ThreadedKernel.fileSystem.remove(name)) return 0;
         return -1;
     }
@@ -528,6 +978,14 @@ public class UserProcess {
     	UserProcess childProcess = UserProcess.newUserProcess();
     	childList.add(childProcess);
     	childProcess.parentProcess = this;
+    	//the child's standard input and output are the parent's, so that a
+    	//shell can redirect them with dup2() before calling exec()
+    	for (int fd = 0; fd < 2; fd ++) {
+    		if (childProcess.fileTable[fd] != null)
+    			childProcess.fileTable[fd].close();
+    		childProcess.fileTable[fd] =
+    			(fileTable[fd] == null) ? null : fileTable[fd].share();
+    	}
     	Lib.debug(dbgProcess, "parent process is " + pid + "child process is " + childProcess.pid);
     	if (!childProcess.execute(name, arg)) {//fail to open the file 
     		Lib.debug(dbgProcess, "exec() incorrect file");
@@ -566,8 +1024,8 @@ public class UserProcess {
     
     private void exit() {
         //first close all opened files
-    	for(int i = 0;i < 16;i ++) {
-    		OpenFile closeFile = fileTable[i];
+    	for(int i = 0;i < fileTable.length;i ++) {
+    		FileDescription closeFile = fileTable[i];
     		if (fileTable[i] != null) {
     			fileTable[i] = null;
     			closeFile.close();
@@ -582,7 +1040,7 @@ public class UserProcess {
     	//if only the "main" thread is running, close the whole machine
     	if (numOfProcess == 1) {
         	Lib.debug(dbgProcess, "exit and the machine terminates");
-    		Machine.halt();
+    		Kernel.kernel.terminate();
     	}
     	//remove this thread
     	//we need a lock to do that
@@ -609,7 +1067,7 @@ public class UserProcess {
     	return 0;
     }
 
-    private static final int
+    protected static final int
         syscallHalt = 0,
 	syscallExit = 1,
 	syscallExec = 2,
@@ -619,7 +1077,10 @@ public class UserProcess {
 	syscallRead = 6,
 	syscallWrite = 7,
 	syscallClose = 8,
-	syscallUnlink = 9;
+	syscallUnlink = 9,
+	syscallPipe = 13,
+	syscallDup2 = 14,
+	syscallFork = 15;
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -640,6 +1101,9 @@ public class UserProcess {
      *								</tt></td></tr>
      * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>13</td><td><tt>int  pipe(int fds[2]);</tt></td></tr>
+     * <tr><td>14</td><td><tt>int  dup2(int oldfd, int newfd);</tt></td></tr>
+     * <tr><td>15</td><td><tt>int  fork();</tt></td></tr>
      * </table>
      * 
      * @param	syscall	the syscall number.
@@ -667,6 +1131,12 @@ public class UserProcess {
         return handleClose(a0);
     case syscallUnlink:
         return handleUnlink(a0);
+    case syscallPipe:
+        return handlePipe(a0);
+    case syscallDup2:
+        return handleDup2(a0,a1);
+    case syscallFork:
+        return handleFork();
    	case syscallExec:
 	    Lib.debug(dbgProcess, "enter syscall exec()");
    		return handleExec(a0,a1,a2);
@@ -707,6 +1177,17 @@ public class UserProcess {
 	    processor.writeRegister(Processor.regV0, result);
 	    processor.advancePC();
 	    break;				       
+
+	case Processor.exceptionReadOnly:
+	    // a store to a page shared by fork(): copy it, then retry the store
+	    int badVPN = Processor.pageFromAddress(
+		processor.readRegister(Processor.regBadVAddr));
+	    if (badVPN < numPages && isCopyOnWrite(badVPN) &&
+		breakCopyOnWrite(badVPN))
+		break;
+	    Lib.debug(dbgProcess, "write to read-only page " + badVPN);
+	    handleExit(-1,false);
+	    break;
 				       
 	default:
 	    Lib.debug(dbgProcess, "Unexpected exception: " +
@@ -716,9 +1197,16 @@ public class UserProcess {
 	}
     }
 
-    protected OpenFile[] fileTable;
+    /** This process's open files, indexed by file descriptor. */
+    protected FileDescription[] fileTable;
+    /** The largest the file table may grow. */
+    protected static final int maxOpenFiles = 256;
     /** The program being run by this process. */
     protected Coff coff;
+    /** The identity of the executable, as the section cache keys it. */
+    protected String executableKey;
+    /** Which sections of the executable this process maps from the cache. */
+    protected boolean[] mappedSections = null;
 
     /** This process's page table. */
     protected TranslationEntry[] pageTable;
@@ -727,6 +1215,13 @@ public class UserProcess {
 
     /** The number of pages in the program's stack. */
     protected final int stackPages = 8;
+    /**
+     * Which pages are shared copy-on-write since a fork(), or
+     * <tt>null</tt> if this process has never forked or been forked.
+     */
+    protected boolean[] copyOnWrite = null;
+    /** The registers a forked process starts with. */
+    private int[] forkedRegisters = null;
     
     /** status of this thread*/
     private int status;
@@ -748,6 +1243,13 @@ public class UserProcess {
     
     //lock for #of process
     protected static Lock cntLock = new Lock();
+
+    /** Syscall I/O statistics. */
+    private static long bytesTransferred = 0;
+    private static int directRuns = 0, bouncedChunks = 0;
+    /** Fork statistics. */
+    private static int numForks = 0;
+    private static long pagesShared = 0, pagesCopied = 0;
     
     private int initialPC, initialSP;
     private int argc, argv;
@@ -0,0 +1,209 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * A global table of the pages resident in physical memory, hashed on process
+ * ID and virtual page number, so that the translation for a TLB miss is found
+ * in constant time without walking any process's page table.
+ *
+ * <p>
+ * A frame shared by several processes, after a <tt>fork()</tt> or through
+ * the section cache, is resident under each of them, so the table holds one
+ * entry per mapping rather than one per frame. Entries live in parallel
+ * arrays chained through <tt>next</tt>, and the arrays double when they are
+ * full, so an insertion allocates nothing in the common case.
+ *
+ * <p>
+ * The table stores the same <tt>TranslationEntry</tt> objects as the
+ * processes' page tables, so used and dirty bits copied back from the TLB
+ * into an entry found here are seen by the process too. No method blocks, so
+ * each runs without another kernel thread in between and needs no lock.
+ */
+public class InvertedPageTable {
+    /**
+     * Allocate a new inverted page table.
+     *
+     * @param	capacity	the number of mappings to make room for at
+     *				first, usually the number of physical pages.
+     */
+    public InvertedPageTable(int capacity) {
+	int size = 1;
+	while (size < capacity)
+	    size *= 2;
+
+	buckets = new int[size];
+	java.util.Arrays.fill(buckets, -1);
+	keys = new long[size];
+	entries = new TranslationEntry[size];
+	next = new int[size];
+
+	// chain every slot onto the free list
+	for (int i=0; i<size; i++)
+	    next[i] = i+1;
+	next[size-1] = -1;
+	freeList = 0;
+    }
+
+    /**
+     * Return the translation for a resident page.
+     *
+     * @param	pid	the process ID.
+     * @param	vpn	the virtual page number.
+     * @return	the page's entry, or <tt>null</tt> if it is not resident.
+     */
+    public TranslationEntry lookup(int pid, int vpn) {
+	long key = key(pid, vpn);
+	numLookups++;
+
+	for (int i=buckets[hash(key)]; i != -1; i=next[i]) {
+	    numProbes++;
+	    if (keys[i] == key)
+		return entries[i];
+	}
+
+	return null;
+    }
+
+    /**
+     * Add a resident page, or replace the entry of one that is already
+     * resident.
+     *
+     * @param	pid	the process ID.
+     * @param	entry	the page's translation; <tt>entry.vpn</tt> is its
+     *			virtual page number.
+     */
+    public void insert(int pid, TranslationEntry entry) {
+	long key = key(pid, entry.vpn);
+	int bucket = hash(key);
+
+	for (int i=buckets[bucket]; i != -1; i=next[i]) {
+	    if (keys[i] == key) {
+		entries[i] = entry;
+		return;
+	    }
+	}
+
+	if (freeList == -1) {
+	    grow();
+	    bucket = hash(key);
+	}
+
+	int i = freeList;
+	freeList = next[i];
+
+	keys[i] = key;
+	entries[i] = entry;
+	next[i] = buckets[bucket];
+	buckets[bucket] = i;
+	numEntries++;
+    }
+
+    /**
+     * Remove a page that is no longer resident.
+     *
+     * @param	pid	the process ID.
+     * @param	vpn	the virtual page number.
+     * @return	the entry that was removed, or <tt>null</tt> if the page was
+     *		not resident.
+     */
+    public TranslationEntry remove(int pid, int vpn) {
+	long key = key(pid, vpn);
+	int bucket = hash(key);
+
+	for (int i=buckets[bucket], prev=-1; i != -1; prev=i, i=next[i]) {
+	    if (keys[i] != key)
+		continue;
+
+	    if (prev == -1)
+		buckets[bucket] = next[i];
+	    else
+		next[prev] = next[i];
+
+	    TranslationEntry entry = entries[i];
+	    entries[i] = null;
+	    next[i] = freeList;
+	    freeList = i;
+	    numEntries--;
+	    return entry;
+	}
+
+	return null;
+    }
+
+    /**
+     * Return the number of resident mappings.
+     *
+     * @return	the number of entries in the table.
+     */
+    public int getNumEntries() {
+	return numEntries;
+    }
+
+    /**
+     * Print how many mappings are resident and how many chain links a lookup
+     * followed on average.
+     */
+    public void printStats() {
+	System.out.println("Inverted page table: entries " + numEntries
+			   + ", buckets " + buckets.length
+			   + ", lookups " + numLookups
+			   + ", mean probes "
+			   + ((numLookups == 0) ? 0 :
+			      (double) numProbes / numLookups));
+    }
+
+    private static long key(int pid, int vpn) {
+	return ((long) pid << 32) | (vpn & 0xFFFFFFFFL);
+    }
+
+    private int hash(long key) {
+	long h = key * 0x9E3779B97F4A7C15L;
+	return (int) (h >>> 32) & (buckets.length-1);
+    }
+
+    /**
+     * Double the table and rehash every entry.
+     */
+    private void grow() {
+	long[] oldKeys = keys;
+	TranslationEntry[] oldEntries = entries;
+	int size = oldKeys.length * 2;
+
+	buckets = new int[size];
+	java.util.Arrays.fill(buckets, -1);
+	keys = new long[size];
+	entries = new TranslationEntry[size];
+	next = new int[size];
+
+	int n = 0;
+	for (int i=0; i<oldKeys.length; i++) {
+	    if (oldEntries[i] == null)
+		continue;
+
+	    int bucket = hash(oldKeys[i]);
+	    keys[n] = oldKeys[i];
+	    entries[n] = oldEntries[i];
+	    next[n] = buckets[bucket];
+	    buckets[bucket] = n;
+	    n++;
+	}
+
+	for (int i=n; i<size; i++)
+	    next[i] = i+1;
+	next[size-1] = -1;
+	freeList = n;
+    }
+
+    private int[] buckets;
+    private long[] keys;
+    private TranslationEntry[] entries;
+    private int[] next;
+    private int freeList;
+    private int numEntries = 0;
+
+    private long numLookups = 0, numProbes = 0;
+}
@@ -0,0 +1,144 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.BitSet;
+
+/**
+ * A file that holds pages evicted from physical memory, one page per slot.
+ * Free slots are kept in a bitmap, and a run of consecutive slots can be
+ * allocated so that several pages are written with a single file system
+ * call. The file grows as slots are used, and is removed when it is closed.
+ */
+public class SwapFile {
+    /**
+     * Create an empty swap file.
+     *
+     * @param	name	the name of the file, in <tt>ThreadedKernel.fileSystem</tt>.
+     */
+    public SwapFile(String name) {
+	this.name = name;
+	file = ThreadedKernel.fileSystem.open(name, true);
+	Lib.assertTrue(file != null, "cannot create swap file " + name);
+    }
+
+    /**
+     * Allocate <i>count</i> consecutive free slots.
+     *
+     * @param	count	the number of slots.
+     * @return	the first slot.
+     */
+    public int allocate(int count) {
+	Lib.assertTrue(count > 0);
+
+	int first = used.nextClearBit(0);
+	while (true) {
+	    int nextUsed = used.nextSetBit(first);
+	    if (nextUsed == -1 || nextUsed - first >= count)
+		break;
+	    first = used.nextClearBit(nextUsed);
+	}
+
+	used.set(first, first+count);
+	numUsed += count;
+	maxUsed = Math.max(maxUsed, numUsed);
+	return first;
+    }
+
+    /**
+     * Free a slot.
+     *
+     * @param	slot	the slot to free.
+     */
+    public void free(int slot) {
+	Lib.assertTrue(used.get(slot));
+	used.clear(slot);
+	numUsed--;
+    }
+
+    /**
+     * Read the page in a slot into a physical frame.
+     *
+     * @param	slot	the slot to read.
+     * @param	ppn	the physical page to read it into.
+     * @return	<tt>true</tt> if the whole page was read.
+     */
+    public boolean read(int slot, int ppn) {
+	Lib.assertTrue(used.get(slot));
+
+	byte[] memory = Machine.processor().getMemory();
+	numReads++;
+	return file.read(slot*pageSize, memory, ppn*pageSize, pageSize)
+	    == pageSize;
+    }
+
+    /**
+     * Write <i>count</i> pages from <i>buf</i> to consecutive slots with a
+     * single write.
+     *
+     * @param	slot	the first slot.
+     * @param	buf	the pages to write, one after another.
+     * @param	count	the number of pages.
+     * @return	<tt>true</tt> if every page was written.
+     */
+    public boolean write(int slot, byte[] buf, int count) {
+	Lib.assertTrue(count > 0 && count*pageSize <= buf.length);
+
+	numWrites++;
+	pagesWritten += count;
+	return file.write(slot*pageSize, buf, 0, count*pageSize)
+	    == count*pageSize;
+    }
+
+    /**
+     * Copy the page in a slot to a newly allocated slot.
+     *
+     * @param	slot	the slot to copy.
+     * @return	the new slot.
+     */
+    public int copy(int slot) {
+	Lib.assertTrue(used.get(slot));
+
+	byte[] page = new byte[pageSize];
+	numReads++;
+	Lib.assertTrue(file.read(slot*pageSize, page, 0, pageSize) == pageSize,
+		       "swap read failed");
+
+	int copy = allocate(1);
+	Lib.assertTrue(write(copy, page, 1), "swap write failed");
+	return copy;
+    }
+
+    /**
+     * Close and remove the swap file.
+     */
+    public void close() {
+	file.close();
+	ThreadedKernel.fileSystem.remove(name);
+    }
+
+    /**
+     * Print how many slots are and were in use, and how many reads and writes
+     * moved how many pages.
+     */
+    public void printStats() {
+	System.out.println("Swap: slots used " + numUsed
+			   + ", max used " + maxUsed
+			   + ", reads " + numReads
+			   + ", writes " + numWrites
+			   + ", pages written " + pagesWritten);
+    }
+
+    private String name;
+    private OpenFile file;
+    /** One bit per slot, set if the slot holds a page. */
+    private BitSet used = new BitSet();
+
+    private int numUsed = 0, maxUsed = 0;
+    private int numReads = 0, numWrites = 0, pagesWritten = 0;
+
+    private static final int pageSize = Processor.pageSize;
+}
@@ -21,6 +21,10 @@ public class VMKernel extends UserKernel {
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	invertedPageTable =
+	    new InvertedPageTable(Machine.processor().getNumPhysPages());
+	swap = new SwapFile(Config.getString("VMKernel.swapFile", "swap"));
     }
 
     /**
@@ -38,12 +42,22 @@ public class VMKernel extends UserKernel {
     }
     
     /**
-     * Terminate this kernel. Never returns.
+     * Terminate this kernel. Prints the TLB, paging, inverted page table and
+     * swap statistics, and removes the swap file. Never returns.
      */
     public void terminate() {
+	VMProcess.printStats();
+	invertedPageTable.printStats();
+	swap.printStats();
+	swap.close();
 	super.terminate();
     }
 
+    /** The pages resident in physical memory, by process and page. */
+    public static InvertedPageTable invertedPageTable;
+    /** Where dirty pages go when they are evicted. */
+    public static SwapFile swap;
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
@@ -5,8 +5,26 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
+ *
+ * <p>
+ * No page is in memory when a process starts. The first touch of a page
+ * faults it in from the executable, or fills it with zeros if it is stack or
+ * uninitialized data. When no frame is free, a clock over every process's
+ * resident pages picks one to evict; a dirty victim is written to the swap
+ * file together with the dirty pages next to it, in a single write, and is
+ * read back from there the next time it faults.
+ *
+ * <p>
+ * <tt>fork()</tt> shares the parent's resident pages copy-on-write, and gives
+ * the child its own copy of where each other page comes from, so it needs no
+ * free frames. A core map lists every process mapping each frame. A shared
+ * frame can be evicted too: each process sharing it pages it out as its own.
+ * The section cache is not used, since a page loaded lazily belongs to one
+ * process.
  */
 public class VMProcess extends UserProcess {
     /**
@@ -18,36 +36,561 @@ public class VMProcess extends UserProcess {
 
     /**
      * Save the state of this process in preparation for a context switch.
-     * Called by <tt>UThread.saveState()</tt>.
+     * Called by <tt>UThread.saveState()</tt>. The TLB has no process IDs, so
+     * it is flushed, after copying its used and dirty bits back.
      */
     public void saveState() {
 	super.saveState();
+	flushTLB();
     }
 
     /**
      * Restore the state of this process after a context switch. Called by
-     * <tt>UThread.restoreState()</tt>.
+     * <tt>UThread.restoreState()</tt>. The TLB is empty, and fills from the
+     * inverted page table as the process misses.
      */
     public void restoreState() {
-	super.restoreState();
     }
 
     /**
      * Initializes page tables for this process so that the executable can be
-     * demand-paged.
+     * demand-paged. Every page starts out invalid, and records where its
+     * contents come from when it first faults.
      *
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	pageTable = new TranslationEntry[numPages];
+	initBacking();
+
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    for (int i=0; i<section.getLength(); i++) {
+		int vpn = section.getFirstVPN()+i;
+		pageSections[vpn] = s;
+		pageSPNs[vpn] = i;
+		pageTable[vpn] = new TranslationEntry(vpn, -1, false,
+						      section.isReadOnly(),
+						      false, false);
+	    }
+	}
+
+	// stack and arguments are zero-filled
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    if (pageTable[vpn] == null)
+		pageTable[vpn] = new TranslationEntry(vpn, -1, false, false,
+						      false, false);
+	}
+
+	return true;
     }
 
     /**
-     * Release any resources allocated by <tt>loadSections()</tt>.
+     * Release any resources allocated by <tt>loadSections()</tt>: the frames
+     * of the resident pages and the swap slots of the others.
      */
     protected void unloadSections() {
-	super.unloadSections();
-    }    
+	pagingLock.acquire();
+
+	if (UserKernel.currentProcess() == this)
+	    flushTLB();
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    TranslationEntry entry = pageTable[vpn];
+	    if (entry != null && entry.valid) {
+		VMKernel.invertedPageTable.remove(pid, vpn);
+		// another process sharing the frame keeps it
+		removeMapping(entry.ppn, this, vpn);
+		UserKernel.frames.free(entry.ppn);
+		entry.valid = false;
+	    }
+
+	    if (swapSlots != null && swapSlots[vpn] != -1) {
+		VMKernel.swap.free(swapSlots[vpn]);
+		swapSlots[vpn] = -1;
+	    }
+	}
+
+	pagingLock.release();
+
+	// a forked process shares its parent's pages but not its executable
+	if (coff != null)
+	    coff.close();
+    }
+
+    /**
+     * Make a page resident before the kernel copies to or from it, faulting
+     * it in if it is not.
+     */
+    protected TranslationEntry pinPage(int vpn, boolean write) {
+	if (vpn < 0 || vpn >= numPages || pageTable[vpn] == null)
+	    return null;
+
+	pagingLock.acquire();
+
+	TranslationEntry entry = null;
+	if (pageTable[vpn].valid || pageIn(vpn))
+	    entry = super.pinPage(vpn, write);
+
+	pagingLock.release();
+	return entry;
+    }
+
+    /**
+     * Give a copy-on-write page its own frame, evicting a page to make room
+     * if there is none, and let it be paged out like any other page.
+     */
+    protected boolean breakCopyOnWrite(int vpn) {
+	// pinPage() already holds the lock when a syscall writes the page
+	boolean held = pagingLock.isHeldByCurrentThread();
+	if (!held)
+	    pagingLock.acquire();
+
+	// the page may have been evicted while this thread waited for the lock
+	TranslationEntry entry = pageTable[vpn];
+	boolean copied = entry.valid || pageIn(vpn);
+	int oldPPN = entry.ppn;
+
+	if (copied && UserKernel.frames.getReferences(oldPPN) > 1 &&
+	    UserKernel.frames.getNumFree() == 0) {
+	    // make room for the copy without evicting the page being copied
+	    UserKernel.frames.pin(oldPPN);
+	    copied = evict();
+	    UserKernel.frames.unpin(oldPPN);
+	}
+	if (copied)
+	    copied = super.breakCopyOnWrite(vpn);
+
+	if (copied) {
+	    if (entry.ppn != oldPPN) {
+		removeMapping(oldPPN, this, vpn);
+		addMapping(entry.ppn, this, vpn);
+	    }
+	    entry.dirty = true;
+	}
+
+	if (!held)
+	    pagingLock.release();
+	return copied;
+    }
+
+    /**
+     * Transfer syscall data at most <tt>maxTransferPages</tt> pages at a
+     * time, so that a buffer larger than physical memory is never pinned all
+     * at once. Unlike <tt>UserProcess.transfer()</tt>, a transfer can stop
+     * part way, at a page that is unmapped or read-only, or at a short read or
+     * write; the bytes moved until then are returned.
+     */
+    protected int transfer(OpenFile file, int vaddr, int count,
+			   boolean toMemory) {
+	// leave bad arguments to the caller's checks
+	if (vaddr < 0 || count <= 0 ||
+	    (long) vaddr + count > (long) numPages * pageSize)
+	    return super.transfer(file, vaddr, count, toMemory);
+
+	int amount = 0;
+	while (amount < count) {
+	    int start = vaddr + amount;
+	    int end = Math.min(vaddr + count,
+			       (start/pageSize + maxTransferPages) * pageSize);
+
+	    int moved = super.transfer(file, start, end - start, toMemory);
+	    if (moved <= 0)
+		return (amount > 0) ? amount : moved;
+
+	    amount += moved;
+	    if (moved < end - start)
+		break;
+	}
+
+	return amount;
+    }
+
+    /**
+     * Give a forked child a page. A resident page is shared copy-on-write. A
+     * page that is not resident is not faulted in: the child gets its own
+     * copy of the page's swap slot, or loads it from the executable or as
+     * zeros just as this process would.
+     */
+    protected void sharePage(UserProcess child, int vpn) {
+	VMProcess process = (VMProcess) child;
+
+	pagingLock.acquire();
+
+	initBacking();
+	process.initBacking();
+	// the child loads pages through its own loader
+	if (process.coff == null && coff != null)
+	    process.coff = UserKernel.images.reopen(coff);
+	process.pageSections[vpn] = pageSections[vpn];
+	process.pageSPNs[vpn] = pageSPNs[vpn];
+
+	TranslationEntry entry = pageTable[vpn];
+	if (entry.valid) {
+	    // bring the dirty bit up to date from the TLB
+	    invalidateTranslation(vpn);
+	    super.sharePage(child, vpn);
+
+	    // the child can reload a clean page from the executable, but has
+	    // no copy of this process's swap slot
+	    process.pageTable[vpn].dirty = entry.dirty || swapSlots[vpn] != -1;
+	    addMapping(entry.ppn, process, vpn);
+	}
+	else {
+	    boolean readOnly = entry.readOnly && !isCopyOnWrite(vpn);
+	    process.pageTable[vpn] = new TranslationEntry(vpn, -1, false,
+							  readOnly,
+							  false, false);
+	    if (swapSlots[vpn] != -1)
+		process.swapSlots[vpn] = VMKernel.swap.copy(swapSlots[vpn]);
+	}
+
+	pagingLock.release();
+    }
+
+    /**
+     * Refill the TLB after a miss, from the inverted page table. A page that
+     * is not there is faulted in; one that is mapped by this process's page
+     * table but not in the inverted page table yet, as every page of a
+     * forked process is at first, is added to it.
+     *
+     * @param	vaddr	the virtual address that missed.
+     * @return	<tt>true</tt> if the TLB now maps the address.
+     */
+    protected boolean handleTLBMiss(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+
+	TranslationEntry entry = VMKernel.invertedPageTable.lookup(pid, vpn);
+	if (entry == null) {
+	    if (vpn < 0 || vpn >= numPages || pageTable[vpn] == null)
+		return false;
+
+	    entry = pageTable[vpn];
+	    if (entry.valid) {
+		VMKernel.invertedPageTable.insert(pid, entry);
+	    }
+	    else {
+		pagingLock.acquire();
+		boolean resident = entry.valid || pageIn(vpn);
+		pagingLock.release();
+
+		// the page may be evicted again before the TLB is filled; the
+		// TLB then holds an invalid entry, and the access misses again
+		if (!resident)
+		    return false;
+	    }
+	}
+
+	Processor processor = Machine.processor();
+	int tlbSize = processor.getTLBSize();
+
+	// use a free slot if there is one, otherwise take them in turn
+	int slot = -1;
+	for (int i=0; i<tlbSize; i++) {
+	    if (tlbSources[i] == null) {
+		slot = i;
+		break;
+	    }
+	}
+	if (slot == -1) {
+	    slot = nextVictim;
+	    nextVictim = (nextVictim + 1) % tlbSize;
+	    syncTLBEntry(slot);
+	    numTLBEvictions++;
+	}
+
+	processor.writeTLBEntry(slot, entry);
+	tlbSources[slot] = entry;
+	numTLBRefills++;
+	return true;
+    }
+
+    /**
+     * Drop the TLB's copy of a page whose translation changed.
+     */
+    protected void invalidateTranslation(int vpn) {
+	if (UserKernel.currentProcess() != this)
+	    return;
+
+	for (int i=0; i<tlbSources.length; i++) {
+	    if (tlbSources[i] != null && tlbSources[i].vpn == vpn) {
+		syncTLBEntry(i);
+		Machine.processor().writeTLBEntry(i, invalidEntry);
+		tlbSources[i] = null;
+	    }
+	}
+    }
+
+    /**
+     * Bring a page into memory, from the swap file if it was paged out
+     * dirty, otherwise from the executable or as zeros. The caller must hold
+     * <tt>pagingLock</tt>.
+     *
+     * @param	vpn	the virtual page number of a page that is not resident.
+     * @return	<tt>true</tt> if the page is now resident, <tt>false</tt> if
+     *		no frame could be freed for it.
+     */
+    private boolean pageIn(int vpn) {
+	int ppn = allocateFrame();
+	if (ppn == -1)
+	    return false;
+
+	initBacking();
+	numPageFaults++;
+	Lib.debug(dbgVM, "page fault: process " + pid + " vpn " + vpn
+		  + " ppn " + ppn);
+
+	if (swapSlots[vpn] != -1) {
+	    if (!VMKernel.swap.read(swapSlots[vpn], ppn)) {
+		UserKernel.frames.free(ppn);
+		return false;
+	    }
+	    numPagedIn++;
+	}
+	else if (pageSections[vpn] != -1) {
+	    coff.getSection(pageSections[vpn]).loadPage(pageSPNs[vpn], ppn);
+	    numLoaded++;
+	}
+	else {
+	    byte[] memory = Machine.processor().getMemory();
+	    Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+	    numZeroFilled++;
+	}
+
+	TranslationEntry entry = pageTable[vpn];
+	entry.ppn = ppn;
+	entry.valid = true;
+	entry.used = false;
+	entry.dirty = false;
+
+	addMapping(ppn, this, vpn);
+	VMKernel.invertedPageTable.insert(pid, entry);
+	return true;
+    }
+
+    /**
+     * Allocate a frame for this process, evicting pages until one is free.
+     * The caller must hold <tt>pagingLock</tt>.
+     *
+     * @return	the physical page number, or -1 if every frame is pinned or
+     *		shared.
+     */
+    private int allocateFrame() {
+	int ppn = UserKernel.frames.allocate(pid);
+	while (ppn == -1) {
+	    if (!evict())
+		return -1;
+	    ppn = UserKernel.frames.allocate(pid);
+	}
+	return ppn;
+    }
+
+    /**
+     * Evict one frame, chosen by a clock over the frames: a frame used since
+     * the hand last passed it, by any process mapping it, gets another turn.
+     * Pinned frames are skipped. Every process mapping the victim pages it
+     * out. The caller must hold <tt>pagingLock</tt>.
+     *
+     * @return	<tt>true</tt> if a frame was freed.
+     */
+    private static boolean evict() {
+	// bring the used and dirty bits in the TLB up to date
+	flushTLB();
+
+	int numFrames = frameMappings.length;
+	for (int i=0; i<2*numFrames; i++) {
+	    int ppn = clockHand;
+	    clockHand = (clockHand+1) % numFrames;
+
+	    if (frameMappings[ppn] == null || UserKernel.frames.isPinned(ppn))
+		continue;
+
+	    boolean used = false;
+	    for (Mapping m=frameMappings[ppn]; m!=null; m=m.next) {
+		TranslationEntry entry = m.process.pageTable[m.vpn];
+		used |= entry.used;
+		entry.used = false;
+	    }
+	    if (used)
+		continue;
+
+	    while (frameMappings[ppn] != null)
+		frameMappings[ppn].process.pageOut(frameMappings[ppn].vpn);
+	    return true;
+	}
+
+	return false;
+    }
+
+    /**
+     * Evict a resident page. If it is dirty, it is written to the swap file
+     * in one write along with the dirty resident pages on either side of it,
+     * up to <tt>VMProcess.clusterPages</tt> pages in all; those stay resident
+     * but become clean, so evicting them later costs no write. The caller
+     * must hold <tt>pagingLock</tt>.
+     *
+     * @param	vpn	the virtual page number.
+     */
+    private void pageOut(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	int ppn = entry.ppn;
+
+	Lib.debug(dbgVM, "page out: process " + pid + " vpn " + vpn
+		  + " ppn " + ppn + (entry.dirty ? " dirty" : ""));
+
+	// the process faults on the page from now on, and waits for the lock
+	entry.valid = false;
+	VMKernel.invertedPageTable.remove(pid, vpn);
+	removeMapping(ppn, this, vpn);
+	initBacking();
+
+	if (entry.dirty) {
+	    int first = vpn, last = vpn;
+	    while (last-first+1 < clusterPages && first > 0 &&
+		   isClusterable(first-1))
+		first--;
+	    while (last-first+1 < clusterPages && last < numPages-1 &&
+		   isClusterable(last+1))
+		last++;
+
+	    int count = last-first+1;
+	    int slot = VMKernel.swap.allocate(count);
+	    byte[] memory = Machine.processor().getMemory();
+
+	    for (int i=0; i<count; i++) {
+		TranslationEntry page = pageTable[first+i];
+		System.arraycopy(memory, page.ppn*pageSize,
+				 clusterBuffer, i*pageSize, pageSize);
+
+		// a write after the copy sets the bit again
+		page.dirty = false;
+		if (swapSlots[first+i] != -1)
+		    VMKernel.swap.free(swapSlots[first+i]);
+		swapSlots[first+i] = slot+i;
+	    }
+
+	    Lib.assertTrue(VMKernel.swap.write(slot, clusterBuffer, count),
+			   "swap write failed");
+	    numPagedOut += count;
+	}
+
+	// a shared frame is freed when its last process has paged it out
+	UserKernel.frames.free(ppn);
+	numEvictions++;
+    }
+
+    /**
+     * Return <tt>true</tt> if a neighbour of a page being paged out can be
+     * written out with it: it is resident, dirty, and neither pinned nor
+     * shared.
+     */
+    private boolean isClusterable(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	return entry != null && entry.valid && entry.dirty &&
+	    !UserKernel.frames.isPinned(entry.ppn) &&
+	    UserKernel.frames.getReferences(entry.ppn) == 1;
+    }
+
+    /**
+     * Record that a process maps a frame. The caller must hold
+     * <tt>pagingLock</tt>.
+     */
+    private static void addMapping(int ppn, VMProcess process, int vpn) {
+	frameMappings[ppn] = new Mapping(process, vpn, frameMappings[ppn]);
+    }
+
+    /**
+     * Record that a process no longer maps a frame, if it did. The caller
+     * must hold <tt>pagingLock</tt>.
+     */
+    private static void removeMapping(int ppn, VMProcess process, int vpn) {
+	for (Mapping m=frameMappings[ppn], prev=null; m!=null;
+	     prev=m, m=m.next) {
+	    if (m.process == process && m.vpn == vpn) {
+		if (prev == null)
+		    frameMappings[ppn] = m.next;
+		else
+		    prev.next = m.next;
+		return;
+	    }
+	}
+    }
+
+    /**
+     * One process's mapping of a frame, in the list of a frame's mappings.
+     */
+    private static class Mapping {
+	Mapping(VMProcess process, int vpn, Mapping next) {
+	    this.process = process;
+	    this.vpn = vpn;
+	    this.next = next;
+	}
+
+	VMProcess process;
+	int vpn;
+	Mapping next;
+    }
+
+    /**
+     * Allocate the arrays recording where non-resident pages come from. A
+     * forked process has none until it first needs them; its pages come from
+     * its parent, and then only from the swap file.
+     */
+    private void initBacking() {
+	if (swapSlots != null)
+	    return;
+
+	pageSections = new int[numPages];
+	pageSPNs = new int[numPages];
+	swapSlots = new int[numPages];
+	Arrays.fill(pageSections, -1);
+	Arrays.fill(swapSlots, -1);
+    }
+
+    /**
+     * Copy the used and dirty bits the processor set in a TLB entry back to
+     * the entry it was filled from.
+     */
+    private static void syncTLBEntry(int slot) {
+	TranslationEntry source = tlbSources[slot];
+	if (source == null)
+	    return;
+
+	TranslationEntry entry = Machine.processor().readTLBEntry(slot);
+	source.used |= entry.used;
+	source.dirty |= entry.dirty;
+    }
+
+    /**
+     * Copy back and invalidate every TLB entry.
+     */
+    private static void flushTLB() {
+	Processor processor = Machine.processor();
+	for (int i=0; i<tlbSources.length; i++) {
+	    if (tlbSources[i] != null) {
+		syncTLBEntry(i);
+		processor.writeTLBEntry(i, invalidEntry);
+		tlbSources[i] = null;
+	    }
+	}
+	numTLBFlushes++;
+    }
+
+    /**
+     * Print how often the TLB was refilled and flushed, and how pages were
+     * faulted in and paged out. Called when the kernel terminates.
+     */
+    public static void printStats() {
+	System.out.println("TLB: refills " + numTLBRefills
+			   + ", evictions " + numTLBEvictions
+			   + ", flushes " + numTLBFlushes);
+	System.out.println("Paging: faults " + numPageFaults
+			   + ", loaded " + numLoaded
+			   + ", zero-filled " + numZeroFilled
+			   + ", paged in " + numPagedIn
+			   + ", paged out " + numPagedOut
+			   + ", evictions " + numEvictions);
+    }
 
     /**
      * Handle a user exception. Called by
@@ -61,11 +604,65 @@ public class VMProcess extends UserProcess {
 	Processor processor = Machine.processor();
 
 	switch (cause) {
+	case Processor.exceptionTLBMiss:
+	    if (handleTLBMiss(processor.readRegister(Processor.regBadVAddr)))
+		break;
+	    super.handleException(cause);
+	    break;
+
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
+
+    /**
+     * The page table entry each TLB slot was filled from, or <tt>null</tt>
+     * if the slot is invalid. The TLB only ever holds the current process's
+     * translations.
+     */
+    private static TranslationEntry[] tlbSources =
+	new TranslationEntry[Machine.processor().getTLBSize()];
+    private static int nextVictim = 0;
+    private static final TranslationEntry invalidEntry = new TranslationEntry();
+
+    private static int numTLBRefills = 0, numTLBEvictions = 0;
+    private static int numTLBFlushes = 0;
+
+    /** For each page, the section it is loaded from, or -1 to zero-fill. */
+    private int[] pageSections = null;
+    /** For each page, its page number within that section. */
+    private int[] pageSPNs = null;
+    /** For each page, the swap slot holding it, or -1 if none does. */
+    private int[] swapSlots = null;
+
+    /**
+     * Held while a page is faulted in, shared or evicted, so that a page is
+     * never chosen for eviction while it is being brought in, and the core
+     * map below does not change under the clock.
+     */
+    private static Lock pagingLock = new Lock();
+    /**
+     * The core map: the processes mapping each frame, or <tt>null</tt> if
+     * none does. A frame has more than one mapping only after a
+     * <tt>fork()</tt>.
+     */
+    private static Mapping[] frameMappings =
+	new Mapping[Machine.processor().getNumPhysPages()];
+    private static int clockHand = 0;
+
+    /** The most pages one step of a syscall transfer pins. */
+    private static final int maxTransferPages =
+	Math.max(1, Machine.processor().getNumPhysPages() / 4);
+
+    /** The most dirty pages written to swap together. */
+    private static final int clusterPages =
+	Config.getInteger("VMProcess.clusterPages", 8);
+    private static byte[] clusterBuffer =
+	new byte[clusterPages*Processor.pageSize];
+
+    private static int numPageFaults = 0, numLoaded = 0, numZeroFilled = 0;
+    private static int numPagedIn = 0, numPagedOut = 0, numEvictions = 0;
 	
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';